@@ -1,16 +1,25 @@
 #!/usr/bin/env python3
 
-from http.server import BaseHTTPRequestHandler, HTTPServer
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
 import os
 import logging
+import random
 import sys
+import time
 
 
 listen_port = int( sys.argv[1] )
 response_filename = sys.argv[2]
 
+# optional injected latency, for exercising the SDS introspection timeouts and circuit breaker
+latency_ms = int( sys.argv[3] ) if len( sys.argv ) > 3 else int( os.environ.get( 'INTROSPECT_LATENCY_MS', '0' ) )
+latency_jitter_ms = int( os.environ.get( 'INTROSPECT_LATENCY_JITTER_MS', '0' ) )
+
 class IntrospectHTTPRequestHandler(BaseHTTPRequestHandler):
   def do_POST( self ):
+    delay_ms = latency_ms + random.randint( 0, latency_jitter_ms )
+    if delay_ms > 0:
+        time.sleep( delay_ms / 1000.0 )
     self.send_response( 200 )
     self.send_header('Content-type','application/json')
     self.end_headers()
@@ -18,5 +27,6 @@ class IntrospectHTTPRequestHandler(BaseHTTPRequestHandler):
         contents = response_file.read()
         self.wfile.write( contents )
 
-with HTTPServer( ('', listen_port), IntrospectHTTPRequestHandler ) as server:
+# threaded, so that one slow response does not hold up the others
+with ThreadingHTTPServer( ('', listen_port), IntrospectHTTPRequestHandler ) as server:
     server.serve_forever()
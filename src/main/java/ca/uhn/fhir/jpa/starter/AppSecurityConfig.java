@@ -1,18 +1,26 @@
 package ca.uhn.fhir.jpa.starter;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.web.SecurityFilterChain;
 
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreFlightRecordingEndpoint;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+import edu.ohsu.cmp.ecp.security.JwtAuthenticatedPrincipalConverter;
+import edu.ohsu.cmp.ecp.security.JwtValidationProperties;
+
 @Configuration
 @EnableWebSecurity
 public class AppSecurityConfig {
 
 	@Bean
-	public SecurityFilterChain filterChain(HttpSecurity http) throws Exception {
+	public SecurityFilterChain filterChain(HttpSecurity http, SupplementalDataStoreProperties sdsProperties, JwtValidationProperties jwtValidationProperties, ObjectProvider<JwtDecoder> jwtDecoder, ObjectProvider<JwtAuthenticatedPrincipalConverter> jwtPrincipalConverter) throws Exception {
         http
         	.authorizeRequests()
         		.antMatchers(HttpMethod.GET, "/**/metadata")
@@ -22,11 +30,22 @@ public class AppSecurityConfig {
 			  .antMatchers(HttpMethod.OPTIONS)
 			  .anonymous()
         	.and()
+        	.authorizeRequests()
+        		.requestMatchers(EndpointRequest.to(SupplementalDataStoreFlightRecordingEndpoint.class))
+        		.hasAuthority(sdsProperties.getFlightRecording().getAdminAuthority())
+        	.and()
         	.authorizeRequests()
             	.anyRequest()
             	.authenticated()
             .and()
-        	.oauth2ResourceServer( oauth2 -> oauth2.opaqueToken() );
+        	.oauth2ResourceServer( oauth2 -> {
+        		if ( jwtValidationProperties.getEnabled() ) {
+        			/* self-contained JWT access tokens, validated locally against the configured JWKS */
+        			oauth2.jwt( jwt -> jwt.decoder( jwtDecoder.getObject() ).jwtAuthenticationConverter( jwtPrincipalConverter.getObject() ) );
+        		} else {
+        			oauth2.opaqueToken();
+        		}
+        	});
 
         return http.build();
     } 
@@ -61,6 +61,9 @@ import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 import ca.uhn.fhir.validation.IValidatorModule;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
 import com.google.common.base.Strings;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+import edu.ohsu.cmp.ecp.sds.base.StatementCountingSessionListener;
+import org.hibernate.cfg.AvailableSettings;
 import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -134,10 +137,13 @@ public class StarterJpaConfig {
 	public LocalContainerEntityManagerFactoryBean entityManagerFactory(
 			DataSource myDataSource,
 			ConfigurableListableBeanFactory myConfigurableListableBeanFactory,
-			FhirContext theFhirContext) {
+			FhirContext theFhirContext,
+			SupplementalDataStoreProperties sdsProperties) {
 		LocalContainerEntityManagerFactoryBean retVal =
 				HapiEntityManagerFactoryUtil.newEntityManagerFactory(myConfigurableListableBeanFactory, theFhirContext);
 		retVal.setPersistenceUnitName("HAPI_PU");
+		// HAPI entities, plus the SDS identity link index
+		retVal.setPackagesToScan("ca.uhn.fhir.jpa.model.entity", "ca.uhn.fhir.jpa.entity", "edu.ohsu.cmp.ecp.sds.base");
 
 		try {
 			retVal.setDataSource(myDataSource);
@@ -146,6 +152,10 @@ public class StarterJpaConfig {
 		}
 		retVal.setJpaProperties(
 				EnvironmentHelper.getHibernateProperties(configurableEnvironment, myConfigurableListableBeanFactory));
+		// count the JDBC statements of each request against the SDS query budget
+		if (sdsProperties.getQueryBudget().getEnabled())
+			retVal.getJpaPropertyMap()
+					.put(AvailableSettings.AUTO_SESSION_EVENTS_LISTENER, StatementCountingSessionListener.class.getName());
 		return retVal;
 	}
 
@@ -47,6 +47,23 @@ public final class Permissions {
 		return readAndWriteSpecificPatient ;
 	}
 
+	/*
+	 * a stable description of the permissions: the authorized user, the kind of permission,
+	 * and the local and non-local ids of the permitted patient
+	 *
+	 * two Permissions with the same fingerprint are granted the same authorization rules
+	 */
+	public String fingerprint() {
+		String authorizedUser = authorizedUserId.toVersionless().getValue() ;
+		if ( readAllPatients.isPresent() )
+			return String.join( "|", "read-all", authorizedUser ) ;
+		if ( readSpecificPatient.isPresent() )
+			return String.join( "|", "read", authorizedUser, readSpecificPatient.get().patientId().fingerprint() ) ;
+		if ( readAndWriteSpecificPatient.isPresent() )
+			return String.join( "|", "read-write", authorizedUser, readAndWriteSpecificPatient.get().patientId().fingerprint() ) ;
+		return String.join( "|", "none", authorizedUser ) ;
+	}
+
 	public static final class ReadAllPatients {
 		private final IIdType authorizedUserId;
 
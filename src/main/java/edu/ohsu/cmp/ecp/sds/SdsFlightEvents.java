@@ -0,0 +1,107 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Java Flight Recorder events for the hot paths of the SDS layer
+ *
+ * the events are always compiled in; they cost a check of the recorder's settings until a recording enables them,
+ * e.g. with -XX:StartFlightRecording or the flightrecording actuator endpoint
+ *
+ * each event is begun before the work it describes, and its fields are only filled in when it is to be committed
+ */
+public final class SdsFlightEvents {
+
+	public static final String CATEGORY = "Supplemental Data Store";
+
+	private SdsFlightEvents() {
+	}
+
+	/*
+	 * e.g. "http://my.ehr.org/fhir/R4,SDS-LOCAL"
+	 */
+	public static String partitionNames( Collection<String> partitionNames ) {
+		return String.join( ",", new TreeSet<>( partitionNames ) ) ;
+	}
+
+	@Name("edu.ohsu.cmp.ecp.sds.LinkageLookup")
+	@Label("Linkage Lookup")
+	@Description("a lookup of the users linked to a local or non-local user")
+	@Category({ CATEGORY, "Linkage" })
+	@StackTrace(false)
+	public static class LinkageLookup extends Event {
+
+		@Label("Call")
+		public String call ;
+
+		@Label("Cache Hit")
+		@Description("answered from the identity cache, without a search")
+		public boolean cacheHit ;
+
+		@Label("Indexed")
+		@Description("searched in the identity link index rather than among the Linkage resources")
+		public boolean indexed ;
+
+		@Label("Partitions")
+		@Description("the partitions of the user looked up and of the users found")
+		public String partitions ;
+
+		@Label("Results")
+		public int results ;
+	}
+
+	@Name("edu.ohsu.cmp.ecp.sds.IdentityBootstrap")
+	@Label("Identity Bootstrap")
+	@Description("the creation of the local user or stub user that an authorized user is first seen with")
+	@Category({ CATEGORY, "Linkage" })
+	@StackTrace(false)
+	public static class IdentityBootstrap extends Event {
+
+		@Label("Step")
+		public String step ;
+
+		@Label("User Type")
+		public String userType ;
+
+		@Label("Partition")
+		public String partition ;
+
+		@Label("Created")
+		@Description("false when another request created the local user first")
+		public boolean created ;
+
+		@Label("Lock Wait")
+		@Description("time spent waiting for another request creating the same local user")
+		@Timespan(Timespan.NANOSECONDS)
+		public long lockWait ;
+	}
+
+	@Name("edu.ohsu.cmp.ecp.sds.AuthorizationDecision")
+	@Label("Authorization Decision")
+	@Description("an evaluation of the authorization rules for a request or its response")
+	@Category({ CATEGORY, "Authorization" })
+	@StackTrace(false)
+	public static class AuthorizationDecision extends Event {
+
+		@Label("Operation")
+		public String operation ;
+
+		@Label("Pointcut")
+		public String pointcut ;
+
+		@Label("Resource Type")
+		public String resourceType ;
+
+		@Label("Decision")
+		public String decision ;
+	}
+}
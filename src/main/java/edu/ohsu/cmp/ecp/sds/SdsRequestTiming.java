@@ -0,0 +1,127 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Locale;
+
+/*
+ * the time one sampled request spends in each phase of its handling, as reported by the Server-Timing interceptor
+ *
+ * a request is timed only while its timing is current on the request thread, so unsampled requests cost one thread-local read per span;
+ * spans of a phase may nest ( e.g. a linkage lookup inside the linking hook ), and only the outermost span is counted
+ */
+public final class SdsRequestTiming {
+
+	public enum Phase {
+		INTROSPECTION( "introspection", "token introspection" ),
+		PERMISSIONS( "permissions", "permission resolution" ),
+		LINKAGE( "linkage", "linkage lookups and writes" ),
+		AUTHORIZATION( "authorization", "authorization rules" ),
+		PARTITION( "partition", "partition resolution" ),
+		DAO( "dao", "resource provider and storage" ),
+		SERIALIZATION( "serialization", "response serialization" ),
+		;
+
+		private final String metricName ;
+		private final String description ;
+
+		Phase( String metricName, String description ) {
+			this.metricName = metricName ;
+			this.description = description ;
+		}
+
+		public String metricName() {
+			return metricName ;
+		}
+
+		public String description() {
+			return description ;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values() ;
+
+	private static final ThreadLocal<SdsRequestTiming> CURRENT = new ThreadLocal<>() ;
+
+	private final long[] elapsedNanos = new long[PHASES.length] ;
+	private final long[] startedNanos = new long[PHASES.length] ;
+	private final int[] depth = new int[PHASES.length] ;
+
+	public static SdsRequestTiming start() {
+		SdsRequestTiming timing = new SdsRequestTiming() ;
+		CURRENT.set( timing ) ;
+		return timing ;
+	}
+
+	public static SdsRequestTiming current() {
+		return CURRENT.get() ;
+	}
+
+	public static void clear() {
+		CURRENT.remove() ;
+	}
+
+	public static void enter( Phase phase ) {
+		SdsRequestTiming timing = CURRENT.get() ;
+		if ( null != timing )
+			timing.enterPhase( phase ) ;
+	}
+
+	public static void exit( Phase phase ) {
+		SdsRequestTiming timing = CURRENT.get() ;
+		if ( null != timing )
+			timing.exitPhase( phase ) ;
+	}
+
+	public void enterPhase( Phase phase ) {
+		int p = phase.ordinal() ;
+		if ( 0 == depth[p]++ )
+			startedNanos[p] = System.nanoTime() ;
+	}
+
+	public void exitPhase( Phase phase ) {
+		int p = phase.ordinal() ;
+		if ( 0 == depth[p] )
+			return ;
+		if ( 0 == --depth[p] )
+			elapsedNanos[p] += System.nanoTime() - startedNanos[p] ;
+	}
+
+	public void record( Phase phase, long nanos ) {
+		elapsedNanos[phase.ordinal()] += nanos ;
+	}
+
+	public double elapsedMillis( Phase phase ) {
+		return elapsedNanos[phase.ordinal()] / 1_000_000.0 ;
+	}
+
+	/*
+	 * e.g. "permissions;dur=3.1;desc="permission resolution", dao;dur=12.7;desc="resource provider and storage""
+	 * phases that took no time are left out
+	 */
+	public String serverTimingHeader() {
+		StringBuilder sb = new StringBuilder() ;
+		for ( Phase phase : PHASES ) {
+			if ( 0 == elapsedNanos[phase.ordinal()] )
+				continue ;
+			if ( sb.length() > 0 )
+				sb.append( ", " ) ;
+			sb.append( phase.metricName() )
+				.append( ";dur=" ).append( String.format( Locale.ROOT, "%.1f", elapsedMillis( phase ) ) )
+				.append( ";desc=\"" ).append( phase.description() ).append( '"' )
+				;
+		}
+		return sb.toString() ;
+	}
+
+	/*
+	 * e.g. "introspection=0.0 permissions=3.1 linkage=0.0 authorization=1.2 partition=0.4 dao=12.7 serialization=2.0"
+	 */
+	public String logFields() {
+		StringBuilder sb = new StringBuilder() ;
+		for ( Phase phase : PHASES ) {
+			if ( sb.length() > 0 )
+				sb.append( ' ' ) ;
+			sb.append( phase.metricName() ).append( '=' ).append( String.format( Locale.ROOT, "%.1f", elapsedMillis( phase ) ) ) ;
+		}
+		return sb.toString() ;
+	}
+}
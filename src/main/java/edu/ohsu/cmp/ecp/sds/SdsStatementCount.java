@@ -0,0 +1,127 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * the JDBC statements and transactions of one request, as counted against the query budget,
+ * and the SDS component that issued each statement
+ *
+ * a statement is attributed to the innermost SDS component running on the request thread ( a hook, a linkage call ),
+ * or to HAPI when none is; each component also counts how often it ran, so that a component issuing one statement per call stands out
+ *
+ * like SdsRequestTiming, a request is only counted while its count is current on the request thread;
+ * statements run on other threads are not counted
+ */
+public final class SdsStatementCount {
+
+	public static final String COMPONENT_HAPI = "hapi";
+
+	private static final ThreadLocal<SdsStatementCount> CURRENT = new ThreadLocal<>() ;
+
+	private static final class ComponentCount {
+		int calls ;
+		int statements ;
+	}
+
+	private final Deque<String> components = new ArrayDeque<>() ;
+	private final Map<String,ComponentCount> countsByComponent = new LinkedHashMap<>() ;
+	private int statements ;
+	private int transactions ;
+
+	public static SdsStatementCount start() {
+		SdsStatementCount count = new SdsStatementCount() ;
+		CURRENT.set( count ) ;
+		return count ;
+	}
+
+	public static SdsStatementCount current() {
+		return CURRENT.get() ;
+	}
+
+	public static void clear() {
+		CURRENT.remove() ;
+	}
+
+	public static void enter( String component ) {
+		SdsStatementCount count = CURRENT.get() ;
+		if ( null != count )
+			count.enterComponent( component ) ;
+	}
+
+	public static void exit( String component ) {
+		SdsStatementCount count = CURRENT.get() ;
+		if ( null != count )
+			count.exitComponent( component ) ;
+	}
+
+	public static void statementExecuted() {
+		SdsStatementCount count = CURRENT.get() ;
+		if ( null != count )
+			count.countStatement() ;
+	}
+
+	public static void transactionCompleted() {
+		SdsStatementCount count = CURRENT.get() ;
+		if ( null != count )
+			count.transactions++ ;
+	}
+
+	private ComponentCount countFor( String component ) {
+		return countsByComponent.computeIfAbsent( component, c -> new ComponentCount() ) ;
+	}
+
+	public void enterComponent( String component ) {
+		components.push( component ) ;
+		countFor( component ).calls++ ;
+	}
+
+	public void exitComponent( String component ) {
+		/* an unbalanced exit is ignored */
+		if ( component.equals( components.peek() ) )
+			components.pop() ;
+	}
+
+	public void countStatement() {
+		statements++ ;
+		String component = components.peek() ;
+		countFor( null == component ? COMPONENT_HAPI : component ).statements++ ;
+	}
+
+	public int statements() {
+		return statements ;
+	}
+
+	public int transactions() {
+		return transactions ;
+	}
+
+	public int statementsBy( String component ) {
+		ComponentCount count = countsByComponent.get( component ) ;
+		return null == count ? 0 : count.statements ;
+	}
+
+	public int callsTo( String component ) {
+		ComponentCount count = countsByComponent.get( component ) ;
+		return null == count ? 0 : count.calls ;
+	}
+
+	/*
+	 * e.g. "statements=14 transactions=2 hapi=6 linkage:patientCompartmentIsClaimed=8/4"
+	 * each component that issued statements is listed with its statements and its calls
+	 */
+	public String logFields() {
+		StringBuilder sb = new StringBuilder() ;
+		sb.append( "statements=" ).append( statements ).append( " transactions=" ).append( transactions ) ;
+		countsByComponent.forEach( ( component, count ) -> {
+			if ( 0 == count.statements )
+				return ;
+			sb.append( ' ' ).append( component ).append( '=' ).append( count.statements ) ;
+			if ( 0 != count.calls )
+				sb.append( '/' ).append( count.calls ) ;
+		});
+		return sb.toString() ;
+	}
+}
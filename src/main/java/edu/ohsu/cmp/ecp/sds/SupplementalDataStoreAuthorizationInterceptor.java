@@ -3,20 +3,28 @@ package edu.ohsu.cmp.ecp.sds;
 import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.function.Supplier;
 
 import javax.inject.Inject;
 
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilder;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleTester;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
 import ca.uhn.fhir.rest.server.provider.ProviderConstants;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreCompartmentRule.CompartmentOperation;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
 
 @Interceptor
 @Component
@@ -29,12 +37,62 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 	@Inject
 	SupplementalDataStoreAuth auth;
 
+	@Inject
+	SupplementalDataStoreAuthorizationRuleCache ruleCache;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
 	private static IAuthRuleBuilder ruleBuilder() {
 		return new RuleBuilder();
 	}
 
 	@Override
 	public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "buildRuleList", Phase.AUTHORIZATION, theRequestDetails, () -> {
+			Permissions permissions = getPermissions(theRequestDetails);
+			return ruleCache.rulesFor( permissions, () -> buildRuleList( permissions ) ) ;
+		});
+	}
+
+	@Override
+	public Verdict applyRulesAndReturnDecision(RestOperationTypeEnum theOperation, RequestDetails theRequestDetails, IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource, Pointcut thePointcut) {
+		SdsFlightEvents.AuthorizationDecision event = new SdsFlightEvents.AuthorizationDecision() ;
+		event.begin() ;
+		SdsRequestTiming.enter( Phase.AUTHORIZATION ) ;
+		Verdict verdict = null ;
+		try {
+			verdict = super.applyRulesAndReturnDecision(theOperation, theRequestDetails, theInputResource, theInputResourceId, theOutputResource, thePointcut);
+			return verdict ;
+		} finally {
+			SdsRequestTiming.exit( Phase.AUTHORIZATION ) ;
+			if ( event.shouldCommit() ) {
+				event.operation = null != theOperation ? theOperation.getCode() : null ;
+				event.pointcut = null != thePointcut ? thePointcut.name() : null ;
+				event.resourceType = authorizedResourceType( theRequestDetails, theInputResource, theInputResourceId, theOutputResource ) ;
+				event.decision = null != verdict ? verdict.getDecision().name() : null ;
+				event.commit() ;
+			}
+		}
+	}
+
+	private static String authorizedResourceType( RequestDetails theRequestDetails, IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource ) {
+		if ( null != theInputResource )
+			return theInputResource.fhirType() ;
+		if ( null != theInputResourceId && theInputResourceId.hasResourceType() )
+			return theInputResourceId.getResourceType() ;
+		if ( null != theOutputResource )
+			return theOutputResource.fhirType() ;
+		return null != theRequestDetails ? theRequestDetails.getResourceName() : null ;
+	}
+
+	@Override
+	protected void handleDeny(RequestDetails theRequestDetails, Verdict decision) {
+		metrics.authorizationDenied();
+		super.handleDeny(theRequestDetails, decision);
+	}
+
+	private List<IAuthRule> buildRuleList(Permissions permissions) {
 		List<IAuthRule> rules = new ArrayList<>() ;
 
 		ruleBuilder()
@@ -44,7 +102,6 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 			.forEach( rules::add );
 			;
 
-		Permissions permissions = getPermissions(theRequestDetails);
 		buildRuleListForPermissions( permissions ).forEach( rules::add );
 
 		ruleBuilder()
@@ -106,33 +163,15 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 	private List<IAuthRule> buildRuleListForPermissions( Permissions.ReadSpecificPatient readSpecificPatient ) {
 		List<IAuthRule> rules = new ArrayList<>() ;
 
-		readSpecificPatient.patientId().localUserId().ifPresent( localPatientId -> {
-
-			/* permit access to all sds-local records for specific patient */
-			inspectPatientCompartment( true, localPatientId )
-				.forEach( rules::add );
-			if ( localPatientId.hasBaseUrl() ) {
-				inspectPatientCompartment( true, localPatientId.toUnqualifiedVersionless() )
-					.forEach( rules::add );
-			}
-			/* permit access to all sds-local linkages that link to specific patient */
-			inspectLinkages( true, localPatientId.toUnqualifiedVersionless() )
-				.forEach( rules::add ) ;
+		/* permit access to all sds-local and sds-foreign records for specific patient in each partition */
+		List<IIdType> compartmentOwners = compartmentOwners( readSpecificPatient.patientId() ) ;
+		if ( !compartmentOwners.isEmpty() )
+			rules.add( inspectPatientCompartments( compartmentOwners ) ) ;
 
-		});
-
-		/* permit access to all sds-foreign records for specific patient in each partition */
-		for (IIdType nonLocalPatientId : readSpecificPatient.patientId().nonLocalUserIds() ) {
-			inspectPatientCompartment( false, nonLocalPatientId )
-				.forEach( rules::add ) ;
-			if ( nonLocalPatientId.hasBaseUrl() )
-				inspectPatientCompartment( false, nonLocalPatientId.toUnqualifiedVersionless() )
-					.forEach( rules::add ) ;
-
-			/* permit access to all sds-foreign linkages that link to specific patient */
-			inspectLinkages( false, nonLocalPatientId )
-				.forEach( rules::add ) ;
-		}
+		/* permit access to all sds-local and sds-foreign linkages that link to specific patient */
+		List<IIdType> linkageItems = linkageItems( readSpecificPatient.patientId() ) ;
+		if ( !linkageItems.isEmpty() )
+			inspectLinkages( linkageItems ).forEach( rules::add ) ;
 
 		return rules ;
 	}
@@ -151,33 +190,25 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 
 		}
 
-		readAndWriteSpecificPatients.patientId().localUserId().ifPresent( localPatientId -> {
-
-			/* permit access to all sds-local records for specific patient */
-			managePatientCompartment( true, localPatientId )
-				.forEach( rules::add );
-			if ( localPatientId.hasBaseUrl() ) {
-				managePatientCompartment( true, localPatientId.toUnqualifiedVersionless() )
-					.forEach( rules::add );
-			}
-			/* permit access to all sds-local linkages that link to specific patient */
-			manageLinkages( true, localPatientId.toUnqualifiedVersionless() )
-				.forEach( rules::add ) ;
-
-		});
+		/*
+		 * permit transactions (but not batches), checking each of their entries against the rules below;
+		 * a transaction with any entry the patient may not write is refused as a whole
+		 */
+		ruleBuilder()
+			.allow( "transactions of permitted entries" )
+			.transaction().withAnyOperation().andApplyNormalRules()
+			.build().forEach( rules::add )
+			;
 
-		/* permit access to all sds-foreign records for specific patient in each partition */
-		for (IIdType nonLocalPatientId : readAndWriteSpecificPatients.patientId().nonLocalUserIds() ) {
-			managePatientCompartment( false, nonLocalPatientId )
-				.forEach( rules::add ) ;
-			if ( nonLocalPatientId.hasBaseUrl() )
-				managePatientCompartment( false, nonLocalPatientId.toUnqualifiedVersionless() )
-					.forEach( rules::add ) ;
+		/* permit access to all sds-local and sds-foreign records for specific patient in each partition */
+		List<IIdType> compartmentOwners = compartmentOwners( readAndWriteSpecificPatients.patientId() ) ;
+		if ( !compartmentOwners.isEmpty() )
+			managePatientCompartments( compartmentOwners ).forEach( rules::add ) ;
 
-			/* permit access to all sds-foreign linkages that link to specific patient */
-			manageLinkages( false, nonLocalPatientId )
-				.forEach( rules::add ) ;
-		}
+		/* permit access to all sds-local and sds-foreign linkages that link to specific patient */
+		List<IIdType> linkageItems = linkageItems( readAndWriteSpecificPatients.patientId() ) ;
+		if ( !linkageItems.isEmpty() )
+			manageLinkages( linkageItems ).forEach( rules::add ) ;
 
 		return rules;
 	}
@@ -203,39 +234,45 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		return patientRelatedOperationDesc ;
 	}
 
-	private List<IAuthRule> managePatientCompartment( boolean isLocal, IIdType patientId ) {
-		List<IAuthRule> rules = new ArrayList<>() ;
+	private List<IIdType> compartmentOwners( UserIdentity patientIdentity ) {
+		List<IIdType> compartmentOwners = new ArrayList<>() ;
+		patientIdentity.localUserId().ifPresent( localPatientId -> {
+			compartmentOwners.add( localPatientId ) ;
+			if ( localPatientId.hasBaseUrl() )
+				compartmentOwners.add( localPatientId.toUnqualifiedVersionless() ) ;
+		});
+		for (IIdType nonLocalPatientId : patientIdentity.nonLocalUserIds() ) {
+			compartmentOwners.add( nonLocalPatientId ) ;
+			if ( nonLocalPatientId.hasBaseUrl() )
+				compartmentOwners.add( nonLocalPatientId.toUnqualifiedVersionless() ) ;
+		}
+		return compartmentOwners ;
+	}
 
-		ruleBuilder()
-			.allow( describePatientPermission("read", isLocal, patientId) )
-			.read().allResources().inCompartment("Patient", patientId)
-			.andThen()
-			.allow( describePatientPermission("write", isLocal, patientId) )
-			.write().allResources().inCompartment("Patient", patientId)
-			.andThen()
-			.allow( describePatientPermission("delete", isLocal, patientId) )
-			.delete().allResources().inCompartment("Patient", patientId)
-			.build()
-			.forEach( rules::add )
-			;
+	private String describePatientPermission( String operation, List<IIdType> patientIds ) {
+		return String.format( "%1$s patients %2$s", operation, patientIds ) ;
+	}
 
-		/* rule builder tries to collapse compartment rules,
-		 *  but collapses delete + cascade-delete & expunge-delete into
-		 *  just one without regard for the cascade or expunge
-		 * so, build them using separate RuleBuilder instances
+	/* the description is only needed when a decision is logged */
+	private Supplier<String> describePatientPermissionLazily( String operation, List<IIdType> patientIds ) {
+		return () -> describePatientPermission( operation, patientIds ) ;
+	}
+
+	private List<IAuthRule> managePatientCompartments( List<IIdType> compartmentOwners ) {
+		List<IAuthRule> rules = new ArrayList<>() ;
+
+		/*
+		 * a single rule checks the compartments of all the patient ids,
+		 *  in place of separate read, write, delete, delete-with-cascade, and delete-with-expunge rules per id
 		 */
-		ruleBuilder()
-			.allow( describePatientPermission("delete-with-cascade", isLocal, patientId) )
-			.delete().onCascade().allResources().inCompartment("Patient", patientId)
-			.build()
-			.forEach( rules::add )
-			;
-		ruleBuilder()
-			.allow( describePatientPermission("delete-with-expunge", isLocal, patientId) )
-			.delete().onExpunge().allResources().inCompartment("Patient", patientId)
-			.build()
-			.forEach( rules::add )
-			;
+		rules.add(
+			new SupplementalDataStoreCompartmentRule(
+				describePatientPermissionLazily( "read, write, and delete", compartmentOwners ),
+				EnumSet.allOf( CompartmentOperation.class ),
+				compartmentOwners
+				)
+			);
+
 		/*
 		 * $expunge SHOULD require parameter that specifies targeting "deleted" resource only
 		 */
@@ -248,7 +285,7 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		 * reliable un-delete
 		 */
 		ruleBuilder()
-			.allow( describePatientPermission("operation $expunge", isLocal, patientId) )
+			.allow( describePatientPermission("operation $expunge", compartmentOwners) )
 			.operation().named( ProviderConstants.OPERATION_EXPUNGE ).onAnyInstance().andAllowAllResponsesWithAllResourcesAccess()
 			.build()
 			.forEach( rules::add )
@@ -263,7 +300,7 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		 * this cannot be configured as below; it requires a custom IAuthRule
 		 *
 		ruleBuilder()
-			.allow( describePatientPermission("operation $expunge", isLocal, patientId) )
+			.allow( describePatientPermission("operation $expunge", compartmentOwners) )
 			.operation().named( ProviderConstants.OPERATION_EXPUNGE ).onServer().andAllowAllResponsesWithAllResourcesAccess()
 			.build()
 			.forEach( rules::add )
@@ -286,43 +323,47 @@ public class SupplementalDataStoreAuthorizationInterceptor extends Authorization
 		return rules ;
 	}
 
-	private List<IAuthRule> inspectPatientCompartment( boolean isLocal, IIdType patientId ) {
-		List<IAuthRule> rules = new ArrayList<>() ;
-
-		ruleBuilder()
-			.allow( describePatientPermission("read", isLocal, patientId) )
-			.read().allResources().inCompartment("Patient", patientId)
-			.build()
-			.forEach( rules::add )
-			;
+	private IAuthRule inspectPatientCompartments( List<IIdType> compartmentOwners ) {
+		return new SupplementalDataStoreCompartmentRule(
+			describePatientPermissionLazily( "read", compartmentOwners ),
+			EnumSet.of( CompartmentOperation.READ ),
+			compartmentOwners
+			);
+	}
 
-		return rules ;
+	private List<IIdType> linkageItems( UserIdentity patientIdentity ) {
+		List<IIdType> linkageItems = new ArrayList<>() ;
+		patientIdentity.localUserId().ifPresent( linkageItems::add ) ;
+		linkageItems.addAll( patientIdentity.nonLocalUserIds() ) ;
+		return linkageItems ;
 	}
 
-	private List<IAuthRule> manageLinkages( boolean isLocal, IIdType patientId ) {
-		/* omitting the resource type DOES break the Linkage search */
-		String filterForLinkageByItem = "item=" + patientId.toUnqualifiedVersionless().toString();
+	/*
+	 * matches the items of each Linkage against the patient ids directly,
+	 * in place of a filter ( "item=" + patientId ) per id that is parsed and evaluated for every Linkage
+	 */
+	private IAuthRuleTester linkageItemTester( List<IIdType> patientIds ) {
+		return new SupplementalDataStoreLinkageItemTester( patientIds ) ;
+	}
 
+	private List<IAuthRule> manageLinkages( List<IIdType> patientIds ) {
 		return ruleBuilder()
-			.allow( describePatientPermission("read linkages for", isLocal, patientId) )
-			.read().resourcesOfType("Linkage").withFilter( filterForLinkageByItem )
+			.allow( describePatientPermission("read linkages for", patientIds) )
+			.read().resourcesOfType("Linkage").withAnyId().withTester( linkageItemTester( patientIds ) )
 			.andThen()
-			.allow( describePatientPermission("cascade-delete linkages for", isLocal, patientId) )
-			.delete().onCascade().resourcesOfType("Linkage").withFilter( filterForLinkageByItem )
+			.allow( describePatientPermission("cascade-delete linkages for", patientIds) )
+			.delete().onCascade().resourcesOfType("Linkage").withAnyId().withTester( linkageItemTester( patientIds ) )
 			.andThen()
-			.allow( describePatientPermission("expunge-delete linkages for", isLocal, patientId) )
-			.delete().onExpunge().resourcesOfType("Linkage").withFilter( filterForLinkageByItem )
+			.allow( describePatientPermission("expunge-delete linkages for", patientIds) )
+			.delete().onExpunge().resourcesOfType("Linkage").withAnyId().withTester( linkageItemTester( patientIds ) )
 			.build()
 			;
 	}
 
-	private List<IAuthRule> inspectLinkages( boolean isLocal, IIdType patientId ) {
-		/* omitting the resource type DOES break the Linkage search */
-		String filterForLinkageByItem = "item=" + patientId.toUnqualifiedVersionless().toString();
-
+	private List<IAuthRule> inspectLinkages( List<IIdType> patientIds ) {
 		return ruleBuilder()
-			.allow( describePatientPermission("read linkages for", isLocal, patientId) )
-			.read().resourcesOfType("Linkage").withFilter( filterForLinkageByItem )
+			.allow( describePatientPermission("read linkages for", patientIds) )
+			.read().resourcesOfType("Linkage").withAnyId().withTester( linkageItemTester( patientIds ) )
 			.build()
 			;
 	}
@@ -0,0 +1,99 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+
+/*
+ * remembers the authorization rules built for each Permissions fingerprint,
+ * since the same user is granted the same rules request after request
+ *
+ * the fingerprint includes every id of the permitted patient, so a new or removed linkage
+ * yields a different fingerprint; entries naming a patient whose linkages changed are
+ * dropped as well, so rules for a superseded identity do not linger until they expire
+ */
+@Component
+public class SupplementalDataStoreAuthorizationRuleCache {
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	private boolean enabled ;
+	private Cache<String,CachedRules> rulesByFingerprint ;
+
+	private static final class CachedRules {
+		private final List<IAuthRule> rules ;
+		private final Set<String> patientKeys ;
+
+		CachedRules( List<IAuthRule> rules, Set<String> patientKeys ) {
+			this.rules = Collections.unmodifiableList( rules ) ;
+			this.patientKeys = patientKeys ;
+		}
+	}
+
+	@PostConstruct
+	public void createCache() {
+		SupplementalDataStoreProperties.RuleCache properties = sdsProperties.getRuleCache() ;
+		this.enabled = properties.getEnabled() ;
+		this.rulesByFingerprint =
+			Caffeine.newBuilder()
+				.maximumSize( properties.getMaximumSize() )
+				.expireAfterWrite( properties.getTtl() )
+				.build()
+				;
+	}
+
+	/*
+	 * patient ids are matched without base url or version, as the Linkage search does
+	 */
+	private static String patientKey( IIdType patientId ) {
+		return patientId.toUnqualifiedVersionless().getValue() ;
+	}
+
+	private static Set<String> patientKeys( Permissions permissions ) {
+		Set<String> keys = new HashSet<>() ;
+		permissions.readSpecificPatient().map( Permissions.ReadSpecificPatient::patientId ).ifPresent( id -> addPatientKeys( keys, id ) ) ;
+		permissions.readAndWriteSpecificPatient().map( Permissions.ReadAndWriteSpecificPatient::patientId ).ifPresent( id -> addPatientKeys( keys, id ) ) ;
+		return keys ;
+	}
+
+	private static void addPatientKeys( Set<String> keys, UserIdentity patientIdentity ) {
+		patientIdentity.localUserId().ifPresent( id -> keys.add( patientKey( id ) ) ) ;
+		patientIdentity.nonLocalUserIds().forEach( id -> keys.add( patientKey( id ) ) ) ;
+	}
+
+	public List<IAuthRule> rulesFor( Permissions permissions, Supplier<List<IAuthRule>> ruleBuilder ) {
+		if ( !enabled || null == permissions )
+			return ruleBuilder.get() ;
+		return rulesByFingerprint.get( permissions.fingerprint(), k -> new CachedRules( ruleBuilder.get(), patientKeys( permissions ) ) ).rules ;
+	}
+
+	public void invalidatePatients( Collection<? extends IIdType> patientIds ) {
+		Set<String> keys = new HashSet<>() ;
+		for ( IIdType patientId : patientIds ) {
+			if ( null != patientId && patientId.hasIdPart() )
+				keys.add( patientKey( patientId ) ) ;
+		}
+		if ( keys.isEmpty() )
+			return ;
+		rulesByFingerprint.asMap().values().removeIf( cached -> !Collections.disjoint( cached.patientKeys, keys ) ) ;
+	}
+
+	public void invalidateAll() {
+		rulesByFingerprint.invalidateAll() ;
+	}
+}
@@ -0,0 +1,288 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.QualifiedParamList;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.IRuleApplier;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+
+/*
+ * allows operations on resources in the Patient compartment of any of a set of patients
+ *
+ * makes the same decisions as the RuleBuilder rules
+ *   allow().read() / write() / delete() [ .onCascade() | .onExpunge() ] .allResources().inCompartment( "Patient", id )
+ * built for each of the patient ids, but matches compartment owners against hash sets
+ * so that one evaluation costs the same however many partitions the patient is linked to
+ */
+public class SupplementalDataStoreCompartmentRule implements IAuthRule {
+
+	private static final String COMPARTMENT_NAME = "Patient" ;
+
+	public enum CompartmentOperation {
+		READ,
+		WRITE,
+		DELETE,
+		DELETE_CASCADE,
+		DELETE_EXPUNGE
+	}
+
+	private final Supplier<String> nameSupplier ;
+	private volatile String name ;
+	private final Set<CompartmentOperation> operations ;
+
+	/* unqualified versionless owner ids, e.g. "Patient/123" */
+	private final Set<String> ownerUnqualifiedIds = new HashSet<>() ;
+	/* owner ids as given, and their id parts, as matched against search parameter values */
+	private final Set<String> ownerSearchValues = new HashSet<>() ;
+
+	public SupplementalDataStoreCompartmentRule( String name, Set<CompartmentOperation> operations, Collection<? extends IIdType> compartmentOwners ) {
+		this( () -> name, operations, compartmentOwners ) ;
+	}
+
+	/*
+	 * the name is only built when first asked for, i.e. when a decision by this rule is logged
+	 */
+	public SupplementalDataStoreCompartmentRule( Supplier<String> name, Set<CompartmentOperation> operations, Collection<? extends IIdType> compartmentOwners ) {
+		this.nameSupplier = name ;
+		this.operations = operations.isEmpty() ? EnumSet.noneOf( CompartmentOperation.class ) : EnumSet.copyOf( operations ) ;
+		for ( IIdType owner : compartmentOwners ) {
+			ownerUnqualifiedIds.add( owner.toUnqualifiedVersionless().getValue() ) ;
+			ownerSearchValues.add( owner.getValue() ) ;
+			ownerSearchValues.add( owner.getIdPart() ) ;
+		}
+	}
+
+	@Override
+	public String getName() {
+		if ( null == name )
+			name = nameSupplier.get() ;
+		return name ;
+	}
+
+	@Override
+	public Verdict applyRule( RestOperationTypeEnum theOperation, RequestDetails theRequestDetails, IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource, IRuleApplier theRuleApplier, Set<AuthorizationFlagsEnum> theFlags, Pointcut thePointcut ) {
+		if ( ownerUnqualifiedIds.isEmpty() )
+			return null ;
+
+		for ( CompartmentOperation operation : operations ) {
+			Verdict verdict = applyOperation( operation, theOperation, theRequestDetails, theInputResource, theInputResourceId, theOutputResource, theFlags, thePointcut ) ;
+			if ( null != verdict )
+				return verdict ;
+		}
+		return null ;
+	}
+
+	private Verdict allow() {
+		return new Verdict( PolicyEnum.ALLOW, this ) ;
+	}
+
+	private static class Target {
+		IBaseResource resource ;
+		Collection<IIdType> resourceIds ;
+		String resourceType ;
+		Map<String, String[]> searchParams ;
+	}
+
+	private Verdict applyOperation( CompartmentOperation operation, RestOperationTypeEnum theOperation, RequestDetails theRequestDetails, IBaseResource theInputResource, IIdType theInputResourceId, IBaseResource theOutputResource, Set<AuthorizationFlagsEnum> theFlags, Pointcut thePointcut ) {
+		boolean proactivelyBlock = !theFlags.contains( AuthorizationFlagsEnum.DO_NOT_PROACTIVELY_BLOCK_COMPARTMENT_READ_ACCESS ) ;
+		Target target = new Target() ;
+
+		switch ( operation ) {
+		case READ:
+			if ( null == theOutputResource ) {
+				switch ( theOperation ) {
+				case READ:
+				case VREAD:
+					target.resourceIds = Collections.singleton( theInputResourceId ) ;
+					target.resourceType = theInputResourceId.getResourceType() ;
+					break ;
+				case SEARCH_SYSTEM:
+				case HISTORY_SYSTEM:
+					if ( !proactivelyBlock )
+						return allow() ;
+					break ;
+				case SEARCH_TYPE:
+					if ( !proactivelyBlock )
+						return allow() ;
+					target.resourceType = theRequestDetails.getResourceName() ;
+					target.searchParams = searchParams( theRequestDetails ) ;
+					if ( theRequestDetails.getParameters().containsKey( "_id" ) )
+						target.resourceIds = resourceIdsFromIdParameter( theRequestDetails, target.resourceType ) ;
+					break ;
+				case HISTORY_TYPE:
+					if ( !proactivelyBlock )
+						return allow() ;
+					target.resourceType = theRequestDetails.getResourceName() ;
+					break ;
+				case HISTORY_INSTANCE:
+					if ( !proactivelyBlock )
+						return allow() ;
+					target.resourceIds = Collections.singleton( theInputResourceId ) ;
+					break ;
+				case GET_PAGE:
+					return allow() ;
+				default:
+					return null ;
+				}
+			}
+			target.resource = theOutputResource ;
+			if ( null != theOutputResource )
+				target.resourceIds = Collections.singleton( theOutputResource.getIdElement() ) ;
+			break ;
+
+		case WRITE:
+			if ( null == theInputResource && null == theInputResourceId )
+				return null ;
+			if ( theRequestDetails.isRewriteHistory() && null != theRequestDetails.getId() && theRequestDetails.getId().hasVersionIdPart() && RestOperationTypeEnum.UPDATE == theOperation )
+				return null ;
+			switch ( theOperation ) {
+			case ADD_TAGS:
+			case DELETE_TAGS:
+			case CREATE:
+			case UPDATE:
+			case META_ADD:
+			case META_DELETE:
+				target.resource = theInputResource ;
+				if ( null != theInputResourceId )
+					target.resourceIds = Collections.singletonList( theInputResourceId ) ;
+				break ;
+			case PATCH:
+				if ( null == theInputResourceId )
+					return null ;
+				target.resourceIds = Collections.singletonList( theInputResourceId ) ;
+				break ;
+			default:
+				return null ;
+			}
+			break ;
+
+		case DELETE:
+		case DELETE_CASCADE:
+		case DELETE_EXPUNGE:
+			if ( RestOperationTypeEnum.DELETE != theOperation )
+				return null ;
+			if ( Pointcut.STORAGE_PRE_DELETE_EXPUNGE == thePointcut && CompartmentOperation.DELETE_EXPUNGE == operation )
+				return allow() ;
+			if ( (CompartmentOperation.DELETE_CASCADE == operation) != (Pointcut.STORAGE_CASCADE_DELETE == thePointcut) )
+				return null ;
+			if ( null == theInputResourceId )
+				return null ;
+			if ( !theInputResourceId.hasIdPart() )
+				return allow() ;
+			if ( null == theInputResource )
+				return allow() ;
+			target.resource = theInputResource ;
+			target.resourceIds = Collections.singleton( theInputResourceId ) ;
+			break ;
+		}
+
+		return inCompartment( target, theRequestDetails.getFhirContext(), proactivelyBlock ) ? allow() : null ;
+	}
+
+	private boolean inCompartment( Target target, FhirContext ctx, boolean proactivelyBlock ) {
+		if ( null != target.resourceIds && !target.resourceIds.isEmpty() && target.resourceIds.stream().allMatch( id -> ownerUnqualifiedIds.contains( id.toUnqualifiedVersionless().getValue() ) ) )
+			return true ;
+
+		if ( null != target.resource && resourceIsInCompartment( target.resource, ctx ) )
+			return true ;
+
+		if ( COMPARTMENT_NAME.equals( target.resourceType ) )
+			return searchParameterMatchesOwner( target.searchParams, "_id" ) ;
+
+		if ( StringUtils.isBlank( target.resourceType ) )
+			return false ;
+
+		RuntimeResourceDefinition resourceDef = ctx.getResourceDefinition( target.resourceType ) ;
+		List<RuntimeSearchParam> compartmentParams = resourceDef.getSearchParamsForCompartmentName( COMPARTMENT_NAME ) ;
+		if ( null == compartmentParams || compartmentParams.isEmpty() )
+			return false ;
+
+		/* without search parameters to inspect, the resources are checked as they are returned */
+		if ( null == target.searchParams || !proactivelyBlock )
+			return true ;
+
+		return compartmentParams.stream().anyMatch( p -> searchParameterMatchesOwner( target.searchParams, p.getName() ) ) ;
+	}
+
+	private boolean resourceIsInCompartment( IBaseResource resource, FhirContext ctx ) {
+		RuntimeResourceDefinition resourceDef = ctx.getResourceDefinition( resource ) ;
+		if ( resource.getIdElement().hasIdPart() && ownerUnqualifiedIds.contains( resourceDef.getName() + "/" + resource.getIdElement().getIdPart() ) )
+			return true ;
+		return ctx.newTerser()
+			.getCompartmentOwnersForResource( COMPARTMENT_NAME, resource, null )
+			.stream()
+			.anyMatch( owner -> ownerUnqualifiedIds.contains( owner.toUnqualifiedVersionless().getValue() ) )
+			;
+	}
+
+	private boolean searchParameterMatchesOwner( Map<String, String[]> searchParams, String searchParamName ) {
+		if ( null == searchParams )
+			return false ;
+		String[] values = searchParams.get( searchParamName ) ;
+		if ( null == values )
+			return false ;
+		for ( String value : values ) {
+			for ( String orValue : QualifiedParamList.splitQueryStringByCommasIgnoreEscape( null, value ) ) {
+				if ( ownerSearchValues.contains( orValue ) )
+					return true ;
+			}
+		}
+		return false ;
+	}
+
+	private static Map<String, String[]> searchParams( RequestDetails theRequestDetails ) {
+		Map<String, String[]> searchParams = new HashMap<>() ;
+		for ( Map.Entry<String, String[]> param : theRequestDetails.getParameters().entrySet() ) {
+			String paramName = param.getKey() ;
+			if ( paramName.endsWith( ":mdm" ) )
+				paramName = paramName.split( ":mdm" )[0] ;
+			if ( paramName.endsWith( ":nickname" ) )
+				paramName = paramName.split( ":nickname" )[0] ;
+			searchParams.put( paramName, param.getValue() ) ;
+		}
+		return searchParams ;
+	}
+
+	private static Collection<IIdType> resourceIdsFromIdParameter( RequestDetails theRequestDetails, String resourceType ) {
+		List<IIdType> resourceIds = new ArrayList<>() ;
+		for ( String idValue : theRequestDetails.getParameters().get( "_id" ) ) {
+			for ( String orValue : QualifiedParamList.splitQueryStringByCommasIgnoreEscape( null, idValue ) ) {
+				IIdType id = theRequestDetails.getFhirContext().getVersion().newIdType().setValue( orValue ) ;
+				if ( !id.hasIdPart() )
+					continue ;
+				if ( !id.hasResourceType() )
+					id = id.withResourceType( resourceType ) ;
+				if ( id.getResourceType().equals( resourceType ) )
+					resourceIds.add( id ) ;
+			}
+		}
+		return resourceIds.isEmpty() ? null : resourceIds ;
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "%1$s[name=%2$s,operations=%3$s,owners=%4$s]", getClass().getSimpleName(), getName(), operations, ownerUnqualifiedIds ) ;
+	}
+}
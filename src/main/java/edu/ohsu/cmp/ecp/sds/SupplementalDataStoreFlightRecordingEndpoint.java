@@ -0,0 +1,175 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import edu.ohsu.cmp.ecp.security.IntrospectionEvent;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/*
+ * starts, stops and downloads one bounded Java Flight Recorder recording at a time, including the SDS events:
+ *   GET    /actuator/flightrecording        the state of the current recording
+ *   POST   /actuator/flightrecording        starts a recording, for { "duration": "5m" } or sds.flight-recording.default-duration
+ *   DELETE /actuator/flightrecording        stops the current recording, which can still be downloaded
+ *   GET    /actuator/flightrecording/{id}   downloads the current recording, whether running or stopped
+ *
+ * a recording never runs longer than sds.flight-recording.maximum-duration nor keeps more than sds.flight-recording.maximum-size;
+ * the endpoint is only exposed when listed in management.endpoints.web.exposure.include,
+ * and only to tokens granted sds.flight-recording.admin-authority ( see AppSecurityConfig )
+ */
+@Component
+@WebEndpoint(id = SupplementalDataStoreFlightRecordingEndpoint.ENDPOINT_ID)
+public class SupplementalDataStoreFlightRecordingEndpoint {
+
+	public static final String ENDPOINT_ID = "flightrecording";
+
+	private static final String RECORDING_NAME = "sds";
+
+	private static final int STATUS_CONFLICT = 409;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	private Recording recording;
+
+	@ReadOperation
+	public synchronized Map<String,Object> status() {
+		Map<String,Object> status = new LinkedHashMap<>() ;
+		if ( null == recording ) {
+			status.put( "state", "NONE" ) ;
+			return status ;
+		}
+		status.put( "id", recording.getId() ) ;
+		status.put( "state", recording.getState().name() ) ;
+		status.put( "settings", sdsProperties.getFlightRecording().getSettings() ) ;
+		status.put( "startTime", null != recording.getStartTime() ? recording.getStartTime().toString() : null ) ;
+		status.put( "stopTime", null != recording.getStopTime() ? recording.getStopTime().toString() : null ) ;
+		status.put( "duration", null != recording.getDuration() ? recording.getDuration().toString() : null ) ;
+		status.put( "maximumSize", recording.getMaxSize() ) ;
+		status.put( "size", recording.getSize() ) ;
+		return status ;
+	}
+
+	@WriteOperation
+	public synchronized WebEndpointResponse<Map<String,Object>> start( @Nullable String duration ) {
+		if ( null != recording && RecordingState.RUNNING == recording.getState() )
+			return new WebEndpointResponse<>( status(), STATUS_CONFLICT ) ;
+
+		Duration recordingDuration ;
+		try {
+			recordingDuration = boundedDuration( duration ) ;
+		} catch ( IllegalArgumentException ex ) {
+			return new WebEndpointResponse<>( Map.of( "error", ex.getMessage() ), WebEndpointResponse.STATUS_BAD_REQUEST ) ;
+		}
+
+		closeRecording() ;
+		recording = newRecording() ;
+		recording.setDuration( recordingDuration ) ;
+		recording.start() ;
+		return new WebEndpointResponse<>( status(), WebEndpointResponse.STATUS_OK ) ;
+	}
+
+	@DeleteOperation
+	public synchronized WebEndpointResponse<Map<String,Object>> stop() {
+		if ( null == recording )
+			return new WebEndpointResponse<>( WebEndpointResponse.STATUS_NOT_FOUND ) ;
+		if ( RecordingState.RUNNING == recording.getState() )
+			recording.stop() ;
+		return new WebEndpointResponse<>( status(), WebEndpointResponse.STATUS_OK ) ;
+	}
+
+	@ReadOperation(produces = "application/octet-stream")
+	public synchronized WebEndpointResponse<Resource> download( @Selector long id ) {
+		if ( null == recording || recording.getId() != id )
+			return new WebEndpointResponse<>( WebEndpointResponse.STATUS_NOT_FOUND ) ;
+		if ( RecordingState.RUNNING != recording.getState() && RecordingState.STOPPED != recording.getState() )
+			return new WebEndpointResponse<>( WebEndpointResponse.STATUS_NOT_FOUND ) ;
+		try {
+			Path dump = Files.createTempFile( "sds-recording-" + id + "-", ".jfr" ) ;
+			recording.dump( dump ) ;
+			return new WebEndpointResponse<>( deletedOnceRead( dump ), WebEndpointResponse.STATUS_OK ) ;
+		} catch ( IOException ex ) {
+			throw new UncheckedIOException( ex ) ;
+		}
+	}
+
+	private Duration boundedDuration( String duration ) {
+		SupplementalDataStoreProperties.FlightRecording properties = sdsProperties.getFlightRecording() ;
+		Duration requested = null == duration || duration.isBlank() ? properties.getDefaultDuration() : DurationStyle.detectAndParse( duration ) ;
+		if ( requested.isNegative() || requested.isZero() )
+			throw new IllegalArgumentException( "a recording must have a positive duration" ) ;
+		return requested.compareTo( properties.getMaximumDuration() ) > 0 ? properties.getMaximumDuration() : requested ;
+	}
+
+	private Recording newRecording() {
+		SupplementalDataStoreProperties.FlightRecording properties = sdsProperties.getFlightRecording() ;
+		Recording newRecording ;
+		try {
+			newRecording = new Recording( Configuration.getConfiguration( properties.getSettings() ) ) ;
+		} catch ( IOException | ParseException ex ) {
+			throw new IllegalStateException( "cannot read the flight recorder settings \"" + properties.getSettings() + "\"", ex ) ;
+		}
+		newRecording.setName( RECORDING_NAME ) ;
+		newRecording.setToDisk( true ) ;
+		newRecording.setMaxSize( properties.getMaximumSize().toBytes() ) ;
+		newRecording.enable( SdsFlightEvents.LinkageLookup.class ) ;
+		newRecording.enable( SdsFlightEvents.IdentityBootstrap.class ) ;
+		newRecording.enable( SdsFlightEvents.AuthorizationDecision.class ) ;
+		newRecording.enable( IntrospectionEvent.class ) ;
+		return newRecording ;
+	}
+
+	/*
+	 * each download is a copy of the recording so far, removed once it has been sent
+	 */
+	private static Resource deletedOnceRead( Path dump ) {
+		return new FileSystemResource( dump ) {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				return new FilterInputStream( super.getInputStream() ) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close() ;
+						} finally {
+							Files.deleteIfExists( dump ) ;
+						}
+					}
+				};
+			}
+		};
+	}
+
+	@PreDestroy
+	public synchronized void closeRecording() {
+		if ( null != recording ) {
+			recording.close() ;
+			recording = null ;
+		}
+	}
+}
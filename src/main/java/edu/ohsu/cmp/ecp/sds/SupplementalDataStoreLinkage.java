@@ -16,6 +16,7 @@ public interface SupplementalDataStoreLinkage {
 	Optional<IIdType> lookupLocalUserFor(IIdType userId);
 	IIdType establishLocalUser(String userResourceType);
 	IIdType establishLocalUserFor(IIdType userId);
+	IIdType establishLocalUserLinkedTo(IIdType nonLocalUserId);
 	IIdType establishNonLocalUser(IIdType nonLocalUserId);
 
 	void linkNonLocalPatientToLocalPatient(IIdType localPatientId, IIdType nonLocalPatientId);
@@ -0,0 +1,83 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleTester;
+
+/*
+ * matches Linkage resources having an item that refers to any of a set of patients
+ *
+ * makes the same decisions as the RuleBuilder filter
+ *   .withFilter( "item=" + patientId.toUnqualifiedVersionless() )
+ * built for each of the patient ids, but reads the item references directly
+ * and matches them against a hash set, rather than parsing the filter
+ * and extracting the search parameter from the Linkage on every evaluation
+ *
+ * Linkage items are written as unqualified references (the partition of a non-local patient
+ * is carried in an extension), and only unqualified references are matched, as the filter does
+ */
+public class SupplementalDataStoreLinkageItemTester implements IAuthRuleTester {
+
+	private static final String LINKAGE_RESOURCE_TYPE = "Linkage" ;
+
+	/* unqualified versionless patient ids, e.g. "Patient/123" */
+	private final Set<String> itemIds = new HashSet<>() ;
+
+	public SupplementalDataStoreLinkageItemTester( Collection<? extends IIdType> patientIds ) {
+		for ( IIdType patientId : patientIds )
+			itemIds.add( patientId.toUnqualifiedVersionless().getValue() ) ;
+	}
+
+	@Override
+	public boolean matches( RuleTestRequest theRequest ) {
+		return linkageHasItem( theRequest ) ;
+	}
+
+	@Override
+	public boolean matchesOutput( RuleTestRequest theRequest ) {
+		return linkageHasItem( theRequest ) ;
+	}
+
+	private boolean linkageHasItem( RuleTestRequest theRequest ) {
+		/*
+		 * without a resource to inspect (e.g. a search, before it is handled) the rule does not apply,
+		 * as with the filter; the resources are checked as they are returned
+		 */
+		if ( null == theRequest.resource )
+			return false ;
+
+		IBaseResource resource = theRequest.resource ;
+		if ( !LINKAGE_RESOURCE_TYPE.equals( resource.fhirType() ) )
+			return false ;
+
+		FhirContext ctx = theRequest.requestDetails.getFhirContext() ;
+		BaseRuntimeChildDefinition itemChild = ctx.getResourceDefinition( resource ).getChildByName( "item" ) ;
+		BaseRuntimeChildDefinition itemResourceChild = ((BaseRuntimeElementCompositeDefinition<?>)itemChild.getChildByName( "item" )).getChildByName( "resource" ) ;
+
+		for ( IBase item : itemChild.getAccessor().getValues( resource ) ) {
+			for ( IBase itemResource : itemResourceChild.getAccessor().getValues( item ) ) {
+				IIdType itemId = ((IBaseReference)itemResource).getReferenceElement() ;
+				if ( null == itemId || !itemId.hasIdPart() || itemId.hasBaseUrl() )
+					continue ;
+				if ( itemIds.contains( itemId.toUnqualifiedVersionless().getValue() ) )
+					return true ;
+			}
+		}
+		return false ;
+	}
+
+	@Override
+	public String toString() {
+		return String.format( "%1$s[items=%2$s]", getClass().getSimpleName(), itemIds ) ;
+	}
+}
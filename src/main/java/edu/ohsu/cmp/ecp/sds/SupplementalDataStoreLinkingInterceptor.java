@@ -9,15 +9,17 @@ import java.util.Set;
 import javax.inject.Inject;
 
 import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.interceptor.api.Hook;
 import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
-import ca.uhn.fhir.interceptor.model.RequestPartitionId;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.TransactionDetails;
 import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
 
 @Interceptor
 @Component
@@ -36,24 +38,76 @@ public class SupplementalDataStoreLinkingInterceptor {
 	@Inject
 	SupplementalDataStoreProperties sdsProperties;
 
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
 	private Comparator<IIdType> idComparator = FhirResourceComparison.idTypes().comparator();
 
+	private static final String TRANSACTION_DATA_LINKING = SupplementalDataStoreLinkingInterceptor.class.getName() + ".linking" ;
+
 	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
-	public void linkNewResourceToAuthorizedUser(RequestDetails theRequestDetails, RequestPartitionId requestPartitionId) {
+	public void linkNewResourceToAuthorizedUser(IBaseResource theResource, RequestDetails theRequestDetails, TransactionDetails theTransactionDetails) {
+		metrics.timeHook( "linkNewResourceToAuthorizedUser", Phase.LINKAGE, theRequestDetails, () -> linkToAuthorizedUser(theResource, theRequestDetails, theTransactionDetails) ) ;
+	}
+
+	private void linkToAuthorizedUser(IBaseResource theResource, RequestDetails theRequestDetails, TransactionDetails theTransactionDetails) {
 		Permissions permissions = getPermissions( theRequestDetails );
 		permissions.readAndWriteSpecificPatient()
 			.ifPresent( readAndWriteSpecificPatient -> {
 
-					resourceCreation.resourceCreationInfo( theRequestDetails )
+					resourceCreation.resourceCreationInfo( theRequestDetails, theResource )
 						.ifPresent( details -> {
-							PatientCompartmentLinkingPlan plan = buildLinkingPlan( readAndWriteSpecificPatient, details ) ;
-							PatientCompartmentLinkingContext linkingContext = initializeLinkingContext( plan, details ) ;
-							plan.linkCompartments( linkingContext ) ;
+							PatientCompartmentLinking linking = linkingForTransaction( theTransactionDetails, readAndWriteSpecificPatient, details ) ;
+							linking.plan.linkCompartments( linking.context ) ;
 						});
 				});
 
 	}
 
+	/*
+	 * the linking plan and context shared by every resource created in a transaction
+	 *
+	 * the first resource builds the plan and queries the context; each later resource (e.g. the
+	 * next entry of a transaction Bundle) merges its compartments into the plan, and only the
+	 * compartments the plan has not seen yet are queried
+	 */
+	private class PatientCompartmentLinking {
+		private final PatientCompartmentLinkingPlan plan ;
+		private final PatientCompartmentLinkingContext context ;
+
+		PatientCompartmentLinking( Permissions.ReadAndWriteSpecificPatient readAndWriteSpecificPatient, SupplementalDataStoreResourceCreation.Details details ) {
+			this.plan = buildLinkingPlan( readAndWriteSpecificPatient, details ) ;
+			this.context = initializeLinkingContext( plan, details ) ;
+		}
+
+		boolean isBasedOn( Permissions.ReadAndWriteSpecificPatient readAndWriteSpecificPatient ) {
+			return idsSame( plan.basisCompartment(), readAndWriteSpecificPatient.patientId().basisUserId() ) ;
+		}
+
+		PatientCompartmentLinking requireCompartmentsOf( SupplementalDataStoreResourceCreation.Details details ) {
+			for ( IIdType patientCompartment : details.compartments() ) {
+				if ( plan.requiredCompartments().contains( patientCompartment ) )
+					continue ;
+				plan.requireCompartment( patientCompartment ) ;
+				identifyExistingCompartment( patientCompartment, context, details ) ;
+			}
+			return this ;
+		}
+	}
+
+	private PatientCompartmentLinking linkingForTransaction( TransactionDetails theTransactionDetails, Permissions.ReadAndWriteSpecificPatient readAndWriteSpecificPatient, SupplementalDataStoreResourceCreation.Details details ) {
+		if ( null == theTransactionDetails )
+			return new PatientCompartmentLinking( readAndWriteSpecificPatient, details ) ;
+
+		PatientCompartmentLinking linking = theTransactionDetails.getUserData( TRANSACTION_DATA_LINKING ) ;
+		if ( null != linking && linking.isBasedOn( readAndWriteSpecificPatient ) )
+			return linking.requireCompartmentsOf( details ) ;
+
+		linking = new PatientCompartmentLinking( readAndWriteSpecificPatient, details ) ;
+		theTransactionDetails.putUserData( TRANSACTION_DATA_LINKING, linking ) ;
+		return linking ;
+	}
+
 	private PatientCompartmentLinkingPlan buildLinkingPlan( Permissions.ReadAndWriteSpecificPatient readAndWriteSpecificPatient, SupplementalDataStoreResourceCreation.Details details ) {
 
 		PatientCompartmentLinkingPlanImpl plan = new PatientCompartmentLinkingPlanImpl( readAndWriteSpecificPatient.patientId().basisUserId() ) ;
@@ -77,15 +131,7 @@ public class SupplementalDataStoreLinkingInterceptor {
 		 * if it created by this request or already exists, identify it in the context
 		 */
 		for ( IIdType patientCompartment : plan.requiredCompartments() ) {
-			if ( details.inherentlyClaimsCompartment( patientCompartment ) ) {
-				/* this request creates the compartment owner */
-				linkingContext.compartmentAlreadyExists(patientCompartment) ;
-			}
-
-			if ( linkage.patientCompartmentIsClaimed(patientCompartment) ) {
-				/* this compartment is already claimed */
-				linkingContext.compartmentAlreadyExists(patientCompartment) ;
-			}
+			identifyExistingCompartment( patientCompartment, linkingContext, details ) ;
 		}
 
 		/*
@@ -108,11 +154,25 @@ public class SupplementalDataStoreLinkingInterceptor {
 		return linkingContext ;
 	}
 
+	private void identifyExistingCompartment( IIdType patientCompartment, PatientCompartmentLinkingContext linkingContext, SupplementalDataStoreResourceCreation.Details details ) {
+		if ( details.inherentlyClaimsCompartment( patientCompartment ) ) {
+			/* this request creates the compartment owner */
+			linkingContext.compartmentAlreadyExists(patientCompartment) ;
+		}
+
+		if ( linkage.patientCompartmentIsClaimed(patientCompartment) ) {
+			/* this compartment is already claimed */
+			linkingContext.compartmentAlreadyExists(patientCompartment) ;
+		}
+	}
+
 	private interface PatientCompartmentLinkingPlan {
 
 		IIdType basisCompartment() ;
 		Set<IIdType> requiredCompartments() ;
 
+		PatientCompartmentLinkingPlan requireCompartment( IIdType patientCompartment ) ;
+
 		PatientCompartmentLinkingPlan linkCompartments( PatientCompartmentLinkingContext linkingContext ) ;
 
 	}
@@ -186,10 +246,16 @@ public class SupplementalDataStoreLinkingInterceptor {
 		private void linkLocalCompartment( PatientCompartmentLinkingContext linkingContext ) {
 			/* link it and update the context */
 			if ( !linkingContext.linkedNonLocalCompartments().contains( basisCompartment ) ) {
-				linkage.linkNonLocalPatientToLocalPatient(
-					requireClaimedLocalCompartment( linkingContext ),
-					requireClaimedBasisCompartment( linkingContext )
-					);
+				if ( linkingContext.localPatientId().isPresent() ) {
+					linkage.linkNonLocalPatientToLocalPatient(
+						linkingContext.localPatientId().get(),
+						requireClaimedBasisCompartment( linkingContext )
+						);
+				} else {
+					/* create the local compartment and its link to the basis compartment in one write */
+					IIdType newlyCreatedPatientCompartment = linkage.establishLocalUserLinkedTo( requireClaimedBasisCompartment( linkingContext ) ) ;
+					linkingContext.localCompartmentAlreadyExists( newlyCreatedPatientCompartment ) ;
+				}
 				linkingContext.basisCompartmentIsAlreadyLinked() ;
 			}
 		}
@@ -0,0 +1,185 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * timers for the SDS interceptor hooks and linkage calls, and counters for the resources the SDS writes on its own,
+ * so that the time spent in the SDS layer can be told apart from the time spent in HAPI
+ *
+ * hook timers are tagged by the FHIR operation and by the kind of permission identified for the request;
+ * the tags are read when the hook completes, so a hook that identifies the permissions is tagged with them
+ *
+ * each timed hook and call is also counted toward its phase of the request timing, when the request is sampled,
+ * and is the component that the statements it issues are attributed to, when the query budget is enabled
+ *
+ * a resource written within a transaction is only counted once the transaction commits,
+ * so that e.g. the local user of a request that lost the local user claim is not counted
+ */
+@Component
+public class SupplementalDataStoreMetrics {
+
+	public static final String METRIC_PREFIX = "sds";
+
+	public static final String TAG_NONE = "none";
+
+	@Inject
+	MeterRegistry meterRegistry;
+
+	private Counter stubsCreated;
+	private Counter localUsersCreated;
+	private Counter linkagesCreated;
+	private Counter authorizationDenials;
+
+	@PostConstruct
+	public void registerCounters() {
+		stubsCreated = Counter.builder(METRIC_PREFIX + ".stubs.created")
+			.description("stub resources created for non-local users")
+			.register(meterRegistry);
+		localUsersCreated = Counter.builder(METRIC_PREFIX + ".local-users.created")
+			.description("local user resources created")
+			.register(meterRegistry);
+		linkagesCreated = Counter.builder(METRIC_PREFIX + ".linkages.created")
+			.description("Linkage resources created between local and non-local users")
+			.register(meterRegistry);
+		authorizationDenials = Counter.builder(METRIC_PREFIX + ".authorization.denials")
+			.description("requests denied by the authorization rules")
+			.register(meterRegistry);
+	}
+
+	public <T> T timeHook( String hook, Phase phase, RequestDetails theRequestDetails, Supplier<T> task ) {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		SdsRequestTiming.enter( phase ) ;
+		SdsStatementCount.enter( "hook:" + hook ) ;
+		try {
+			return task.get() ;
+		} finally {
+			SdsStatementCount.exit( "hook:" + hook ) ;
+			SdsRequestTiming.exit( phase ) ;
+			sample.stop(
+				Timer.builder(METRIC_PREFIX + ".hook")
+					.description("time spent in an SDS interceptor hook")
+					.tag("hook", hook)
+					.tag("operation", operationTag(theRequestDetails))
+					.tag("permission", permissionTag(theRequestDetails))
+					.register(meterRegistry)
+				);
+		}
+	}
+
+	public void timeHook( String hook, Phase phase, RequestDetails theRequestDetails, Runnable task ) {
+		timeHook( hook, phase, theRequestDetails, () -> {
+			task.run() ;
+			return null ;
+		});
+	}
+
+	public <T> T timeLinkage( String call, Supplier<T> task ) {
+		Timer.Sample sample = Timer.start(meterRegistry);
+		SdsRequestTiming.enter( Phase.LINKAGE ) ;
+		SdsStatementCount.enter( "linkage:" + call ) ;
+		try {
+			return task.get() ;
+		} finally {
+			SdsStatementCount.exit( "linkage:" + call ) ;
+			SdsRequestTiming.exit( Phase.LINKAGE ) ;
+			sample.stop(
+				Timer.builder(METRIC_PREFIX + ".linkage")
+					.description("time spent in a linkage lookup or write")
+					.tag("call", call)
+					.register(meterRegistry)
+				);
+		}
+	}
+
+	public void timeLinkage( String call, Runnable task ) {
+		timeLinkage( call, () -> {
+			task.run() ;
+			return null ;
+		});
+	}
+
+	public void stubCreated() {
+		incrementAfterCommit(stubsCreated);
+	}
+
+	public void localUserCreated() {
+		incrementAfterCommit(localUsersCreated);
+	}
+
+	public void linkageCreated() {
+		incrementAfterCommit(linkagesCreated);
+	}
+
+	private static void incrementAfterCommit( Counter counter ) {
+		if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+			counter.increment();
+			return ;
+		}
+		TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+			@Override
+			public void afterCommit() {
+				counter.increment();
+			}
+		});
+	}
+
+	public void authorizationDenied() {
+		authorizationDenials.increment();
+	}
+
+	public void requestStatements( RequestDetails theRequestDetails, SdsStatementCount count, boolean exceeded ) {
+		String operation = operationTag(theRequestDetails) ;
+		DistributionSummary.builder(METRIC_PREFIX + ".request.statements")
+			.description("JDBC round trips made on the request thread of a FHIR request")
+			.tag("operation", operation)
+			.register(meterRegistry)
+			.record(count.statements());
+		DistributionSummary.builder(METRIC_PREFIX + ".request.transactions")
+			.description("database transactions completed on the request thread of a FHIR request")
+			.tag("operation", operation)
+			.register(meterRegistry)
+			.record(count.transactions());
+		if ( exceeded ) {
+			Counter.builder(METRIC_PREFIX + ".query-budget.exceeded")
+				.description("FHIR requests that went over their query budget")
+				.tag("operation", operation)
+				.register(meterRegistry)
+				.increment();
+		}
+	}
+
+	private static String operationTag( RequestDetails theRequestDetails ) {
+		if ( null == theRequestDetails )
+			return TAG_NONE ;
+		RestOperationTypeEnum operation = theRequestDetails.getRestOperationType() ;
+		return null == operation ? TAG_NONE : operation.getCode() ;
+	}
+
+	private static String permissionTag( RequestDetails theRequestDetails ) {
+		Permissions permissions = null == theRequestDetails ? null : SupplementalDataStorePermissionsInterceptor.getPermissions(theRequestDetails) ;
+		if ( null == permissions )
+			return TAG_NONE ;
+		if ( permissions.readAllPatients().isPresent() )
+			return "read-all" ;
+		if ( permissions.readSpecificPatient().isPresent() )
+			return "read-specific" ;
+		if ( permissions.readAndWriteSpecificPatient().isPresent() )
+			return "read-write" ;
+		return TAG_NONE ;
+	}
+}
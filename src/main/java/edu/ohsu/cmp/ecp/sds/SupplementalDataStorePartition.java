@@ -1,14 +1,19 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
@@ -22,6 +27,10 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 @Component
 public class SupplementalDataStorePartition {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStorePartition.class);
+
+	/* the partition lookups and writes are counted as their own component against the query budget */
+	private static final String STATEMENT_COMPONENT = "partition:registry";
 
 	@Inject
 	SupplementalDataStoreProperties sdsProperties;
@@ -36,26 +45,67 @@ public class SupplementalDataStorePartition {
     @Named("transactionManager")
     protected PlatformTransactionManager txManager;
     
+	/*
+	 * names of the partitions known to exist
+	 *
+	 * partitions are only ever added, so a name once found in the database stays valid;
+	 * names not found here are checked against the database, since another node may have created them
+	 */
+	private final Set<String> knownPartitionNames = ConcurrentHashMap.newKeySet() ;
+
+	@PostConstruct
+	public void loadKnownPartitions() {
+		doInTransaction( () -> {
+			daoPartition.findAll().forEach( p -> knownPartitionNames.add( p.getName() ) ) ;
+		});
+	}
+
     private void doInTransaction( Runnable task ) {
     	TransactionTemplate tmpl = new TransactionTemplate(txManager);
     	
-        tmpl.execute(new TransactionCallbackWithoutResult() {
-            @Override
-            protected void doInTransactionWithoutResult(TransactionStatus status) {
-            	task.run() ;
-            }
-        });
+    	SdsStatementCount.enter( STATEMENT_COMPONENT ) ;
+    	try {
+    		tmpl.execute(new TransactionCallbackWithoutResult() {
+    			@Override
+    			protected void doInTransactionWithoutResult(TransactionStatus status) {
+    				task.run() ;
+    			}
+    		});
+    	} finally {
+    		SdsStatementCount.exit( STATEMENT_COMPONENT ) ;
+    	}
     }
     
     private <T> T doInTransaction( Supplier<T> task ) {
     	TransactionTemplate tmpl = new TransactionTemplate(txManager);
     	
-    	return tmpl.execute(new TransactionCallback<T>() {
-    		@Override
-    		public T doInTransaction(TransactionStatus status) {
-    			return task.get() ;
-    		}
-    	});
+    	SdsStatementCount.enter( STATEMENT_COMPONENT ) ;
+    	try {
+    		return tmpl.execute(new TransactionCallback<T>() {
+    			@Override
+    			public T doInTransaction(TransactionStatus status) {
+    				return task.get() ;
+    			}
+    		});
+    	} finally {
+    		SdsStatementCount.exit( STATEMENT_COMPONENT ) ;
+    	}
+    }
+    
+    /*
+     * runs in a transaction of its own, suspending any transaction of the request,
+     * so that a failed insert cannot mark the request's transaction rollback-only or break its session
+     */
+    private void doInNewTransaction( Runnable task ) {
+    	TransactionTemplate tmpl = new TransactionTemplate(txManager);
+    	tmpl.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+    	
+    	SdsStatementCount.enter( STATEMENT_COMPONENT ) ;
+    	try {
+    		tmpl.executeWithoutResult( status -> task.run() );
+    	} finally {
+    		SdsStatementCount.exit( STATEMENT_COMPONENT ) ;
+    	}
     }
     
 	public boolean userIsLocal( IIdType userId ) {
@@ -97,27 +147,43 @@ public class SupplementalDataStorePartition {
 	}
 
 	public void establishLocalPartition() {
-		String localPartitionName = sdsProperties.getPartition().getLocalName();
-
-		doInTransaction( () -> {
-			if (!daoPartition.findForName(localPartitionName).isPresent()) {
-				daoPartition.save(newLocalPartitionEntity());
-			}
-		});
+		establishPartition( sdsProperties.getPartition().getLocalName(), this::newLocalPartitionEntity ) ;
 	}
 
 	public void establishNonLocalPartition( String partitionName ) {
-		doInTransaction( () -> {
-			if (!daoPartition.findForName(partitionName).isPresent()) {
-				daoPartition.save(newNonLocalPartitionEntity(partitionName));
-			}
-		});
+		establishPartition( partitionName, () -> newNonLocalPartitionEntity(partitionName) ) ;
 	}
 
 	public boolean partitionExists( String partitionName ) {
-		return doInTransaction( () -> {
+		if ( knownPartitionNames.contains( partitionName ) )
+			return true ;
+		boolean exists = doInTransaction( () -> {
 			return daoPartition.findForName(partitionName).isPresent() ;
 		});
+		if ( exists )
+			knownPartitionNames.add( partitionName ) ;
+		return exists ;
+	}
+
+	private void establishPartition( String partitionName, Supplier<PartitionEntity> newPartitionEntity ) {
+		if ( knownPartitionNames.contains( partitionName ) )
+			return ;
+		try {
+			doInNewTransaction( () -> {
+				if (!daoPartition.findForName(partitionName).isPresent()) {
+					daoPartition.saveAndFlush(newPartitionEntity.get());
+				}
+			});
+		} catch ( DataIntegrityViolationException ex ) {
+			/*
+			 * another node created the same partition concurrently;
+			 * anything else (e.g. a partition id collision) is still an error
+			 */
+			if ( !doInTransaction( () -> daoPartition.findForName(partitionName).isPresent() ) )
+				throw ex ;
+			ourLog.debug( "partition \"{}\" was created concurrently", partitionName ) ;
+		}
+		knownPartitionNames.add( partitionName ) ;
 	}
 
 	private int generatePartitionId(String partitionName) {
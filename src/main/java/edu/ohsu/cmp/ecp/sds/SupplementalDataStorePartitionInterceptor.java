@@ -21,6 +21,7 @@ import ca.uhn.fhir.jpa.partition.IRequestPartitionHelperSvc;
 import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
 
 @Interceptor
 @Component
@@ -34,6 +35,9 @@ public class SupplementalDataStorePartitionInterceptor {
 
 	@Inject
 	IRequestPartitionHelperSvc requestPartitionHelperSvc;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
 	
 	@PostConstruct
 	public void establishLocalPartition() {
@@ -42,6 +46,10 @@ public class SupplementalDataStorePartitionInterceptor {
 
 	@Hook(Pointcut.STORAGE_PARTITION_IDENTIFY_CREATE)
 	public RequestPartitionId partitionIdentifyCreate(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "partitionIdentifyCreate", Phase.PARTITION, theRequestDetails, () -> identifyCreatePartition(theRequestDetails) ) ;
+	}
+
+	private RequestPartitionId identifyCreatePartition(RequestDetails theRequestDetails) {
 		if ( !requestPartitionHelperSvc.isResourcePartitionable(theRequestDetails.getResourceName()) )
 			return RequestPartitionId.defaultPartition() ;
 
@@ -68,6 +76,10 @@ public class SupplementalDataStorePartitionInterceptor {
 
 	@Hook(Pointcut.STORAGE_PARTITION_IDENTIFY_READ)
 	public RequestPartitionId partitionIdentifyRead(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "partitionIdentifyRead", Phase.PARTITION, theRequestDetails, () -> identifyReadPartition(theRequestDetails) ) ;
+	}
+
+	private RequestPartitionId identifyReadPartition(RequestDetails theRequestDetails) {
 		if ( !requestPartitionHelperSvc.isResourcePartitionable(theRequestDetails.getResourceName()) )
 			return RequestPartitionId.defaultPartition() ;
 
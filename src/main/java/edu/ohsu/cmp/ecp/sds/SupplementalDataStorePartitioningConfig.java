@@ -1,5 +1,6 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.config.PartitionSettings.CrossPartitionReferenceMode;
 import ca.uhn.fhir.jpa.searchparam.matcher.AuthorizationSearchParamMatcher;
@@ -31,6 +32,9 @@ public class SupplementalDataStorePartitioningConfig {
 	@Inject
 	RestfulServer server;
 
+	@Inject
+	IInterceptorService interceptorService;
+
 	@Inject
 	PartitionSettings partitionSettings;
 
@@ -42,16 +46,28 @@ public class SupplementalDataStorePartitioningConfig {
 
 	@Inject
 	SupplementalDataStoreAuthorizationCapabilityInterceptor authorizationCapabilityInterceptor;
+
+	@Inject
+	SupplementalDataStoreSearchNarrowingInterceptor searchNarrowingInterceptor;
 	
 	@Inject
 	SupplementalDataStoreLinkingInterceptor linkingInterceptor;
 
+	@Inject
+	SupplementalDataStoreLinkage linkage;
+
 	@Inject
 	SupplementalDataStorePermissionsInterceptor permissionsInterceptor;
 	
 	@Inject
 	SupplementalDataStorePartitionInterceptor partitionInterceptor;
 
+	@Inject
+	SupplementalDataStoreServerTimingInterceptor serverTimingInterceptor;
+
+	@Inject
+	SupplementalDataStoreQueryBudgetInterceptor queryBudgetInterceptor;
+
 	@Inject
 	SearchParamMatcher searchParamMatcher;
 	
@@ -70,6 +86,11 @@ public class SupplementalDataStorePartitioningConfig {
 	@PostConstruct
 	public void configureLinking() {
 		server.registerInterceptor(linkingInterceptor);
+		/*
+		 * the linkage maintains its own cache of linked identities, which must see
+		 * every Linkage write, including those made internally with a SystemRequestDetails
+		 */
+		interceptorService.registerInterceptor(linkage);
 	}
 	
 	@PostConstruct
@@ -81,12 +102,28 @@ public class SupplementalDataStorePartitioningConfig {
 	public void configureAuthorization() {
 		server.registerInterceptor(authorizationCapabilityInterceptor);
 		
+		/* narrow searches to the permitted patient compartments before the DAO runs */
+		server.registerInterceptor(searchNarrowingInterceptor);
+		
 		IAuthorizationSearchParamMatcher theAuthorizationSearchParamMatcher = new AuthorizationSearchParamMatcher(searchParamMatcher);
 		authorizationInterceptor.setAuthorizationSearchParamMatcher(theAuthorizationSearchParamMatcher);
 		server.registerInterceptor(authorizationInterceptor);
 		
+		/* search results are still checked against the authorization rules, as a safety net behind the search narrowing */
 		ConsentInterceptor consentInterceptor = new ConsentInterceptor();
 		consentInterceptor.registerConsentService(new RuleFilteringConsentService(authorizationInterceptor));
 		server.registerInterceptor(consentInterceptor);
 	}
+
+	@PostConstruct
+	public void configureServerTiming() {
+		if ( sdsProperties.getServerTiming().getEnabled() )
+			server.registerInterceptor(serverTimingInterceptor);
+	}
+
+	@PostConstruct
+	public void configureQueryBudget() {
+		if ( sdsProperties.getQueryBudget().getEnabled() )
+			server.registerInterceptor(queryBudgetInterceptor);
+	}
 }
@@ -16,6 +16,7 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreAuth.AuthorizationProfile;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreAuth.LaunchContext;
 import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
 
 @Interceptor
 @Component
@@ -33,6 +34,9 @@ public class SupplementalDataStorePermissionsInterceptor {
 
 	@Inject
 	SupplementalDataStoreResourceCreation resourceCreation;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
 	
 	public static final String REQUEST_ATTR_PERMISSIONS = "SDS-AUTH-PERMISSIONS" ;
 
@@ -42,6 +46,18 @@ public class SupplementalDataStorePermissionsInterceptor {
 
 	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
 	public void identifyPermissions(RequestDetails theRequestDetails) {
+		metrics.timeHook( "identifyPermissions", Phase.PERMISSIONS, theRequestDetails, () -> identifyPermissionsOnce(theRequestDetails) ) ;
+	}
+
+	private void identifyPermissionsOnce(RequestDetails theRequestDetails) {
+
+		/*
+		 * return early if the permissions were already identified,
+		 * e.g. by the search narrowing interceptor before the request was handled
+		 */
+
+		if ( null != getPermissions(theRequestDetails) )
+			return ;
 
 		/*
 		 * identify the authorized user
@@ -53,6 +69,7 @@ public class SupplementalDataStorePermissionsInterceptor {
 			return ;
 
 		IIdType authorizedUserId = authProfile.getAuthorizedUserId();
+		IIdType basisPatientId = basisPatientId( authProfile ) ;
 
 		/*
 		 * identify the authorized user
@@ -62,16 +79,28 @@ public class SupplementalDataStorePermissionsInterceptor {
 		if ( "Practitioner".equalsIgnoreCase( authorizedUserId.getResourceType() ) ) {
 			theRequestDetails.setAttribute(
 				REQUEST_ATTR_PERMISSIONS,
-				permissionsForPractitioner( authorizedUserId, authProfile.getLaunchContext() )
+				permissionsForPractitioner( authorizedUserId, basisPatientId )
 			);
 		} else {
 			theRequestDetails.setAttribute(
 				REQUEST_ATTR_PERMISSIONS,
-				permissionsForPatient( authorizedUserId, authProfile.getTargetPatientId(), theRequestDetails )
+				permissionsForPatient( authorizedUserId, buildUserIdentity( basisPatientId ), theRequestDetails )
 			);
 		}
 	}
 
+	/*
+	 * the patient whose identity the permissions are built around:
+	 * the launch context of a practitioner (if any), otherwise the targeted patient
+	 */
+	private static IIdType basisPatientId( AuthorizationProfile authProfile ) {
+		if ( "Practitioner".equalsIgnoreCase( authProfile.getAuthorizedUserId().getResourceType() ) ) {
+			LaunchContext launchContext = authProfile.getLaunchContext() ;
+			return null != launchContext ? launchContext.getPatient() : null ;
+		}
+		return authProfile.getTargetPatientId() ;
+	}
+
 	private UserIdentity buildUserIdentity( IIdType basisUserId ) {
 
 		Optional<IIdType> localUserId = linkage.lookupLocalUserFor(basisUserId);
@@ -95,9 +124,9 @@ public class SupplementalDataStorePermissionsInterceptor {
 		return new UserIdentity(basisUserId, localUserId, nonLocalPatientIds) ;
 	}
 
-	private Permissions permissionsForPractitioner( IIdType authorizedUserId, LaunchContext launchContext ) {
-		if ( null != launchContext && null != launchContext.getPatient() ) {
-			return permissionsForPractitionerInPatientContext(authorizedUserId, launchContext.getPatient()) ;
+	private Permissions permissionsForPractitioner( IIdType authorizedUserId, IIdType launchPatientContext ) {
+		if ( null != launchPatientContext ) {
+			return permissionsForPractitionerInPatientContext(authorizedUserId, buildUserIdentity( launchPatientContext )) ;
 		} else {
 			return permissionsForPractitionerWithoutContext( authorizedUserId ) ;
 		}
@@ -107,16 +136,12 @@ public class SupplementalDataStorePermissionsInterceptor {
 		return new Permissions( new Permissions.ReadAllPatients(authorizedUserId) ) ;
 	}
 
-	private Permissions permissionsForPractitionerInPatientContext( IIdType authorizedUserId, IIdType launchPatientContext ) {
-		UserIdentity contextPatientId = buildUserIdentity( launchPatientContext );
-
+	private Permissions permissionsForPractitionerInPatientContext( IIdType authorizedUserId, UserIdentity contextPatientId ) {
 		return new Permissions( new Permissions.ReadSpecificPatient(authorizedUserId, contextPatientId ) ) ;
 	}
 
-	private Permissions permissionsForPatient( IIdType authorizedUserId, IIdType authorizedPatientId, RequestDetails theRequestDetails ) {
-
+	private Permissions permissionsForPatient( IIdType authorizedUserId, UserIdentity targetPatientId, RequestDetails theRequestDetails ) {
 
-		UserIdentity targetPatientId = buildUserIdentity( authorizedPatientId );
 		/*
 		 * IF the request is a resource WRITE
 		 * AND the resource's Patient Compartment is not already linked to the authorized user
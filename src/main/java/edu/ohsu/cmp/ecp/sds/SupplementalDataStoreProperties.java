@@ -1,7 +1,12 @@
 package edu.ohsu.cmp.ecp.sds;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 
 @Configuration
 @ConfigurationProperties(prefix = "sds")
@@ -9,6 +14,13 @@ public class SupplementalDataStoreProperties {
 
 	private boolean requireBaseUrl = true ;
 	private Partition partition = new Partition();
+	private IdentityCache identityCache = new IdentityCache();
+	private IdentityLinks identityLinks = new IdentityLinks();
+	private RuleCache ruleCache = new RuleCache();
+	private Onboarding onboarding = new Onboarding();
+	private ServerTiming serverTiming = new ServerTiming();
+	private FlightRecording flightRecording = new FlightRecording();
+	private QueryBudget queryBudget = new QueryBudget();
 
 	public boolean getRequireBaseUrl() {
 		return requireBaseUrl;
@@ -26,6 +38,62 @@ public class SupplementalDataStoreProperties {
 		this.partition = partition;
 	}
 
+	public IdentityCache getIdentityCache() {
+		return identityCache;
+	}
+
+	public void setIdentityCache(IdentityCache identityCache) {
+		this.identityCache = identityCache;
+	}
+
+	public IdentityLinks getIdentityLinks() {
+		return identityLinks;
+	}
+
+	public void setIdentityLinks(IdentityLinks identityLinks) {
+		this.identityLinks = identityLinks;
+	}
+
+	public RuleCache getRuleCache() {
+		return ruleCache;
+	}
+
+	public void setRuleCache(RuleCache ruleCache) {
+		this.ruleCache = ruleCache;
+	}
+
+	public Onboarding getOnboarding() {
+		return onboarding;
+	}
+
+	public void setOnboarding(Onboarding onboarding) {
+		this.onboarding = onboarding;
+	}
+
+	public ServerTiming getServerTiming() {
+		return serverTiming;
+	}
+
+	public void setServerTiming(ServerTiming serverTiming) {
+		this.serverTiming = serverTiming;
+	}
+
+	public FlightRecording getFlightRecording() {
+		return flightRecording;
+	}
+
+	public void setFlightRecording(FlightRecording flightRecording) {
+		this.flightRecording = flightRecording;
+	}
+
+	public QueryBudget getQueryBudget() {
+		return queryBudget;
+	}
+
+	public void setQueryBudget(QueryBudget queryBudget) {
+		this.queryBudget = queryBudget;
+	}
+
 	public enum SdsFeatureBehavior {
 		FAIL,
 		WARN,
@@ -63,4 +131,251 @@ public class SupplementalDataStoreProperties {
 		}
 		
 	}
+
+	public static class IdentityCache {
+
+		private boolean enabled = true;
+		private long maximumSize = 10000;
+		private Duration ttl = Duration.ofMinutes(10);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		public Duration getTtl() {
+			return ttl;
+		}
+
+		public void setTtl(Duration ttl) {
+			this.ttl = ttl;
+		}
+
+	}
+
+	public static class IdentityLinks {
+
+		private boolean enabled = true;
+		private int backfillBatchSize = 500;
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getBackfillBatchSize() {
+			return backfillBatchSize;
+		}
+
+		public void setBackfillBatchSize(int backfillBatchSize) {
+			this.backfillBatchSize = backfillBatchSize;
+		}
+
+	}
+
+	public static class RuleCache {
+
+		private boolean enabled = true;
+		private long maximumSize = 10000;
+		private Duration ttl = Duration.ofMinutes(10);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		public Duration getTtl() {
+			return ttl;
+		}
+
+		public void setTtl(Duration ttl) {
+			this.ttl = ttl;
+		}
+
+	}
+
+	public static class Onboarding {
+
+		private int lockStripes = 1024;
+		private Duration lockTimeout = Duration.ofSeconds(30);
+
+		public int getLockStripes() {
+			return lockStripes;
+		}
+
+		public void setLockStripes(int lockStripes) {
+			this.lockStripes = lockStripes;
+		}
+
+		public Duration getLockTimeout() {
+			return lockTimeout;
+		}
+
+		public void setLockTimeout(Duration lockTimeout) {
+			this.lockTimeout = lockTimeout;
+		}
+
+	}
+
+	public static class ServerTiming {
+
+		private boolean enabled = false;
+		private double sampleRate = 0.01;
+		private String loggerName = "sds.timing";
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public double getSampleRate() {
+			return sampleRate;
+		}
+
+		public void setSampleRate(double sampleRate) {
+			this.sampleRate = sampleRate;
+		}
+
+		public String getLoggerName() {
+			return loggerName;
+		}
+
+		public void setLoggerName(String loggerName) {
+			this.loggerName = loggerName;
+		}
+
+	}
+
+	public static class FlightRecording {
+
+		private String settings = "default";
+		private Duration defaultDuration = Duration.ofMinutes(5);
+		private Duration maximumDuration = Duration.ofMinutes(30);
+		private DataSize maximumSize = DataSize.ofMegabytes(100);
+		private String adminAuthority = "SCOPE_sds.admin";
+
+		public String getSettings() {
+			return settings;
+		}
+
+		public void setSettings(String settings) {
+			this.settings = settings;
+		}
+
+		public Duration getDefaultDuration() {
+			return defaultDuration;
+		}
+
+		public void setDefaultDuration(Duration defaultDuration) {
+			this.defaultDuration = defaultDuration;
+		}
+
+		public Duration getMaximumDuration() {
+			return maximumDuration;
+		}
+
+		public void setMaximumDuration(Duration maximumDuration) {
+			this.maximumDuration = maximumDuration;
+		}
+
+		public DataSize getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(DataSize maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		public String getAdminAuthority() {
+			return adminAuthority;
+		}
+
+		public void setAdminAuthority(String adminAuthority) {
+			this.adminAuthority = adminAuthority;
+		}
+
+	}
+
+	public static class QueryBudget {
+
+		private boolean enabled = false;
+		private int maximumStatements = 100;
+		private Map<String,Integer> maximumStatementsByOperation = new HashMap<>();
+		private int maximumTransactions = 10;
+		private SdsFeatureBehavior exceeded = SdsFeatureBehavior.WARN;
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public int getMaximumStatements() {
+			return maximumStatements;
+		}
+
+		public void setMaximumStatements(int maximumStatements) {
+			this.maximumStatements = maximumStatements;
+		}
+
+		public Map<String, Integer> getMaximumStatementsByOperation() {
+			return maximumStatementsByOperation;
+		}
+
+		public void setMaximumStatementsByOperation(Map<String, Integer> maximumStatementsByOperation) {
+			this.maximumStatementsByOperation = maximumStatementsByOperation;
+		}
+
+		public int getMaximumTransactions() {
+			return maximumTransactions;
+		}
+
+		public void setMaximumTransactions(int maximumTransactions) {
+			this.maximumTransactions = maximumTransactions;
+		}
+
+		public SdsFeatureBehavior getExceeded() {
+			return exceeded;
+		}
+
+		/*
+		 * WARN or IGNORE; a request cannot be failed for its statement count once any write it made has committed
+		 */
+		public void setExceeded(SdsFeatureBehavior exceeded) {
+			if ( SdsFeatureBehavior.FAIL == exceeded )
+				throw new IllegalArgumentException( "sds.query-budget.exceeded must be WARN or IGNORE" );
+			this.exceeded = exceeded;
+		}
+
+	}
 }
@@ -0,0 +1,87 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import javax.inject.Inject;
+
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties.QueryBudget;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties.SdsFeatureBehavior;
+
+/*
+ * counts the JDBC statements and transactions of each request against a budget,
+ * attributing each statement to the SDS component that issued it ( see SdsStatementCount )
+ *
+ * a request over budget is reported according to sds.query-budget.exceeded,
+ * WARN or IGNORE logging the statement count at warn or debug level once the request completes;
+ * a request is never failed for its count, since by then the transaction of a write has committed
+ *
+ * the statements are counted by a Hibernate session listener, configured with the entity manager factory;
+ * registered only when sds.query-budget.enabled is set
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreQueryBudgetInterceptor {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreQueryBudgetInterceptor.class);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+	public void startCounting() {
+		SdsStatementCount.start() ;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void reportCount(RequestDetails theRequestDetails) {
+		SdsStatementCount count = SdsStatementCount.current() ;
+		if ( null == count )
+			return ;
+		SdsStatementCount.clear() ;
+
+		String overage = budgetOverage( theRequestDetails, count ) ;
+		metrics.requestStatements( theRequestDetails, count, null != overage ) ;
+		if ( null == overage )
+			return ;
+
+		String msg =
+			String.format(
+				"Operation[%1$s] exceeded its query budget ( %2$s ): %3$s",
+				operationDescription( theRequestDetails ),
+				overage,
+				count.logFields()
+				) ;
+		if ( SdsFeatureBehavior.IGNORE == sdsProperties.getQueryBudget().getExceeded() )
+			ourLog.debug( msg ) ;
+		else
+			ourLog.warn( msg ) ;
+	}
+
+	/*
+	 * e.g. "statements 120 > 100", or null when the request is within its budget
+	 */
+	private String budgetOverage( RequestDetails theRequestDetails, SdsStatementCount count ) {
+		QueryBudget budget = sdsProperties.getQueryBudget() ;
+		int maximumStatements = budget.getMaximumStatements() ;
+		if ( null != theRequestDetails.getRestOperationType() )
+			maximumStatements = budget.getMaximumStatementsByOperation().getOrDefault( theRequestDetails.getRestOperationType().getCode(), maximumStatements ) ;
+
+		if ( count.statements() > maximumStatements )
+			return "statements " + count.statements() + " > " + maximumStatements ;
+		if ( count.transactions() > budget.getMaximumTransactions() )
+			return "transactions " + count.transactions() + " > " + budget.getMaximumTransactions() ;
+		return null ;
+	}
+
+	private static String operationDescription( RequestDetails theRequestDetails ) {
+		String operation = null != theRequestDetails.getRestOperationType() ? theRequestDetails.getRestOperationType().getCode() : "" ;
+		String target = null != theRequestDetails.getId() ? theRequestDetails.getId().getValue() : theRequestDetails.getResourceName() ;
+		return operation + " " + target ;
+	}
+}
@@ -3,6 +3,8 @@ package edu.ohsu.cmp.ecp.sds;
 import static java.util.stream.Collectors.filtering;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -10,24 +12,33 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.model.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor;
 import ca.uhn.fhir.jpa.searchparam.extractor.ISearchParamExtractor.SearchParamSet;
 import ca.uhn.fhir.jpa.searchparam.extractor.PathAndRef;
 import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 import ca.uhn.fhir.util.FhirTerser;
 import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
 
@@ -37,7 +48,40 @@ public class SupplementalDataStoreResourceCreation {
 	@Inject
 	ISearchParamExtractor searchParamExtractor;
 
-	private final Map<RuntimeResourceDefinition,PatientCompartmentResourceDefinition> searchParamNamesForPatientCompartment = new HashMap<>() ;
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	ISearchParamRegistry searchParamRegistry;
+
+	@Inject
+	IResourceChangeListenerRegistry resourceChangeListenerRegistry;
+
+	private static final long SEARCH_PARAMETER_REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis( 1 ) ;
+
+	/*
+	 * the names of the reference search params that place a resource in a Patient compartment, by resource type
+	 *
+	 * the table is complete and immutable, and is replaced as a whole when the search params change,
+	 * so concurrent requests read it without locking
+	 */
+	private volatile Map<String,Set<String>> patientCompartmentSearchParamNames ;
+
+	private boolean watchingSearchParameters ;
+
+	private final IResourceChangeListener searchParameterListener = new IResourceChangeListener() {
+		@Override
+		public void handleInit( Collection<IIdType> theResourceIds ) {
+			rebuildPatientCompartmentSearchParamNames() ;
+		}
+
+		@Override
+		public void handleChange( IResourceChangeEvent theResourceChangeEvent ) {
+			if ( theResourceChangeEvent.isEmpty() )
+				return ;
+			refreshPatientCompartmentSearchParamNames() ;
+		}
+	};
 
 	@Inject
 	SupplementalDataStorePartition partition;
@@ -66,42 +110,79 @@ public class SupplementalDataStoreResourceCreation {
 
 	}
 	
+	private static final String USER_DATA_COMPARTMENTS_OF_CREATED_RESOURCE = SupplementalDataStoreResourceCreation.class.getName() + ".compartments" ;
+
+	/*
+	 * the patient compartments extracted from the references of a written resource
+	 *
+	 * the extraction walks the whole resource, so it is remembered in the request's user data
+	 * and shared by every interceptor that asks during the request; HAPI changes the resource in place
+	 * as it is written (assigning its id, resolving placeholder and conditional references), so the memo
+	 * is keyed on a fingerprint of the resource id and every reference it holds, and it is recomputed
+	 * when the fingerprint, the resource instance, or the partition changes
+	 */
+	private static class MemoizedCompartments {
+		private final IBaseResource resource ;
+		private final String partitionName ;
+		private final List<String> fingerprint ;
+		private final Set<CompartmentDetails> compartments ;
+
+		MemoizedCompartments( IBaseResource resource, String partitionName, List<String> fingerprint, Set<CompartmentDetails> compartments ) {
+			this.resource = resource ;
+			this.partitionName = partitionName ;
+			this.fingerprint = fingerprint ;
+			this.compartments = compartments ;
+		}
+
+		boolean describes( IBaseResource resource, String partitionName, List<String> fingerprint ) {
+			return this.resource == resource && Objects.equals( this.partitionName, partitionName ) && this.fingerprint.equals( fingerprint ) ;
+		}
+	}
+
+	/*
+	 * forget the compartments remembered for the request
+	 */
+	public void invalidateResourceCreationInfo( RequestDetails theRequestDetails ) {
+		theRequestDetails.getUserData().remove( USER_DATA_COMPARTMENTS_OF_CREATED_RESOURCE ) ;
+	}
+
 	public Optional<Details> resourceCreationInfo( RequestDetails theRequestDetails ) {
 		// return early if not a resource write
 		if ( !isResourceWrite(theRequestDetails) )
 			return Optional.empty();
 
-		IBaseResource createdResource = theRequestDetails.getResource();
+		return resourceCreationInfo( theRequestDetails, theRequestDetails.getResource() ) ;
+	}
+
+	/*
+	 * the creation details of a resource written by the request,
+	 * e.g. one of the entries of a transaction or batch
+	 */
+	public Optional<Details> resourceCreationInfo( RequestDetails theRequestDetails, IBaseResource createdResource ) {
+		// return early if not a resource write
+		if ( null == theRequestDetails.getRestOperationType() )
+			return Optional.empty();
+		if ( !isResourceWrite(theRequestDetails) && !isBundleWrite(theRequestDetails) )
+			return Optional.empty();
+
 		// return early if there is no resource
 		if ( null == createdResource )
 			return Optional.empty();
 
 		String createdInPartitionName = partition.partitionNameFromRequest(theRequestDetails) ;
 
-		Set<CompartmentDetails> compartmentsOfCreatedResource = new HashSet<>();
+		Set<CompartmentDetails> compartmentsOfCreatedResource ;
 		if ( "Patient".equals( createdResource.fhirType() ) ) {
 			// a Patient resource is in the Patient compartment
+			// (not remembered; it depends on the id, which is assigned as the resource is created)
 
 			Optional<IIdType> createdResourceId = patientCompartmentOfCreatedPatientResource( createdResource, createdInPartitionName ) ;
-			compartmentsOfCreatedResource.add( DetailsImpl.compartmentOwnedByCreatedResource( createdResourceId ) ) ;
+			compartmentsOfCreatedResource = Set.of( DetailsImpl.compartmentOwnedByCreatedResource( createdResourceId ) ) ;
 
 		} else {
 			// a non-Patient resource may be in Patient compartments according to the spec
 
-			PatientCompartmentResourceDefinition patientCompartmentResourceDefinition =
-				patientCompartmentResourceDefinitionForResource( theRequestDetails.getFhirContext(), createdResource )
-				;
-
-			for ( PathAndRef pathAndRef : searchParamExtractor.extractResourceLinks( createdResource, false ) ) {
-				if ( !patientCompartmentResourceDefinition.identifiesPatientCompartment( pathAndRef.getSearchParamName() ) )
-					continue ;
-				
-				IIdType owner = pathAndRef.getRef().getReferenceElement() ;
-				if ( !"Patient".equals(owner.getResourceType() ) )
-					continue ;
-				IIdType fullyQualifiedOwner = patientCompartmentFromPatientId( owner, createdInPartitionName ) ;
-				compartmentsOfCreatedResource.add( DetailsImpl.compartmentContainingCreatedResource( fullyQualifiedOwner ) ) ;
-			}
+			compartmentsOfCreatedResource = memoizedCompartmentsOfCreatedResource( theRequestDetails, createdResource, createdInPartitionName ) ;
 		}
 
 		// return early if the resource is not in a Patient compartment
@@ -113,38 +194,114 @@ public class SupplementalDataStoreResourceCreation {
 		return Optional.of( details ) ;
 	}
 
-	private PatientCompartmentResourceDefinition patientCompartmentResourceDefinitionForResource( FhirContext fhirContext, IBaseResource resource ) {
-		return
-			searchParamNamesForPatientCompartment.computeIfAbsent(
-				fhirContext.getResourceDefinition( resource ),
-				PatientCompartmentResourceDefinition::new
-			) ;
+	private Set<CompartmentDetails> memoizedCompartmentsOfCreatedResource( RequestDetails theRequestDetails, IBaseResource createdResource, String createdInPartitionName ) {
+		List<String> fingerprint = referenceFingerprint( createdResource ) ;
+		Object memo = theRequestDetails.getUserData().get( USER_DATA_COMPARTMENTS_OF_CREATED_RESOURCE ) ;
+		if ( memo instanceof MemoizedCompartments && ((MemoizedCompartments)memo).describes( createdResource, createdInPartitionName, fingerprint ) )
+			return ((MemoizedCompartments)memo).compartments ;
+
+		Set<CompartmentDetails> compartments = compartmentsOfCreatedResource( createdResource, createdInPartitionName ) ;
+		theRequestDetails.getUserData().put( USER_DATA_COMPARTMENTS_OF_CREATED_RESOURCE, new MemoizedCompartments( createdResource, createdInPartitionName, fingerprint, compartments ) ) ;
+		return compartments ;
+	}
+
+	/*
+	 * the versioned id of the resource followed by the value of every reference it holds, in document order;
+	 * collecting the references is a plain walk of the resource, far cheaper than evaluating the search param paths
+	 */
+	private List<String> referenceFingerprint( IBaseResource createdResource ) {
+		FhirTerser terser = fhirContext.newTerser() ;
+		List<String> fingerprint = new ArrayList<>() ;
+		fingerprint.add( createdResource.getIdElement().getValue() ) ;
+		for ( IBaseReference reference : terser.getAllPopulatedChildElementsOfType( createdResource, IBaseReference.class ) )
+			fingerprint.add( reference.getReferenceElement().getValue() ) ;
+		return fingerprint ;
 	}
 
-	private class PatientCompartmentResourceDefinition {
-		private final Set<String> searchParamNamesForPatientCompartment = new HashSet<>() ;
-		private final RuntimeResourceDefinition sourceDef ;
+	private Set<CompartmentDetails> compartmentsOfCreatedResource( IBaseResource createdResource, String createdInPartitionName ) {
+		Set<String> patientCompartmentSearchParamNames = patientCompartmentSearchParamNames( createdResource.fhirType() ) ;
 
-		public RuntimeResourceDefinition runtimeSourceDefinition() {
-			return sourceDef ;
+		Set<CompartmentDetails> compartmentsOfCreatedResource = new HashSet<>();
+		for ( PathAndRef pathAndRef : searchParamExtractor.extractResourceLinks( createdResource, false ) ) {
+			if ( !patientCompartmentSearchParamNames.contains( pathAndRef.getSearchParamName() ) )
+				continue ;
+			
+			IIdType owner = pathAndRef.getRef().getReferenceElement() ;
+			if ( !"Patient".equals(owner.getResourceType() ) )
+				continue ;
+			IIdType fullyQualifiedOwner = patientCompartmentFromPatientId( owner, createdInPartitionName ) ;
+			compartmentsOfCreatedResource.add( DetailsImpl.compartmentContainingCreatedResource( fullyQualifiedOwner ) ) ;
 		}
+		return Collections.unmodifiableSet( compartmentsOfCreatedResource ) ;
+	}
 
-		public PatientCompartmentResourceDefinition( RuntimeResourceDefinition sourceDef ) {
-			this.sourceDef = sourceDef ;
-			for( RuntimeSearchParam runtimeSearchParam : sourceDef.getSearchParamsForCompartmentName( "Patient" ) ) {
-				if ( null == runtimeSearchParam.getProvidesMembershipInCompartments() )
-					continue ;
-				if ( !runtimeSearchParam.getProvidesMembershipInCompartments().contains( "Patient" ) )
-					continue ;
-				if ( runtimeSearchParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE )
-					continue ;
-				searchParamNamesForPatientCompartment.add( runtimeSearchParam.getName() ) ;
-			}
+	@PostConstruct
+	public void initializePatientCompartmentSearchParamNames() {
+		/* the built-in search params answer until the registry is consulted once the context is refreshed */
+		this.patientCompartmentSearchParamNames = buildPatientCompartmentSearchParamNames( false ) ;
+	}
+
+	@EventListener( ContextRefreshedEvent.class )
+	public synchronized void watchSearchParameters() {
+		rebuildPatientCompartmentSearchParamNames() ;
+		if ( watchingSearchParameters )
+			return ;
+		watchingSearchParameters = true ;
+		resourceChangeListenerRegistry.registerResourceResourceChangeListener(
+			"SearchParameter",
+			SearchParameterMap.newSynchronous(),
+			searchParameterListener,
+			SEARCH_PARAMETER_REFRESH_INTERVAL_MILLIS
+		);
+	}
+
+	@PreDestroy
+	public void unwatchSearchParameters() {
+		resourceChangeListenerRegistry.unregisterResourceResourceChangeListener( searchParameterListener ) ;
+	}
+
+	/* make sure the registry has seen any change to the SearchParameter resources before the table is rebuilt from it */
+	void refreshPatientCompartmentSearchParamNames() {
+		searchParamRegistry.forceRefresh() ;
+		rebuildPatientCompartmentSearchParamNames() ;
+	}
+
+	private void rebuildPatientCompartmentSearchParamNames() {
+		this.patientCompartmentSearchParamNames = buildPatientCompartmentSearchParamNames( true ) ;
+	}
+
+	/*
+	 * compartment membership is defined by the FhirContext; the active search params in the registry
+	 * (which do not all carry their compartments) can only add to it
+	 */
+	private Map<String,Set<String>> buildPatientCompartmentSearchParamNames( boolean includeActiveSearchParams ) {
+		Map<String,Set<String>> table = new HashMap<>() ;
+		for ( String resourceType : fhirContext.getResourceTypes() ) {
+			Set<String> names = new HashSet<>() ;
+			names.addAll( patientCompartmentSearchParamNames( fhirContext.getResourceDefinition( resourceType ).getSearchParamsForCompartmentName( "Patient" ) ) ) ;
+			if ( includeActiveSearchParams )
+				names.addAll( patientCompartmentSearchParamNames( searchParamRegistry.getActiveSearchParams( resourceType ).values() ) ) ;
+			table.put( resourceType, Collections.unmodifiableSet( names ) ) ;
 		}
+		return Collections.unmodifiableMap( table ) ;
+	}
 
-		public boolean identifiesPatientCompartment( String searchParamName ) {
-			return searchParamNamesForPatientCompartment.contains( searchParamName ) ;
+	private static Set<String> patientCompartmentSearchParamNames( Collection<RuntimeSearchParam> searchParams ) {
+		Set<String> names = new HashSet<>() ;
+		for( RuntimeSearchParam runtimeSearchParam : searchParams ) {
+			if ( null == runtimeSearchParam.getProvidesMembershipInCompartments() )
+				continue ;
+			if ( !runtimeSearchParam.getProvidesMembershipInCompartments().contains( "Patient" ) )
+				continue ;
+			if ( runtimeSearchParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE )
+				continue ;
+			names.add( runtimeSearchParam.getName() ) ;
 		}
+		return names ;
+	}
+
+	private Set<String> patientCompartmentSearchParamNames( String resourceType ) {
+		return patientCompartmentSearchParamNames.getOrDefault( resourceType, Collections.emptySet() ) ;
 	}
 
 	private static boolean isResourceWrite( RequestDetails theRequestDetails ) {
@@ -158,6 +315,17 @@ public class SupplementalDataStoreResourceCreation {
 		}
 	}
 
+	private static boolean isBundleWrite( RequestDetails theRequestDetails ) {
+		switch ( theRequestDetails.getRestOperationType() ) {
+		case TRANSACTION:
+			return true ;
+		case BATCH:
+			return true ;
+		default:
+			return false ;
+		}
+	}
+
 	private IIdType patientCompartmentFromPatientId( IIdType patientId, String defaultPartitionName ) {
 		if ( !"Patient".equals(patientId.getResourceType()) )
 			throw new IllegalArgumentException( "expected a patient resource id but encountered a \"" + patientId.getResourceType() + "\"" ) ;
@@ -0,0 +1,181 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static edu.ohsu.cmp.ecp.sds.SupplementalDataStorePermissionsInterceptor.getPermissions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ParameterUtil;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
+
+/*
+ * adds the patient compartments permitted to the authorized user as a search parameter
+ * before a type-level search reaches the DAO, so that the database returns only
+ * resources in those compartments rather than every resource of the type
+ *
+ * the compartments include the patient's identities in every linked partition,
+ * since a resource in one partition may refer to the patient's identity in another
+ *
+ * only types that enter the patient compartment through a single search parameter are narrowed;
+ * a search can only constrain one parameter to the compartment, and constraining the first of several
+ * would drop the resources that belong to the patient through another, so those searches are
+ * left to the consent service until an OR across parameters can be expressed
+ *
+ * the search is not narrowed by partition: the partition interceptor already reads from the one
+ * partition named by the request, and the authorization rules permit only the patient's partitions;
+ * the reference values cover the patient's identities in each of them
+ *
+ * a search that already names a compartment parameter is left as it is;
+ * the authorization rules check those values before the search runs,
+ * and the consent service still checks every resource returned
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreSearchNarrowingInterceptor {
+
+	private static final String COMPARTMENT_NAME = "Patient" ;
+
+	@Inject
+	SupplementalDataStorePermissionsInterceptor permissionsInterceptor;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean narrowSearch(RequestDetails theRequestDetails) {
+		return metrics.timeHook( "narrowSearch", Phase.AUTHORIZATION, theRequestDetails, () -> narrowTypeSearch(theRequestDetails) ) ;
+	}
+
+	private boolean narrowTypeSearch(RequestDetails theRequestDetails) {
+		/* only type-level searches are narrowed; everything else is left to the authorization rules */
+		if ( RestOperationTypeEnum.SEARCH_TYPE != theRequestDetails.getRestOperationType() )
+			return true ;
+
+		/*
+		 * search parameters must be narrowed before the request is handled,
+		 * so the permissions are identified now rather than when the request is pre-handled
+		 */
+		permissionsInterceptor.identifyPermissions(theRequestDetails);
+
+		Optional<UserIdentity> patientIdentity = permittedPatient( getPermissions(theRequestDetails) ) ;
+		if ( !patientIdentity.isPresent() )
+			return true ;
+
+		String resourceType = theRequestDetails.getResourceName() ;
+		List<String> compartmentParamNames = compartmentParamNames( theRequestDetails, resourceType ) ;
+
+		/* return early, resources of this type are not in the patient compartment */
+		if ( compartmentParamNames.isEmpty() )
+			return true ;
+
+		/* return early, the search is already constrained to particular compartments */
+		if ( compartmentParamNames.stream().anyMatch( p -> hasParameter( theRequestDetails, p ) ) )
+			return true ;
+
+		/* return early, resources of this type may belong to the patient through any of several parameters */
+		if ( compartmentParamNames.size() > 1 )
+			return true ;
+
+		Set<String> compartmentValues =
+			COMPARTMENT_NAME.equals( resourceType )
+				? patientIdParts( patientIdentity.get() )
+				: patientReferences( patientIdentity.get() )
+				;
+
+		/* return early, there is no patient identity to narrow the search to */
+		if ( compartmentValues.isEmpty() )
+			return true ;
+
+		Map<String, String[]> parameters = new HashMap<>( theRequestDetails.getParameters() ) ;
+		parameters.put( compartmentParamNames.get(0), new String[] { ParameterUtil.escapeAndJoinOrList( compartmentValues ) } ) ;
+		theRequestDetails.setParameters( parameters ) ;
+
+		return true ;
+	}
+
+	private Optional<UserIdentity> permittedPatient( Permissions permissions ) {
+		if ( null == permissions )
+			return Optional.empty() ;
+
+		/* a practitioner without patient context may read any patient, so there is nothing to narrow to */
+		if ( permissions.readAllPatients().isPresent() )
+			return Optional.empty() ;
+
+		if ( permissions.readSpecificPatient().isPresent() )
+			return permissions.readSpecificPatient().map( Permissions.ReadSpecificPatient::patientId ) ;
+
+		return permissions.readAndWriteSpecificPatient().map( Permissions.ReadAndWriteSpecificPatient::patientId ) ;
+	}
+
+	/*
+	 * names of the search parameters that place resources of the type in the patient compartment
+	 */
+	private List<String> compartmentParamNames( RequestDetails theRequestDetails, String resourceType ) {
+		List<String> paramNames = new ArrayList<>() ;
+		if ( COMPARTMENT_NAME.equals( resourceType ) ) {
+			paramNames.add( "_id" ) ;
+			return paramNames ;
+		}
+
+		RuntimeResourceDefinition resourceDef = theRequestDetails.getFhirContext().getResourceDefinition( resourceType ) ;
+		List<RuntimeSearchParam> compartmentParams = resourceDef.getSearchParamsForCompartmentName( COMPARTMENT_NAME ) ;
+		if ( null == compartmentParams )
+			return paramNames ;
+
+		for ( RuntimeSearchParam compartmentParam : compartmentParams ) {
+			if ( !paramNames.contains( compartmentParam.getName() ) )
+				paramNames.add( compartmentParam.getName() ) ;
+		}
+		return paramNames ;
+	}
+
+	private static boolean hasParameter( RequestDetails theRequestDetails, String paramName ) {
+		for ( String requestParamName : theRequestDetails.getParameters().keySet() ) {
+			/* a modifier such as ":Patient" or ":mdm" still constrains the parameter, but a chain does not */
+			String baseParamName = requestParamName.split( ":", 2 )[0] ;
+			if ( paramName.equals( baseParamName ) && !requestParamName.contains( "." ) )
+				return true ;
+		}
+		return false ;
+	}
+
+	private static Set<String> patientIdParts( UserIdentity patientIdentity ) {
+		Set<String> idParts = new LinkedHashSet<>() ;
+		patientIdentity.localUserId().ifPresent( id -> idParts.add( id.getIdPart() ) ) ;
+		for ( IIdType nonLocalPatientId : patientIdentity.nonLocalUserIds() )
+			idParts.add( nonLocalPatientId.getIdPart() ) ;
+		return idParts ;
+	}
+
+	/* references to each of the patient's identities, both as they are qualified and unqualified */
+	private static Set<String> patientReferences( UserIdentity patientIdentity ) {
+		Set<String> references = new LinkedHashSet<>() ;
+		patientIdentity.localUserId().ifPresent( id -> addReferences( references, id ) ) ;
+		for ( IIdType nonLocalPatientId : patientIdentity.nonLocalUserIds() )
+			addReferences( references, nonLocalPatientId ) ;
+		return references ;
+	}
+
+	private static void addReferences( Set<String> references, IIdType patientId ) {
+		references.add( patientId.toUnqualifiedVersionless().getValue() ) ;
+		if ( patientId.hasBaseUrl() )
+			references.add( patientId.toVersionless().getValue() ) ;
+	}
+}
@@ -0,0 +1,114 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
+import edu.ohsu.cmp.ecp.security.ApplicationOpaqueTokenIntrospector;
+
+/*
+ * reports where a sampled request spent its time:
+ *   as a Server-Timing response header, with the phases completed before the response is written
+ *   as a log line once the request completes, which adds the serialization of the response and the total
+ *
+ * the phases overlap: the dao phase runs from the handling of the request to its response,
+ * and includes the partition, linkage and authorization work done by the storage hooks along the way
+ *
+ * registered only when sds.server-timing.enabled is set
+ */
+@Interceptor
+@Component
+public class SupplementalDataStoreServerTimingInterceptor {
+
+	public static final String HEADER_SERVER_TIMING = "Server-Timing";
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	private org.slf4j.Logger timingLog;
+
+	@PostConstruct
+	public void createTimingLog() {
+		timingLog = org.slf4j.LoggerFactory.getLogger( sdsProperties.getServerTiming().getLoggerName() ) ;
+	}
+
+	private boolean sampled() {
+		double sampleRate = sdsProperties.getServerTiming().getSampleRate() ;
+		if ( sampleRate >= 1.0 )
+			return true ;
+		if ( sampleRate <= 0.0 )
+			return false ;
+		return ThreadLocalRandom.current().nextDouble() < sampleRate ;
+	}
+
+	/* before the permissions are resolved */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MIN_VALUE)
+	public void startTiming(HttpServletRequest theServletRequest) {
+		SdsRequestTiming.clear() ;
+		if ( !sampled() )
+			return ;
+
+		SdsRequestTiming timing = SdsRequestTiming.start() ;
+
+		/* the token was introspected by the security filters, before the request reached the server */
+		Object introspectionNanos = theServletRequest.getAttribute( ApplicationOpaqueTokenIntrospector.REQUEST_ATTR_INTROSPECTION_NANOS ) ;
+		if ( introspectionNanos instanceof Long )
+			timing.record( Phase.INTROSPECTION, (Long)introspectionNanos ) ;
+	}
+
+	/* after the permissions are resolved and the incoming request is authorized */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED, order = Integer.MAX_VALUE)
+	public void startHandling() {
+		SdsRequestTiming.enter( Phase.DAO ) ;
+	}
+
+	/* before the outgoing response is authorized */
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MIN_VALUE)
+	public void finishHandling() {
+		SdsRequestTiming.exit( Phase.DAO ) ;
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MAX_VALUE)
+	public void addServerTimingHeader(HttpServletResponse theServletResponse) {
+		SdsRequestTiming timing = SdsRequestTiming.current() ;
+		if ( null == timing )
+			return ;
+		if ( null != theServletResponse && !theServletResponse.isCommitted() )
+			theServletResponse.addHeader( HEADER_SERVER_TIMING, timing.serverTimingHeader() ) ;
+		timing.enterPhase( Phase.SERIALIZATION ) ;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void logTiming(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		SdsRequestTiming timing = SdsRequestTiming.current() ;
+		if ( null == timing )
+			return ;
+		SdsRequestTiming.clear() ;
+
+		/* a request that failed may not have reached its response */
+		timing.exitPhase( Phase.DAO ) ;
+		timing.exitPhase( Phase.SERIALIZATION ) ;
+
+		if ( !timingLog.isInfoEnabled() )
+			return ;
+		timingLog.info(
+			"Operation[{} {}] Status[{}] Timing[total={} {}]",
+			null != theRequestDetails.getRestOperationType() ? theRequestDetails.getRestOperationType().getCode() : "",
+			null != theRequestDetails.getId() ? theRequestDetails.getId().getValue() : theRequestDetails.getResourceName(),
+			null != theServletRequestDetails && null != theServletRequestDetails.getServletResponse() ? theServletRequestDetails.getServletResponse().getStatus() : "",
+			theRequestDetails.getRequestStopwatch().getMillis(),
+			timing.logFields()
+			);
+	}
+}
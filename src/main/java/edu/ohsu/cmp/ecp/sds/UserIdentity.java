@@ -53,6 +53,19 @@ public final class UserIdentity {
 		return new UserIdentity( basisUserId, localUserId, expandedNonLocalUserIds );
 	}
 
+	/*
+	 * a stable description of the identity, the same for any two identities with the same ids
+	 * in whatever order the non-local ids were found
+	 */
+	public String fingerprint() {
+		return String.join(
+			"|",
+			userResourceType,
+			localUserId.map( id -> id.toVersionless().getValue() ).orElse( "" ),
+			nonLocalUserIds.stream().map( id -> id.toVersionless().getValue() ).sorted().collect( joining(",") )
+			);
+	}
+
 	private String userIdToString( IIdType userId ) {
 		String format ;
 		if ( userId.hasBaseUrl() ) {
@@ -1,9 +1,12 @@
 package edu.ohsu.cmp.ecp.sds.base;
 
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.function.Function;
 
 import org.hl7.fhir.instance.model.api.IBaseReference;
@@ -11,8 +14,8 @@ import org.hl7.fhir.instance.model.api.IIdType;
 
 public class FhirResourceComparison {
 
-	private static final Comparison<IBaseReference> REFERENCES = new ComparisonImpl<>( new ReferenceComparator() );
-	private static final Comparison<IIdType> IDTYPES = new ComparisonImpl<>( new IdTypeComparator() );
+	private static final Comparison<IBaseReference> REFERENCES = new ComparisonImpl<>( new ReferenceComparator(), IBaseReference.class, ref -> SdsResourceKey.of( ref.getReferenceElement() ) );
+	private static final Comparison<IIdType> IDTYPES = new ComparisonImpl<>( new IdTypeComparator(), IIdType.class, SdsResourceKey::of );
 
 	public static <T extends IBaseReference> Comparison<T> references() { return (Comparison<T>)REFERENCES ; }
 	public static <T extends IIdType> Comparison<T> idTypes() { return (Comparison<T>)IDTYPES ; }
@@ -24,11 +27,20 @@ public class FhirResourceComparison {
 		<U> Set<T> createSet( Collection<? extends U> c, Function<U,T> f ) ;
 	}
 	
+	/*
+	 * sets are hashed on an SdsResourceKey for each member, which matches members by the same rules as the comparator
+	 */
 	private static class ComparisonImpl<T> implements Comparison<T> {
 		private final Comparator<T> comparator ;
-		public ComparisonImpl( Comparator<T> comparator ) { this.comparator = comparator ; }
+		private final Class<?> memberType ;
+		private final Function<T,SdsResourceKey> keyFunction ;
+		public ComparisonImpl( Comparator<T> comparator, Class<?> memberType, Function<T,SdsResourceKey> keyFunction ) {
+			this.comparator = comparator ;
+			this.memberType = memberType ;
+			this.keyFunction = keyFunction ;
+		}
 		public Comparator<T> comparator() { return comparator ; }
-		public Set<T> createSet() { return new TreeSet<>( comparator ) ; }
+		public Set<T> createSet() { return new ResourceKeyedSet<>( memberType, keyFunction ) ; }
 		public Set<T> createSet( Collection<? extends T> c ) {
 			Set<T> set = createSet() ;
 			set.addAll( c );
@@ -41,6 +53,57 @@ public class FhirResourceComparison {
 		}
 		
 	}
+
+	/*
+	 * like a TreeSet built on the comparator, a member that matches one already present is not added
+	 */
+	private static class ResourceKeyedSet<T> extends AbstractSet<T> {
+		private final Class<?> memberType ;
+		private final Function<T,SdsResourceKey> keyFunction ;
+		private final Map<SdsResourceKey,T> members = new LinkedHashMap<>() ;
+
+		public ResourceKeyedSet( Class<?> memberType, Function<T,SdsResourceKey> keyFunction ) {
+			this.memberType = memberType ;
+			this.keyFunction = keyFunction ;
+		}
+
+		@SuppressWarnings("unchecked")
+		private SdsResourceKey keyOf( Object o ) {
+			return memberType.isInstance( o ) ? keyFunction.apply( (T)o ) : null ;
+		}
+
+		@Override
+		public boolean add( T member ) {
+			return null == members.putIfAbsent( keyFunction.apply( member ), member ) ;
+		}
+
+		@Override
+		public boolean contains( Object o ) {
+			SdsResourceKey key = keyOf( o ) ;
+			return null != key && members.containsKey( key ) ;
+		}
+
+		@Override
+		public boolean remove( Object o ) {
+			SdsResourceKey key = keyOf( o ) ;
+			return null != key && null != members.remove( key ) ;
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return members.values().iterator() ;
+		}
+
+		@Override
+		public int size() {
+			return members.size() ;
+		}
+
+		@Override
+		public void clear() {
+			members.clear() ;
+		}
+	}
 	
 	private static class ReferenceComparator implements Comparator<IBaseReference> { 
 		@Override
@@ -0,0 +1,91 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+
+/*
+ * one link from a local user to a non-local user, as recorded by a Linkage resource in the local partition
+ *
+ * a Linkage with one SOURCE item and one ALTERNATE item is indexed as a single row;
+ * rows are replaced whenever the Linkage is written and removed when it is deleted or expunged
+ */
+@Entity
+@Table(
+	name = "SDS_IDENTITY_LINK",
+	indexes = {
+		@Index( name = "IDX_SDS_IDLINK_LOCAL", columnList = "LOCAL_ID, LINK_TYPE" ),
+		@Index( name = "IDX_SDS_IDLINK_NONLOCAL", columnList = "NONLOCAL_ID, LINK_TYPE" ),
+		@Index( name = "IDX_SDS_IDLINK_LINKAGE", columnList = "LINKAGE_ID" )
+	}
+)
+public class IdentityLink {
+
+	public static final int MAX_ID_LENGTH = 300 ;
+
+	@Id
+	@SequenceGenerator( name = "SEQ_SDS_IDLINK_PID", sequenceName = "SEQ_SDS_IDLINK_PID" )
+	@GeneratedValue( strategy = GenerationType.SEQUENCE, generator = "SEQ_SDS_IDLINK_PID" )
+	@Column( name = "PID" )
+	private Long pid ;
+
+	/* the id part of the Linkage resource that records this link */
+	@Column( name = "LINKAGE_ID", length = 100, nullable = false )
+	private String linkageId ;
+
+	/* the unqualified, versionless local user id, e.g. "Patient/123" */
+	@Column( name = "LOCAL_ID", length = MAX_ID_LENGTH, nullable = false )
+	private String localId ;
+
+	/* the partition name of the non-local user, exactly as recorded on the Linkage */
+	@Column( name = "NONLOCAL_PARTITION", length = MAX_ID_LENGTH, nullable = false )
+	private String nonLocalPartition ;
+
+	/* the fully qualified, versionless non-local user id, e.g. "http://my.ehr.org/fhir/R4/Patient/abc" */
+	@Column( name = "NONLOCAL_ID", length = MAX_ID_LENGTH, nullable = false )
+	private String nonLocalId ;
+
+	/* the Linkage item type of the non-local user, e.g. "alternate" */
+	@Column( name = "LINK_TYPE", length = 20, nullable = false )
+	private String linkType ;
+
+	protected IdentityLink() {
+	}
+
+	public IdentityLink( String linkageId, String localId, String nonLocalPartition, String nonLocalId, String linkType ) {
+		this.linkageId = linkageId ;
+		this.localId = localId ;
+		this.nonLocalPartition = nonLocalPartition ;
+		this.nonLocalId = nonLocalId ;
+		this.linkType = linkType ;
+	}
+
+	public Long getPid() {
+		return pid;
+	}
+
+	public String getLinkageId() {
+		return linkageId;
+	}
+
+	public String getLocalId() {
+		return localId;
+	}
+
+	public String getNonLocalPartition() {
+		return nonLocalPartition;
+	}
+
+	public String getNonLocalId() {
+		return nonLocalId;
+	}
+
+	public String getLinkType() {
+		return linkType;
+	}
+}
@@ -0,0 +1,141 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.IResourcePersistentId;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+
+/*
+ * populates the identity link index from the Linkage resources already stored in the local partition
+ *
+ * runs once in the background after startup; until it completes, linkage lookups fall back to searching Linkage resources.
+ * Linkage writes made meanwhile are indexed by the storage hooks; each Linkage is locked before its links are replaced,
+ * so a concurrent write of the same Linkage waits for the backfill (or the backfill for it) and its rows are never duplicated
+ *
+ * a Linkage deleted since it was listed is skipped; any other Linkage that cannot be indexed is logged and skipped,
+ * and leaves the index FAILED rather than READY
+ */
+@Component
+public class IdentityLinkBackfill {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(IdentityLinkBackfill.class);
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	SupplementalDataStoreLinkageBase linkage;
+
+	@Inject
+	IdentityLinkIndex identityLinks;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@Inject
+	PlatformTransactionManager txManager;
+
+	@PersistenceContext
+	EntityManager entityManager;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void backfillInBackground() {
+		if ( !sdsProperties.getIdentityLinks().getEnabled() )
+			return ;
+		Thread backfill = new Thread( this::backfill, "sds-identity-link-backfill" ) ;
+		backfill.setDaemon( true ) ;
+		backfill.start() ;
+	}
+
+	public int backfill() {
+		if ( !daoRegistry.isResourceTypeSupported( "Linkage" ) ) {
+			identityLinks.markReady() ;
+			return 0 ;
+		}
+
+		List<IResourcePersistentId> linkagePids ;
+		try {
+			IFhirResourceDao<?> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+			linkagePids = new TransactionTemplate( txManager ).execute( s -> daoLinkage.searchForIds( new SearchParameterMap().setLoadSynchronous( true ), localPartitionRequest() ) ) ;
+		} catch ( RuntimeException ex ) {
+			identityLinks.markFailed() ;
+			ourLog.error( "failed to list the Linkage resources to index; linkage lookups will keep searching Linkage resources", ex ) ;
+			return 0 ;
+		}
+		return backfill( linkagePids ) ;
+	}
+
+	/*
+	 * indexes the listed Linkage resources a batch at a time,
+	 * retrying a failed batch one Linkage at a time so that one bad Linkage does not hold back the others
+	 */
+	public int backfill( List<IResourcePersistentId> linkagePids ) {
+		int failures = 0 ;
+		boolean completed = false ;
+		try {
+			TransactionTemplate tx = new TransactionTemplate( txManager ) ;
+			int batchSize = Math.max( 1, sdsProperties.getIdentityLinks().getBackfillBatchSize() ) ;
+			for ( int from = 0 ; from < linkagePids.size() ; from += batchSize ) {
+				List<IResourcePersistentId> batch = linkagePids.subList( from, Math.min( from + batchSize, linkagePids.size() ) ) ;
+				try {
+					tx.executeWithoutResult( s -> batch.forEach( this::indexLinkage ) ) ;
+				} catch ( RuntimeException batchEx ) {
+					for ( IResourcePersistentId pid : batch ) {
+						try {
+							tx.executeWithoutResult( s -> indexLinkage( pid ) ) ;
+						} catch ( RuntimeException ex ) {
+							++failures ;
+							ourLog.warn( "failed to index the identity links of Linkage " + pid, ex ) ;
+						}
+					}
+				}
+			}
+			completed = true ;
+		} finally {
+			if ( completed && 0 == failures )
+				identityLinks.markReady() ;
+			else
+				identityLinks.markFailed() ;
+		}
+
+		if ( 0 == failures )
+			ourLog.info( "indexed identity links from {} Linkage resources", linkagePids.size() ) ;
+		else
+			ourLog.error( "failed to index {} of {} Linkage resources; linkage lookups will keep searching Linkage resources", failures, linkagePids.size() ) ;
+		return linkagePids.size() - failures ;
+	}
+
+	private void indexLinkage( IResourcePersistentId pid ) {
+		/* waits for any transaction writing the Linkage, and reads the Linkage as that transaction left it */
+		ResourceTable linkageEntity = entityManager.find( ResourceTable.class, pid.getId(), LockModeType.PESSIMISTIC_WRITE ) ;
+		if ( null == linkageEntity || null != linkageEntity.getDeleted() ) {
+			ourLog.debug( "skipped Linkage {}; it was deleted after the Linkage resources were listed", pid ) ;
+			return ;
+		}
+		IBaseResource linkageResource = daoRegistry.getResourceDao( "Linkage" ).readByPid( pid ) ;
+		linkage.indexLinkage( linkageResource ) ;
+	}
+
+	private SystemRequestDetails localPartitionRequest() {
+		SystemRequestDetails localPartitionRequest = new SystemRequestDetails() ;
+		localPartitionRequest.setRequestPartitionId( RequestPartitionId.fromPartitionName( sdsProperties.getPartition().getLocalName() ) ) ;
+		return localPartitionRequest ;
+	}
+}
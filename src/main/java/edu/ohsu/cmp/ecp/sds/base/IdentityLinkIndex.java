@@ -0,0 +1,164 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+/*
+ * the SDS_IDENTITY_LINK table, which answers the linkage lookups with a single indexed query
+ * instead of a search over Linkage resources
+ *
+ * writes must be made inside the transaction that writes the Linkage;
+ * reads are only trusted once the index is ready, i.e. after the backfill from existing Linkage resources
+ */
+@Component
+public class IdentityLinkIndex {
+
+	public static final String LINK_TYPE_ALTERNATE = "alternate" ;
+
+	@PersistenceContext
+	EntityManager entityManager;
+
+	/*
+	 * BUILDING until the backfill finishes; FAILED when the backfill could not index every Linkage,
+	 * in which case the lookups keep searching Linkage resources
+	 */
+	public enum State {
+		BUILDING,
+		READY,
+		FAILED
+	}
+
+	private volatile State state = State.BUILDING ;
+
+	public State state() {
+		return state ;
+	}
+
+	public boolean isReady() {
+		return State.READY == state ;
+	}
+
+	public void markReady() {
+		state = State.READY ;
+	}
+
+	public void markFailed() {
+		state = State.FAILED ;
+	}
+
+	/*
+	 * local user ids are matched without base url or version, as the Linkage search does
+	 */
+	public static String localIdKey( IIdType localId ) {
+		return localId.toUnqualifiedVersionless().getValue() ;
+	}
+
+	/*
+	 * non-local user ids are matched with their base url, as the Linkage search does
+	 */
+	public static String nonLocalIdKey( IIdType nonLocalId ) {
+		return nonLocalId.toVersionless().getValue() ;
+	}
+
+	public List<IdentityLink> linksFromLocal( IIdType localId, String linkType ) {
+		return entityManager
+			.createQuery( "SELECT l FROM IdentityLink l WHERE l.localId = :localId AND l.linkType = :linkType", IdentityLink.class )
+			.setParameter( "localId", localIdKey( localId ) )
+			.setParameter( "linkType", linkType )
+			.getResultList()
+			;
+	}
+
+	public List<IdentityLink> linksToNonLocal( IIdType nonLocalId, String linkType ) {
+		return entityManager
+			.createQuery( "SELECT l FROM IdentityLink l WHERE l.nonLocalId = :nonLocalId AND l.linkType = :linkType", IdentityLink.class )
+			.setParameter( "nonLocalId", nonLocalIdKey( nonLocalId ) )
+			.setParameter( "linkType", linkType )
+			.getResultList()
+			;
+	}
+
+	/*
+	 * the pending write of the Linkage itself is flushed first, so that its resource row is locked before its link rows;
+	 * the backfill locks them in the same order, so the two never interleave their rows for the same Linkage
+	 */
+	@Transactional
+	public void replaceLinks( String linkageId, Collection<IdentityLink> links ) {
+		entityManager.flush() ;
+		releaseClaims( List.of( linkageId ), links ) ;
+		deleteLinks( List.of( linkageId ) ) ;
+		for ( IdentityLink link : links )
+			entityManager.persist( link ) ;
+	}
+
+	/*
+	 * records that the local user was created for the non-local user, in the transaction that creates them
+	 *
+	 * fails when another transaction has already claimed the non-local user, so that its local user and Linkage are rolled back;
+	 * the client may simply retry, and will then find the local user created by the other transaction
+	 */
+	@Transactional
+	public void claimLocalUser( IIdType nonLocalId, IIdType localId ) {
+		try {
+			entityManager.persist( new LocalUserClaim( nonLocalIdKey( nonLocalId ), localIdKey( localId ) ) ) ;
+			entityManager.flush() ;
+		} catch ( PersistenceException | DataIntegrityViolationException ex ) {
+			throw new ResourceVersionConflictException( "a local user was created concurrently for \"" + nonLocalIdKey( nonLocalId ) + "\"; retry the request" ) ;
+		}
+	}
+
+	/*
+	 * a claim is released along with the link it guards, unless the rewritten Linkage retains that link
+	 */
+	private void releaseClaims( Collection<String> linkageIds, Collection<IdentityLink> retainedLinks ) {
+		List<IdentityLink> links =
+			entityManager
+				.createQuery( "SELECT l FROM IdentityLink l WHERE l.linkageId IN (:linkageIds)", IdentityLink.class )
+				.setParameter( "linkageIds", linkageIds )
+				.getResultList()
+				;
+		for ( IdentityLink link : links ) {
+			if ( retainedLinks.stream().anyMatch( r -> r.getNonLocalId().equals( link.getNonLocalId() ) && r.getLocalId().equals( link.getLocalId() ) ) )
+				continue ;
+			entityManager
+				.createQuery( "DELETE FROM LocalUserClaim c WHERE c.nonLocalId = :nonLocalId AND c.localId = :localId" )
+				.setParameter( "nonLocalId", link.getNonLocalId() )
+				.setParameter( "localId", link.getLocalId() )
+				.executeUpdate()
+				;
+		}
+	}
+
+	@Transactional
+	public void removeLinks( Collection<String> linkageIds ) {
+		if ( linkageIds.isEmpty() )
+			return ;
+		releaseClaims( linkageIds, List.of() ) ;
+		deleteLinks( linkageIds ) ;
+	}
+
+	private void deleteLinks( Collection<String> linkageIds ) {
+		entityManager
+			.createQuery( "DELETE FROM IdentityLink l WHERE l.linkageId IN (:linkageIds)" )
+			.setParameter( "linkageIds", linkageIds )
+			.executeUpdate()
+			;
+	}
+
+	@Transactional
+	public void removeAll() {
+		entityManager.createQuery( "DELETE FROM LocalUserClaim c" ).executeUpdate() ;
+		entityManager.createQuery( "DELETE FROM IdentityLink l" ).executeUpdate() ;
+	}
+}
@@ -0,0 +1,54 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/*
+ * the record that an SDS index was completely built from the resources already stored
+ *
+ * a row is only written once the build has finished, so a node that crashed or is still building leaves none,
+ * and the next node to start builds the index again; the definition identifies what was indexed,
+ * so a changed index definition is not mistaken for a completed one
+ */
+@Entity
+@Table( name = "SDS_INDEX_COMPLETION" )
+public class IndexCompletion {
+
+	@Id
+	@Column( name = "INDEX_NAME", length = 100 )
+	private String indexName ;
+
+	@Column( name = "DEFINITION", length = 100, nullable = false )
+	private String definition ;
+
+	@Temporal( TemporalType.TIMESTAMP )
+	@Column( name = "COMPLETED", nullable = false )
+	private Date completed ;
+
+	protected IndexCompletion() {
+	}
+
+	public IndexCompletion( String indexName, String definition, Date completed ) {
+		this.indexName = indexName ;
+		this.definition = definition ;
+		this.completed = completed ;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public String getDefinition() {
+		return definition;
+	}
+
+	public Date getCompleted() {
+		return completed;
+	}
+}
@@ -0,0 +1,113 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.context.FhirContext;
+
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+
+/*
+ * remembers the outcome of the two Linkage searches made on behalf of nearly every request:
+ *   the local user linked from a non-local user ( lookupLocalUserFor )
+ *   the non-local patients linked to a local patient ( patientsLinkedTo )
+ *
+ * entries are invalidated by the items of each Linkage that is written,
+ * and expire after a ttl as a safety net for writes that bypass the storage hooks
+ *
+ * ids and references are mutable, so the cached ones are never handed out;
+ * every caller gets its own copies
+ */
+public class LinkageIdentityCache {
+
+	private final boolean enabled ;
+	private final FhirContext fhirContext ;
+	private final Cache<String,Optional<IIdType>> localUserByNonLocalUser ;
+	private final Cache<String,Set<? extends IBaseReference>> linkedPatientsByLocalPatient ;
+
+	public LinkageIdentityCache( SupplementalDataStoreProperties.IdentityCache properties, FhirContext fhirContext ) {
+		this.enabled = properties.getEnabled() ;
+		this.fhirContext = fhirContext ;
+		this.localUserByNonLocalUser =
+			Caffeine.newBuilder()
+				.maximumSize( properties.getMaximumSize() )
+				.expireAfterWrite( properties.getTtl() )
+				.build()
+				;
+		this.linkedPatientsByLocalPatient =
+			Caffeine.newBuilder()
+				.maximumSize( properties.getMaximumSize() )
+				.expireAfterWrite( properties.getTtl() )
+				.build()
+				;
+	}
+
+	/*
+	 * non-local user ids are matched exactly, as the Linkage search does
+	 */
+	private static String nonLocalUserKey( IIdType nonLocalUserId ) {
+		return nonLocalUserId.getValue() ;
+	}
+
+	/*
+	 * local patient ids are matched without base url or version, as the Linkage search does
+	 */
+	private static String localPatientKey( IIdType localPatientId ) {
+		return localPatientId.toUnqualifiedVersionless().getValue() ;
+	}
+
+	public Optional<IIdType> localUserFor( IIdType nonLocalUserId, Supplier<Optional<IIdType>> lookup ) {
+		if ( !enabled )
+			return lookup.get() ;
+		return localUserByNonLocalUser.get( nonLocalUserKey(nonLocalUserId), k -> lookup.get() ).map( this::copyOf ) ;
+	}
+
+	public Set<? extends IBaseReference> patientsLinkedTo( IIdType localPatientId, Supplier<Set<? extends IBaseReference>> lookup ) {
+		if ( !enabled )
+			return lookup.get() ;
+		Set<? extends IBaseReference> linkedPatients = linkedPatientsByLocalPatient.get( localPatientKey(localPatientId), k -> lookup.get() ) ;
+		Set<IBaseReference> copies = new LinkedHashSet<>() ;
+		for ( IBaseReference linkedPatient : linkedPatients )
+			copies.add( copyOf( linkedPatient ) ) ;
+		return Collections.unmodifiableSet( copies ) ;
+	}
+
+	private IIdType copyOf( IIdType id ) {
+		IIdType copy = fhirContext.getVersion().newIdType() ;
+		copy.setValue( id.getValue() ) ;
+		return copy ;
+	}
+
+	/* a deep copy, so the partition-name extension of a non-local reference is copied too */
+	private IBaseReference copyOf( IBaseReference reference ) {
+		IBaseReference copy = (IBaseReference)fhirContext.getElementDefinition( reference.getClass() ).newInstance() ;
+		fhirContext.newTerser().cloneInto( reference, copy, false ) ;
+		return copy ;
+	}
+
+	public void invalidate( Collection<? extends IBaseReference> sourceRefs, Collection<? extends IBaseReference> alternateRefs ) {
+		for ( IBaseReference sourceRef : sourceRefs ) {
+			if ( null != sourceRef.getReferenceElement() && sourceRef.getReferenceElement().hasIdPart() )
+				linkedPatientsByLocalPatient.invalidate( localPatientKey( sourceRef.getReferenceElement() ) ) ;
+		}
+		for ( IBaseReference alternateRef : alternateRefs ) {
+			if ( null != alternateRef.getReferenceElement() && alternateRef.getReferenceElement().hasIdPart() )
+				localUserByNonLocalUser.invalidate( nonLocalUserKey( alternateRef.getReferenceElement() ) ) ;
+		}
+	}
+
+	public void invalidateAll() {
+		localUserByNonLocalUser.invalidateAll() ;
+		linkedPatientsByLocalPatient.invalidateAll() ;
+	}
+}
@@ -0,0 +1,206 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.api.dao.ReindexParameters;
+import ca.uhn.fhir.jpa.api.model.DaoMethodOutcome;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.IResourcePersistentId;
+import ca.uhn.fhir.rest.api.server.storage.TransactionDetails;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
+
+/*
+ * search parameters that index the Linkage item references of a single item type,
+ * so that linkage lookups match SOURCE or ALTERNATE items in the database
+ * instead of matching any item and filtering the results afterwards
+ *
+ * installed in the background after startup; until they are active and the existing Linkage resources have been reindexed,
+ * linkage lookups fall back to the standard "item" and "source" search parameters
+ *
+ * the completion of the reindex is recorded in the database, so that a node restarting after a crash mid-reindex,
+ * or starting while another node is still reindexing, reindexes again instead of trusting a partial index
+ */
+@Component
+public class LinkageSearchParameters {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(LinkageSearchParameters.class);
+
+	public static final String SP_LINKAGE_SOURCE = "sds-linkage-source" ;
+	public static final String SP_LINKAGE_ALTERNATE = "sds-linkage-alternate" ;
+
+	private static final String REINDEX_NAME = "linkage-search-parameters" ;
+
+	private static final String SEARCH_PARAMETER_TEMPLATE =
+		"{"
+		+ "\"resourceType\":\"SearchParameter\","
+		+ "\"id\":\"%1$s\","
+		+ "\"url\":\"urn:sds:search-parameter:%1$s\","
+		+ "\"name\":\"%1$s\","
+		+ "\"status\":\"active\","
+		+ "\"description\":\"Linkage items of type %2$s that refer to the given resource\","
+		+ "\"code\":\"%1$s\","
+		+ "\"base\":[\"Linkage\"],"
+		+ "\"type\":\"reference\","
+		+ "\"expression\":\"Linkage.item.where(type='%2$s').resource\""
+		+ "}"
+		;
+
+	@Inject
+	SupplementalDataStoreProperties sdsProperties;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@Inject
+	ISearchParamRegistry searchParamRegistry;
+
+	@Inject
+	PlatformTransactionManager txManager;
+
+	@PersistenceContext
+	EntityManager entityManager;
+
+	private volatile boolean ready = false ;
+
+	public boolean isReady() {
+		return ready ;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void installInBackground() {
+		Thread install = new Thread( this::install, "sds-linkage-search-parameters" ) ;
+		install.setDaemon( true ) ;
+		install.start() ;
+	}
+
+	/* synchronized so that an install called while the startup install is still running waits for it */
+	public synchronized void install() {
+		if ( !daoRegistry.isResourceTypeSupported( "Linkage" ) || !daoRegistry.isResourceTypeSupported( "SearchParameter" ) )
+			return ;
+
+		boolean changed = false ;
+		changed |= installSearchParameter( SP_LINKAGE_SOURCE, "source" ) ;
+		changed |= installSearchParameter( SP_LINKAGE_ALTERNATE, "alternate" ) ;
+
+		searchParamRegistry.forceRefresh() ;
+		if ( null == searchParamRegistry.getActiveSearchParam( "Linkage", SP_LINKAGE_SOURCE ) || null == searchParamRegistry.getActiveSearchParam( "Linkage", SP_LINKAGE_ALTERNATE ) ) {
+			ourLog.warn( "linkage search parameters are not active; linkage lookups will filter item types after searching" ) ;
+			return ;
+		}
+
+		String definition = reindexDefinition() ;
+		if ( changed ) {
+			ready = false ;
+			forgetReindexCompletion() ;
+		}
+
+		if ( !isReindexCompleted( definition ) ) {
+			try {
+				reindexLinkageResources() ;
+			} catch ( RuntimeException ex ) {
+				ourLog.error( "failed to reindex Linkage resources for the linkage search parameters; linkage lookups will filter item types after searching", ex ) ;
+				return ;
+			}
+			recordReindexCompletion( definition ) ;
+		}
+
+		ready = true ;
+	}
+
+	/*
+	 * identifies the search parameter definitions the Linkage resources were reindexed for
+	 */
+	private static String reindexDefinition() {
+		String definitions = String.format( SEARCH_PARAMETER_TEMPLATE, SP_LINKAGE_SOURCE, "source" ) + String.format( SEARCH_PARAMETER_TEMPLATE, SP_LINKAGE_ALTERNATE, "alternate" ) ;
+		return Integer.toHexString( definitions.hashCode() ) ;
+	}
+
+	public boolean isReindexCompleted() {
+		return isReindexCompleted( reindexDefinition() ) ;
+	}
+
+	private boolean isReindexCompleted( String definition ) {
+		TransactionTemplate tx = new TransactionTemplate( txManager ) ;
+		IndexCompletion completion = tx.execute( s -> entityManager.find( IndexCompletion.class, REINDEX_NAME ) ) ;
+		return null != completion && definition.equals( completion.getDefinition() ) ;
+	}
+
+	public void forgetReindexCompletion() {
+		TransactionTemplate tx = new TransactionTemplate( txManager ) ;
+		tx.executeWithoutResult( s -> {
+			entityManager
+				.createQuery( "DELETE FROM IndexCompletion c WHERE c.indexName = :indexName" )
+				.setParameter( "indexName", REINDEX_NAME )
+				.executeUpdate()
+				;
+		});
+	}
+
+	private void recordReindexCompletion( String definition ) {
+		TransactionTemplate tx = new TransactionTemplate( txManager ) ;
+		try {
+			tx.executeWithoutResult( s -> entityManager.merge( new IndexCompletion( REINDEX_NAME, definition, new Date() ) ) ) ;
+		} catch ( DataIntegrityViolationException ex ) {
+			/* another node finished reindexing at the same moment and recorded it first */
+			ourLog.debug( "completion of the Linkage reindex was recorded concurrently", ex ) ;
+		}
+	}
+
+	private boolean installSearchParameter( String code, String itemType ) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<IBaseResource> daoSearchParameter = daoRegistry.getResourceDao( "SearchParameter" ) ;
+		IBaseResource searchParameter = fhirContext.newJsonParser().parseResource( String.format( SEARCH_PARAMETER_TEMPLATE, code, itemType ) ) ;
+		/* search parameters are not partitionable, and are always stored in the default partition */
+		SystemRequestDetails defaultPartitionRequest = new SystemRequestDetails() ;
+		defaultPartitionRequest.setRequestPartitionId( RequestPartitionId.defaultPartition() ) ;
+		DaoMethodOutcome outcome = daoSearchParameter.update( searchParameter, defaultPartitionRequest ) ;
+		return !outcome.isNop() ;
+	}
+
+	/*
+	 * Linkage resources written before the search parameters existed carry no index rows for them
+	 */
+	private void reindexLinkageResources() {
+		IFhirResourceDao<?> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		TransactionTemplate tx = new TransactionTemplate( txManager ) ;
+
+		SystemRequestDetails localPartitionRequest = new SystemRequestDetails() ;
+		localPartitionRequest.setRequestPartitionId( RequestPartitionId.fromPartitionName( sdsProperties.getPartition().getLocalName() ) ) ;
+
+		List<IResourcePersistentId> linkagePids =
+			tx.execute( s -> daoLinkage.searchForIds( new SearchParameterMap().setLoadSynchronous( true ), localPartitionRequest ) ) ;
+
+		for ( IResourcePersistentId pid : linkagePids ) {
+			try {
+				tx.executeWithoutResult( s -> daoLinkage.reindex( pid, new ReindexParameters(), localPartitionRequest, new TransactionDetails() ) ) ;
+			} catch ( ResourceGoneException | ResourceNotFoundException ex ) {
+				/* deleted since it was listed; there is nothing left to index */
+				ourLog.debug( "skipped reindexing Linkage {}; it no longer exists", pid ) ;
+			}
+		}
+		ourLog.info( "reindexed {} Linkage resources for the linkage search parameters", linkagePids.size() ) ;
+	}
+}
@@ -0,0 +1,48 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/*
+ * the claim of one non-local user by the local user that was created for it
+ *
+ * the non-local user id is the primary key, so when two nodes create a local user for the same non-local user at once,
+ * the second insert fails ( or waits for the first to commit and then fails ) and its transaction is rolled back
+ */
+@Entity
+@Table(
+	name = "SDS_LOCAL_USER_CLAIM",
+	indexes = {
+		@Index( name = "IDX_SDS_CLAIM_LOCAL", columnList = "LOCAL_ID" )
+	}
+)
+public class LocalUserClaim {
+
+	/* the fully qualified, versionless non-local user id, e.g. "http://my.ehr.org/fhir/R4/Patient/abc" */
+	@Id
+	@Column( name = "NONLOCAL_ID", length = IdentityLink.MAX_ID_LENGTH )
+	private String nonLocalId ;
+
+	/* the unqualified, versionless local user id, e.g. "Patient/123" */
+	@Column( name = "LOCAL_ID", length = IdentityLink.MAX_ID_LENGTH, nullable = false )
+	private String localId ;
+
+	protected LocalUserClaim() {
+	}
+
+	public LocalUserClaim( String nonLocalId, String localId ) {
+		this.nonLocalId = nonLocalId ;
+		this.localId = localId ;
+	}
+
+	public String getNonLocalId() {
+		return nonLocalId;
+	}
+
+	public String getLocalId() {
+		return localId;
+	}
+}
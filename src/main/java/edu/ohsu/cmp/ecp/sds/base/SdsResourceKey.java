@@ -0,0 +1,98 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/*
+ * an immutable key for a resource id, matched by the same rules as FhirResourceComparison.idTypes().comparator():
+ *   the partition ( base url ), resource type and version are each ignored when either key lacks them
+ *   an id without an id part matches no other id
+ *
+ * the hash only covers the id part, so that keys which match despite a missing partition or resource type share a bucket;
+ * partition names and resource types are interned, so they are matched by identity
+ */
+public final class SdsResourceKey {
+
+	private static final Interner<String> NAMES = Interners.newWeakInterner() ;
+
+	private final String partition ;
+	private final String resourceType ;
+	private final String idPart ;
+	private final String versionIdPart ;
+	private final int hash ;
+
+	private SdsResourceKey( String partition, String resourceType, String idPart, String versionIdPart ) {
+		this.partition = null == partition ? null : NAMES.intern( partition ) ;
+		this.resourceType = null == resourceType ? null : NAMES.intern( resourceType ) ;
+		this.idPart = idPart ;
+		this.versionIdPart = versionIdPart ;
+		this.hash = null == idPart ? System.identityHashCode( this ) : idPart.hashCode() ;
+	}
+
+	public static SdsResourceKey of( IIdType id ) {
+		if ( null == id )
+			return new SdsResourceKey( null, null, null, null ) ;
+		return new SdsResourceKey(
+			id.hasBaseUrl() ? id.getBaseUrl() : null,
+			id.hasResourceType() ? id.getResourceType() : null,
+			id.hasIdPart() ? id.getIdPart() : null,
+			id.hasVersionIdPart() ? id.getVersionIdPart() : null
+			);
+	}
+
+	public String getPartition() {
+		return partition;
+	}
+
+	public String getResourceType() {
+		return resourceType;
+	}
+
+	public String getIdPart() {
+		return idPart;
+	}
+
+	public String getVersionIdPart() {
+		return versionIdPart;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash ;
+	}
+
+	@Override
+	public boolean equals( Object obj ) {
+		if ( this == obj )
+			return true ;
+		if ( !(obj instanceof SdsResourceKey) )
+			return false ;
+		SdsResourceKey other = (SdsResourceKey)obj ;
+		if ( hash != other.hash || null == idPart || null == other.idPart )
+			return false ;
+		if ( !idPart.equals( other.idPart ) )
+			return false ;
+		if ( null != partition && null != other.partition && partition != other.partition )
+			return false ;
+		if ( null != resourceType && null != other.resourceType && resourceType != other.resourceType )
+			return false ;
+		if ( null != versionIdPart && null != other.versionIdPart && !versionIdPart.equals( other.versionIdPart ) )
+			return false ;
+		return true ;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder() ;
+		if ( null != partition )
+			sb.append( partition ).append( '/' ) ;
+		if ( null != resourceType )
+			sb.append( resourceType ).append( '/' ) ;
+		sb.append( idPart ) ;
+		if ( null != versionIdPart )
+			sb.append( "/_history/" ).append( versionIdPart ) ;
+		return sb.toString() ;
+	}
+}
@@ -0,0 +1,31 @@
+package edu.ohsu.cmp.ecp.sds.base;
+
+import org.hibernate.BaseSessionEventListener;
+
+import edu.ohsu.cmp.ecp.sds.SdsStatementCount;
+
+/*
+ * counts the JDBC round trips of each Hibernate session toward the statement count of the current request
+ *
+ * Hibernate creates one listener per session ( hibernate.session.events.auto ), so the count is kept on the request thread;
+ * a JDBC batch is one round trip
+ */
+public class StatementCountingSessionListener extends BaseSessionEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public void jdbcExecuteStatementEnd() {
+		SdsStatementCount.statementExecuted() ;
+	}
+
+	@Override
+	public void jdbcExecuteBatchEnd() {
+		SdsStatementCount.statementExecuted() ;
+	}
+
+	@Override
+	public void transactionCompletion( boolean successful ) {
+		SdsStatementCount.transactionCompleted() ;
+	}
+}
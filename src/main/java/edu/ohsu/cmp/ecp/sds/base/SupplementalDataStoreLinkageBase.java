@@ -6,34 +6,66 @@ import static java.util.stream.Collectors.toList;
 
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import javax.inject.Named;
 
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.UrlType;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.util.concurrent.Striped;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.api.svc.IIdHelperService;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.util.FhirTerser;
+import edu.ohsu.cmp.ecp.sds.SdsFlightEvents;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreAuthorizationRuleCache;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreLinkage;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreLinkingInterceptor;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreMetrics;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStorePartition;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties.SdsFeatureBehavior;
 
+@Interceptor
 public abstract class SupplementalDataStoreLinkageBase implements SupplementalDataStoreLinkage {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SupplementalDataStoreLinkageBase.class);
 
+	protected static final int MAXIMUM_LINKAGES_PER_LOOKUP = 1000 ;
+
 	protected static final String EXTENSION_URL_SDS_PARTITION_NAME = "urn:sds:partition-name";
 	protected static final String EXTENSION_URL_RESOURCE_SDS_LINKAGE_TARGET_STUB = "urn:sds:linkage-target-stub";
 
@@ -43,6 +75,46 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 	@Inject
 	SupplementalDataStorePartition partition;
 
+	@Inject
+	IdentityLinkIndex identityLinks;
+
+	@Inject
+	LinkageSearchParameters linkageSearchParameters;
+
+	@Inject
+	IIdHelperService<JpaPid> idHelperService;
+
+	@Inject
+	FhirContext fhirContext;
+
+	@Inject
+	DaoRegistry daoRegistry;
+
+	@Inject
+	SupplementalDataStoreAuthorizationRuleCache ruleCache;
+
+	@Inject
+	SupplementalDataStoreMetrics metrics;
+
+	@Inject
+	@Named("transactionManager")
+	PlatformTransactionManager txManager;
+
+	private LinkageIdentityCache identityCache;
+
+	/* one lock per stripe of non-local user ids, held while a local user is created for one of them */
+	private Striped<Lock> onboardingLocks;
+
+	@PostConstruct
+	public void createIdentityCache() {
+		identityCache = new LinkageIdentityCache( sdsProperties.getIdentityCache(), fhirContext ) ;
+	}
+
+	@PostConstruct
+	public void createOnboardingLocks() {
+		onboardingLocks = Striped.lazyWeakLock( sdsProperties.getOnboarding().getLockStripes() ) ;
+	}
+
 	private RequestDetails partitionRequestFromName( String partitionName ) {
 		if ( sdsProperties.getPartition().getLocalName().equals(partitionName) )
 			return localPartitionRequest() ;
@@ -70,13 +142,22 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 		return internalRequestForNonLocalPartition;
 	}
 	
+	/*
+	 * internal lookups are run as synchronous searches, so the server neither persists a search
+	 * nor caches its results ( HFJ_SEARCH, HFJ_SEARCH_RESULT ) for results that are never paged
+	 */
+	protected static SearchParameterMap internalSearch( SearchParameterMap searchParamMap, int maximumResults ) {
+		searchParamMap.setLoadSynchronousUpTo( maximumResults ) ;
+		return searchParamMap ;
+	}
+
 	protected abstract List<IBaseResource> searchLinkageResources( SearchParameterMap linkageSearchParamMap, RequestDetails theRequestDetails );
 
 	protected abstract List<IBaseResource> filterLinkageResourcesHavingAlternateItem( List<IBaseResource> linkageResources, IIdType nonLocalPatientId );
 	
 	protected List<IBaseResource> linkageResourcesHavingAlternateItem(IIdType nonLocalPatientId) {
-		SearchParameterMap linkageSearchParamMap = new SearchParameterMap();
-		linkageSearchParamMap.add("item", new ReferenceParam(nonLocalPatientId));
+		SearchParameterMap linkageSearchParamMap = internalSearch( new SearchParameterMap(), MAXIMUM_LINKAGES_PER_LOOKUP );
+		linkageSearchParamMap.add(linkageSearchParameters.isReady() ? LinkageSearchParameters.SP_LINKAGE_ALTERNATE : "item", new ReferenceParam(nonLocalPatientId));
 
 		List<IBaseResource> allLinkageResources = searchLinkageResources(linkageSearchParamMap, localPartitionRequest());
 
@@ -86,8 +167,8 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 	}
 
 	protected List<IBaseResource> linkageResourcesHavingSourceItem(IIdType localPatientId) {
-		SearchParameterMap linkageSearchParamMap = new SearchParameterMap();
-		linkageSearchParamMap.add("source", new ReferenceParam(localPatientId));
+		SearchParameterMap linkageSearchParamMap = internalSearch( new SearchParameterMap(), MAXIMUM_LINKAGES_PER_LOOKUP );
+		linkageSearchParamMap.add(linkageSearchParameters.isReady() ? LinkageSearchParameters.SP_LINKAGE_SOURCE : "source", new ReferenceParam(localPatientId));
 
 		List<IBaseResource> linkageResources = searchLinkageResources(linkageSearchParamMap, localPartitionRequest());
 		return linkageResources;
@@ -98,9 +179,60 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 	protected abstract Set<? extends IBaseReference> alternatePatientsFromLinkageResources(List<? extends IBaseResource> linkageResources) ;
 
 	protected abstract Set<? extends IBaseReference> sourcePatientsFromLinkageResources(List<? extends IBaseResource> linkageResources) ;
+
+	protected abstract IBaseReference referenceTo(IIdType id) ;
+
+	private Set<? extends IBaseReference> localPatientsFromIdentityLinks( List<IdentityLink> links ) {
+		return FhirResourceComparison.references().createSet( links, link -> referenceTo( fhirContext.getVersion().newIdType().setValue( link.getLocalId() ) ) ) ;
+	}
+
+	private Set<? extends IBaseReference> nonLocalPatientsFromIdentityLinks( List<IdentityLink> links ) {
+		return FhirResourceComparison.references().createSet( links, link -> {
+			IIdType id = fhirContext.getVersion().newIdType().setValue( link.getNonLocalId() ) ;
+			String baseUrl = link.getNonLocalPartition().isEmpty() ? null : link.getNonLocalPartition() ;
+			return referenceTo( fhirContext.getVersion().newIdType().setParts( baseUrl, id.getResourceType(), id.getIdPart(), null ) ) ;
+		});
+	}
 	
+	private String partitionNameOf( IIdType userId ) {
+		return userId.hasBaseUrl() ? userId.getBaseUrl() : sdsProperties.getPartition().getLocalName() ;
+	}
+
+	private void commitLinkageLookup( SdsFlightEvents.LinkageLookup event, String call, IIdType userId, Collection<IIdType> linkedUserIds ) {
+		if ( !event.shouldCommit() )
+			return ;
+		List<String> partitionNames = new ArrayList<>() ;
+		partitionNames.add( partitionNameOf( userId ) ) ;
+		linkedUserIds.forEach( id -> partitionNames.add( partitionNameOf( id ) ) ) ;
+		event.call = call ;
+		event.indexed = identityLinks.isReady() ;
+		event.partitions = SdsFlightEvents.partitionNames( partitionNames ) ;
+		event.results = linkedUserIds.size() ;
+		event.commit() ;
+	}
+
+	private static List<IIdType> referencedIds( Set<? extends IBaseReference> refs ) {
+		return refs.stream().map( IBaseReference::getReferenceElement ).filter( id -> null != id ).collect( toList() ) ;
+	}
+
 	@Override
 	public Set<? extends IBaseReference> patientsLinkedTo(IIdType localPatientId) {
+		SdsFlightEvents.LinkageLookup event = new SdsFlightEvents.LinkageLookup() ;
+		event.begin() ;
+		event.cacheHit = true ;
+		Set<? extends IBaseReference> linkedPatients =
+			identityCache.patientsLinkedTo( localPatientId, () -> {
+				event.cacheHit = false ;
+				return metrics.timeLinkage( "patientsLinkedTo", () -> searchPatientsLinkedTo( localPatientId ) ) ;
+			});
+		commitLinkageLookup( event, "patientsLinkedTo", localPatientId, referencedIds( linkedPatients ) ) ;
+		return linkedPatients ;
+	}
+
+	private Set<? extends IBaseReference> searchPatientsLinkedTo(IIdType localPatientId) {
+
+		if ( identityLinks.isReady() )
+			return nonLocalPatientsFromIdentityLinks( identityLinks.linksFromLocal( localPatientId, IdentityLinkIndex.LINK_TYPE_ALTERNATE ) ) ;
 
 		List<IBaseResource> linkageResources = linkageResourcesHavingSourceItem(localPatientId);
 
@@ -110,6 +242,17 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 
 	@Override
 	public Set<? extends IBaseReference> patientsLinkedFrom(IIdType nonLocalPatientId) {
+		SdsFlightEvents.LinkageLookup event = new SdsFlightEvents.LinkageLookup() ;
+		event.begin() ;
+		Set<? extends IBaseReference> linkedPatients = metrics.timeLinkage( "patientsLinkedFrom", () -> searchPatientsLinkedFrom( nonLocalPatientId ) ) ;
+		commitLinkageLookup( event, "patientsLinkedFrom", nonLocalPatientId, referencedIds( linkedPatients ) ) ;
+		return linkedPatients ;
+	}
+
+	private Set<? extends IBaseReference> searchPatientsLinkedFrom(IIdType nonLocalPatientId) {
+
+		if ( identityLinks.isReady() )
+			return localPatientsFromIdentityLinks( identityLinks.linksToNonLocal( nonLocalPatientId, IdentityLinkIndex.LINK_TYPE_ALTERNATE ) ) ;
 		
 		List<IBaseResource> linkageResources = linkageResourcesHavingAlternateItem(nonLocalPatientId);
 		
@@ -128,6 +271,27 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 		
 		IIdType nonLocalUserId = userId ;
 
+		SdsFlightEvents.LinkageLookup event = new SdsFlightEvents.LinkageLookup() ;
+		event.begin() ;
+		event.cacheHit = true ;
+		Optional<IIdType> localUserId =
+			identityCache.localUserFor( nonLocalUserId, () -> {
+				event.cacheHit = false ;
+				return metrics.timeLinkage( "localUserFor", () -> searchLocalUserFor( nonLocalUserId ) ) ;
+			});
+		commitLinkageLookup( event, "localUserFor", nonLocalUserId, localUserId.map( List::of ).orElse( List.of() ) ) ;
+		return localUserId ;
+	}
+
+	private Optional<IIdType> searchLocalUserFor(IIdType nonLocalUserId) {
+
+		if ( identityLinks.isReady() ) {
+			Set<? extends IBaseReference> sourceRefs = localPatientsFromIdentityLinks( identityLinks.linksToNonLocal( nonLocalUserId, IdentityLinkIndex.LINK_TYPE_ALTERNATE ) ) ;
+			if ( sourceRefs.isEmpty() )
+				return Optional.empty() ;
+			return Optional.of( selectLocalPatient( sourceRefs ) ) ;
+		}
+
 		List<IBaseResource> linkageResources = linkageResourcesHavingAlternateItem(nonLocalUserId);
 
 		if (linkageResources.isEmpty()) {
@@ -139,13 +303,17 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 
 			Set<? extends IBaseReference> sourceRefs = sourcePatientsFromLinkageResources(linkageResources) ;
 			
-			if (sourceRefs.size() == 1) {
-				return Optional.of( sourceRefs.iterator().next().getReferenceElement() );
-			} else if (sourceRefs.isEmpty()) {
+			if (sourceRefs.isEmpty())
 				throw new InvalidRequestException("cannot lookup local user resource; no local source resources found");
-			} else {
-				return Optional.of( selectLocalPatientAmongMultiple( sdsProperties.getPartition().getMultipleLinkedLocalPatients(), sourceRefs ).getReferenceElement() ) ;
-			}
+			return Optional.of( selectLocalPatient( sourceRefs ) ) ;
+		}
+	}
+
+	private IIdType selectLocalPatient( Set<? extends IBaseReference> sourceRefs ) {
+		if (sourceRefs.size() == 1) {
+			return sourceRefs.iterator().next().getReferenceElement();
+		} else {
+			return selectLocalPatientAmongMultiple( sdsProperties.getPartition().getMultipleLinkedLocalPatients(), sourceRefs ).getReferenceElement() ;
 		}
 	}
 
@@ -191,16 +359,162 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 		if ( !partition.partitionExists( partitionName ) )
 			return false ;
 		Optional<IBaseResource> patient =
-			searchPatient( patientId.toUnqualifiedVersionless(), partitionRequestFromName(partitionName) )
+			metrics.timeLinkage( "patientCompartmentIsClaimed", () -> searchPatient( patientId.toUnqualifiedVersionless(), partitionRequestFromName(partitionName) ) )
 			;
 		return patient.isPresent() ;
 	}
 
 	protected abstract Optional<IBaseResource> searchPatient(IIdType patientId, RequestDetails theRequestDetails) ;
+
+	/*
+	 * keep the identity link index and the identity cache consistent with the Linkage resources in the local partition
+	 *
+	 * the index is written in the same transaction as the Linkage;
+	 * cache entries are dropped before commit and again after the transaction completes,
+	 * so that a lookup racing the uncommitted write cannot leave a stale entry behind
+	 */
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void linkageCreated( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( !isLocalLinkage( theResource, theRequestDetails ) )
+			return ;
+		indexLinkage( theResource ) ;
+		linkageChanged( theResource ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void linkageUpdated( IBaseResource theOldResource, IBaseResource theNewResource, RequestDetails theRequestDetails ) {
+		if ( !isLocalLinkage( theNewResource, theRequestDetails ) )
+			return ;
+		indexLinkage( theNewResource ) ;
+		linkageChanged( theOldResource ) ;
+		linkageChanged( theNewResource ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void linkageDeleted( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( !isLocalLinkage( theResource, theRequestDetails ) )
+			return ;
+		identityLinks.removeLinks( List.of( theResource.getIdElement().getIdPart() ) ) ;
+		linkageChanged( theResource ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_RESOURCE)
+	public void linkageExpunged( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		/* only deleted or historical versions are expunged, so the index already excludes them */
+		if ( !isLocalLinkage( theResource, theRequestDetails ) )
+			return ;
+		linkageChanged( theResource ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRE_DELETE_EXPUNGE_PID_LIST)
+	public void linkagesDeleteExpunged( String theResourceType, List<?> thePids ) {
+		if ( !"Linkage".equals( theResourceType ) )
+			return ;
+		List<String> linkageIds =
+			thePids.stream()
+				.map( pid -> idHelperService.translatePidIdToForcedId( fhirContext, theResourceType, (JpaPid)pid ).getIdPart() )
+				.collect( toList() )
+				;
+		identityLinks.removeLinks( linkageIds ) ;
+		/* only the database ids are known here */
+		afterTransaction( identityCache::invalidateAll ) ;
+		afterTransaction( ruleCache::invalidateAll ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_EXPUNGE_EVERYTHING)
+	public void everythingExpunged() {
+		identityLinks.removeAll() ;
+		afterTransaction( identityCache::invalidateAll ) ;
+		afterTransaction( ruleCache::invalidateAll ) ;
+	}
+
+	private boolean isLocalLinkage( IBaseResource theResource, RequestDetails theRequestDetails ) {
+		if ( null == theResource || !"Linkage".equals( theResource.fhirType() ) )
+			return false ;
+		return isLocalPartitionRequest( theRequestDetails ) ;
+	}
+
+	/*
+	 * replaces the identity links recorded for one Linkage resource in the local partition
+	 */
+	void indexLinkage( IBaseResource linkageResource ) {
+		String linkageId = linkageResource.getIdElement().getIdPart() ;
+		List<IBaseResource> linkageResources = List.of( linkageResource ) ;
+
+		List<IdentityLink> links = new ArrayList<>() ;
+		for ( IBaseReference sourceRef : sourcePatientsFromLinkageResources( linkageResources ) ) {
+			IIdType sourceId = sourceRef.getReferenceElement() ;
+			if ( null == sourceId || !sourceId.hasIdPart() )
+				continue ;
+			for ( IBaseReference alternateRef : alternatePatientsFromLinkageResources( linkageResources ) ) {
+				IIdType alternateId = alternateRef.getReferenceElement() ;
+				if ( null == alternateId || !alternateId.hasIdPart() )
+					continue ;
+				links.add(
+					new IdentityLink(
+						linkageId,
+						IdentityLinkIndex.localIdKey( sourceId ),
+						alternateId.hasBaseUrl() ? alternateId.getBaseUrl() : "",
+						IdentityLinkIndex.nonLocalIdKey( alternateId ),
+						IdentityLinkIndex.LINK_TYPE_ALTERNATE
+					)
+				);
+			}
+		}
+		identityLinks.replaceLinks( linkageId, links ) ;
+	}
+
+	private void linkageChanged( IBaseResource linkageResource ) {
+		if ( null == linkageResource )
+			return ;
+		List<IBaseResource> linkageResources = List.of( linkageResource ) ;
+		Set<? extends IBaseReference> sourceRefs = sourcePatientsFromLinkageResources( linkageResources ) ;
+		Set<? extends IBaseReference> alternateRefs = alternatePatientsFromLinkageResources( linkageResources ) ;
+		afterTransaction( () -> identityCache.invalidate( sourceRefs, alternateRefs ) ) ;
+
+		List<IIdType> linkedPatientIds = new ArrayList<>() ;
+		sourceRefs.forEach( ref -> linkedPatientIds.add( ref.getReferenceElement() ) ) ;
+		alternateRefs.forEach( ref -> linkedPatientIds.add( ref.getReferenceElement() ) ) ;
+		afterTransaction( () -> ruleCache.invalidatePatients( linkedPatientIds ) ) ;
+	}
+
+	private boolean isLocalPartitionRequest( RequestDetails theRequestDetails ) {
+		String localPartitionName = sdsProperties.getPartition().getLocalName() ;
+		if ( null == theRequestDetails )
+			return true ;
+		if ( theRequestDetails instanceof SystemRequestDetails ) {
+			RequestPartitionId requestPartitionId = ((SystemRequestDetails)theRequestDetails).getRequestPartitionId() ;
+			if ( null == requestPartitionId || !requestPartitionId.hasPartitionNames() )
+				return true ;
+			return requestPartitionId.getPartitionNames().contains( localPartitionName ) ;
+		}
+		return localPartitionName.equals( partition.partitionIdFromRequest( theRequestDetails ).getFirstPartitionNameOrNull() ) ;
+	}
+
+	/*
+	 * internal transaction Bundles join the transaction of the write that triggered them, if any
+	 */
+	private static boolean transactionIsActive() {
+		return TransactionSynchronizationManager.isActualTransactionActive() ;
+	}
+
+	private static void afterTransaction( Runnable invalidation ) {
+		invalidation.run() ;
+		if ( TransactionSynchronizationManager.isSynchronizationActive() ) {
+			TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+				@Override
+				public void afterCompletion( int status ) {
+					invalidation.run() ;
+				}
+			});
+		}
+	}
 	
 	@Override
 	public IIdType establishLocalUser(String userResourceType) {
-		IBaseResource localUser = createLocalUser(userResourceType);
+		IBaseResource localUser = metrics.timeLinkage( "createLocalUser", () -> createLocalUser(userResourceType) ) ;
+		metrics.localUserCreated() ;
 		IIdType localUserId = localUser.getIdElement().toUnqualifiedVersionless() ;
 		return localUserId;
 	}
@@ -211,17 +525,91 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 			return userId ;
 		IIdType nonLocalUserId = userId ;
 
-		return lookupLocalUserFor(nonLocalUserId).orElseGet( () -> {
-		
-			IBaseResource localUser = createLocalUser(nonLocalUserId.getResourceType());
-			/*
-			 * TODO: this should be skipped IF the non-local user already exists
-			 */
-			IIdType localUserId = localUser.getIdElement().toUnqualifiedVersionless() ;
-			createLinkage( localUserId, nonLocalUserId, localPartitionRequest() ) ;
-			return localUserId;
+		return lookupLocalUserFor(nonLocalUserId).orElseGet( () -> establishLocalUserLinkedTo( nonLocalUserId ) ) ;
+	}
 
-		} ) ;
+	/*
+	 * the local user and its Linkage to the non-local user are written together,
+	 * as one transaction Bundle in the local partition
+	 *
+	 * the parallel first requests of a newly launched app all arrive here for the same non-local user:
+	 *   within this node, they take turns on a lock that is held until the transaction completes,
+	 *   and each looks again for a local user once it holds the lock
+	 *   across nodes, the local user claim in the identity link index rolls back all but the first
+	 */
+	@Override
+	public IIdType establishLocalUserLinkedTo(IIdType nonLocalUserId) {
+		if ( partition.userIsLocal(nonLocalUserId))
+			throw new IllegalArgumentException("cannot link a local user to a local id") ;
+
+		SdsFlightEvents.IdentityBootstrap event = new SdsFlightEvents.IdentityBootstrap() ;
+		event.begin() ;
+
+		Lock lock = onboardingLocks.get( IdentityLinkIndex.nonLocalIdKey( nonLocalUserId ) ) ;
+		long lockRequested = System.nanoTime() ;
+		boolean locked = lockForOnboarding( lock, nonLocalUserId ) ;
+		event.lockWait = System.nanoTime() - lockRequested ;
+		boolean unlockDeferred = locked && unlockAfterTransaction( lock ) ;
+		try {
+			return new TransactionTemplate( txManager ).execute( status -> establishLocalUserWhileLocked( nonLocalUserId, event ) ) ;
+		} finally {
+			if ( locked && !unlockDeferred )
+				lock.unlock() ;
+			commitIdentityBootstrap( event, "localUserLinkedTo", nonLocalUserId ) ;
+		}
+	}
+
+	private IIdType establishLocalUserWhileLocked( IIdType nonLocalUserId, SdsFlightEvents.IdentityBootstrap event ) {
+		/* the identity cache may still hold the lookup made before another request created the local user */
+		Optional<IIdType> establishedMeanwhile = searchLocalUserFor( nonLocalUserId ) ;
+		if ( establishedMeanwhile.isPresent() )
+			return establishedMeanwhile.get() ;
+
+		IIdType localUserId = metrics.timeLinkage( "createLocalUserLinkedTo", () -> createLocalUserLinkedTo( nonLocalUserId, localPartitionRequest() ) ) ;
+		identityLinks.claimLocalUser( nonLocalUserId, localUserId ) ;
+		metrics.localUserCreated() ;
+		metrics.linkageCreated() ;
+		event.created = true ;
+		return localUserId ;
+	}
+
+	private void commitIdentityBootstrap( SdsFlightEvents.IdentityBootstrap event, String step, IIdType userId ) {
+		if ( !event.shouldCommit() )
+			return ;
+		event.step = step ;
+		event.userType = userId.getResourceType() ;
+		event.partition = partitionNameOf( userId ) ;
+		event.commit() ;
+	}
+
+	/*
+	 * a request that waits too long goes ahead without the lock, and relies on the local user claim instead
+	 */
+	private boolean lockForOnboarding( Lock lock, IIdType nonLocalUserId ) {
+		try {
+			if ( lock.tryLock( sdsProperties.getOnboarding().getLockTimeout().toMillis(), TimeUnit.MILLISECONDS ) )
+				return true ;
+			ourLog.warn( "timed out waiting to create a local user for \"{}\"; continuing without the lock", nonLocalUserId ) ;
+			return false ;
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt() ;
+			return false ;
+		}
+	}
+
+	/*
+	 * the local user only becomes visible to other requests when the transaction commits, so the lock is held until then
+	 */
+	private static boolean unlockAfterTransaction( Lock lock ) {
+		if ( !transactionIsActive() || !TransactionSynchronizationManager.isSynchronizationActive() )
+			return false ;
+		TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+			@Override
+			public void afterCompletion( int status ) {
+				lock.unlock() ;
+			}
+		});
+		return true ;
 	}
 
 	@Override
@@ -229,8 +617,16 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 		if ( partition.userIsLocal(nonLocalUserId))
 			throw new IllegalArgumentException("cannot establish non-local user with a local id") ;
 
-		IBaseResource nonLocalUser = createNonLocalStubUser(nonLocalUserId);
-		return fullyQualifiedIdForStubUser( nonLocalUser ) ;
+		SdsFlightEvents.IdentityBootstrap event = new SdsFlightEvents.IdentityBootstrap() ;
+		event.begin() ;
+		try {
+			IBaseResource nonLocalUser = metrics.timeLinkage( "createNonLocalStubUser", () -> createNonLocalStubUser(nonLocalUserId) ) ;
+			metrics.stubCreated() ;
+			event.created = true ;
+			return fullyQualifiedIdForStubUser( nonLocalUser ) ;
+		} finally {
+			commitIdentityBootstrap( event, "nonLocalStub", nonLocalUserId ) ;
+		}
 	}
 
 	@Override
@@ -240,7 +636,8 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 		if (null == nonLocalPatientId)
 			throw new InvalidRequestException("cannot link patient resources without a non-local patient id for initial linkage");
 
-		createLinkage( localPatientId, nonLocalPatientId, localPartitionRequest() ) ;
+		metrics.timeLinkage( "createLinkage", () -> createLinkage( localPatientId, nonLocalPatientId, localPartitionRequest() ) ) ;
+		metrics.linkageCreated() ;
 	}
 
 	public IBaseResource createLocalUser(String resourceType) {
@@ -267,6 +664,52 @@ public abstract class SupplementalDataStoreLinkageBase implements SupplementalDa
 	}
 	
 	
+	/*
+	 * the local user and its Linkage are created by one transaction Bundle, so that neither is ever stored without the other
+	 */
+	protected IIdType createLocalUserLinkedTo( IIdType nonLocalUserId, RequestDetails theRequestDetails ) {
+		IBaseResource localUser = newLocalUser( nonLocalUserId.getResourceType() ) ;
+		IIdType localUserFullUrl = fhirContext.getVersion().newIdType().setValue( "urn:uuid:" + UUID.randomUUID() ) ;
+
+		Map<String,IBaseResource> resourcesByFullUrl = new LinkedHashMap<>() ;
+		resourcesByFullUrl.put( localUserFullUrl.getValue(), localUser ) ;
+		resourcesByFullUrl.put( "urn:uuid:" + UUID.randomUUID(), newLinkage( localUserFullUrl, nonLocalUserId ) ) ;
+		IBaseBundle bundle = newTransactionCreating( resourcesByFullUrl ) ;
+
+		IFhirSystemDao<IBaseBundle,?> daoSystem = daoRegistry.getSystemDao() ;
+		IBaseBundle response =
+			transactionIsActive()
+				? daoSystem.transactionNested( theRequestDetails, bundle )
+				: daoSystem.transaction( theRequestDetails, bundle )
+				;
+
+		FhirTerser terser = fhirContext.newTerser() ;
+		List<IBase> responseEntries = terser.getValues( response, "Bundle.entry" ) ;
+		if ( !entryWasCreated( terser, responseEntries, 0 ) || !entryWasCreated( terser, responseEntries, 1 ) )
+			throw new InternalErrorException( "failed to create local user linked to " + nonLocalUserId ) ;
+		String localUserLocation = terser.getSinglePrimitiveValueOrNull( responseEntries.get(0), "response.location" ) ;
+		return fhirContext.getVersion().newIdType().setValue( localUserLocation ).toUnqualifiedVersionless() ;
+	}
+
+	private IBaseResource newLocalUser( String resourceType ) {
+		if ( !"Patient".equalsIgnoreCase(resourceType) && !"Practitioner".equalsIgnoreCase(resourceType) && !"RelatedPerson".equalsIgnoreCase(resourceType) )
+			throw new InvalidRequestException("cannot create local user resource: expected a Patient or Practitioner user but encountered a " + resourceType);
+		return fhirContext.getResourceDefinition( resourceType ).newInstance() ;
+	}
+
+	private static boolean entryWasCreated( FhirTerser terser, List<IBase> responseEntries, int index ) {
+		if ( responseEntries.size() <= index )
+			return false ;
+		String status = terser.getSinglePrimitiveValueOrNull( responseEntries.get(index), "response.status" ) ;
+		return null != status && status.startsWith( "201" ) ;
+	}
+
+	/* a Linkage with the source and alternate items, as this FHIR version represents them */
+	abstract protected IBaseResource newLinkage( IIdType sourceUserId, IIdType alternateUserId ) ;
+
+	/* a transaction Bundle that creates each resource, in order, under its fullUrl */
+	abstract protected IBaseBundle newTransactionCreating( Map<String,IBaseResource> resourcesByFullUrl ) ;
+
 	abstract protected IBaseResource createLocalPatient( RequestDetails theRequestDetails ) ;
 	
 	abstract protected IBaseResource createLocalPractitioner( RequestDetails theRequestDetails ) ;
@@ -1,6 +1,7 @@
 package edu.ohsu.cmp.ecp.sds.dstu2;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -14,6 +15,7 @@ import org.hl7.fhir.dstu2.model.Practitioner;
 import org.hl7.fhir.dstu2.model.Reference;
 import org.hl7.fhir.dstu2.model.RelatedPerson;
 import org.hl7.fhir.dstu2.model.StringType;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -69,6 +71,21 @@ public class SupplementalDataStoreLinkageDstu2 extends SupplementalDataStoreLink
 		throw linkageResourceNotDefinedInDstu2() ;
 	}
 
+	@Override
+	protected IIdType createLocalUserLinkedTo( IIdType nonLocalUserId, RequestDetails theRequestDetails ) {
+		throw linkageResourceNotDefinedInDstu2() ;
+	}
+
+	@Override
+	protected IBaseResource newLinkage( IIdType sourceUserId, IIdType alternateUserId ) {
+		throw linkageResourceNotDefinedInDstu2() ;
+	}
+
+	@Override
+	protected IBaseBundle newTransactionCreating( Map<String,IBaseResource> resourcesByFullUrl ) {
+		throw linkageResourceNotDefinedInDstu2() ;
+	}
+
 	@Override
 	protected Set<? extends IBaseReference> alternatePatientsFromLinkageResources(List<? extends IBaseResource> linkageResources) {
 		throw linkageResourceNotDefinedInDstu2() ;
@@ -79,6 +96,11 @@ public class SupplementalDataStoreLinkageDstu2 extends SupplementalDataStoreLink
 		throw linkageResourceNotDefinedInDstu2() ;
 	}
 	
+	@Override
+	protected IBaseReference referenceTo(IIdType id) {
+		throw linkageResourceNotDefinedInDstu2() ;
+	}
+
 	@Override
 	public IBaseResource createLocalPatient( RequestDetails theRequestDetails ) {
 		Patient patient = new Patient();
@@ -118,7 +140,7 @@ public class SupplementalDataStoreLinkageDstu2 extends SupplementalDataStoreLink
 	protected Optional<IBaseResource> searchPatient(IIdType patientId, RequestDetails theRequestDetails) {
 		List<IBaseResource> resources =
 			daoPatientDstu2
-				.search( new SearchParameterMap( Patient.SP_RES_ID, new ReferenceParam( patientId ) ), theRequestDetails)
+				.search( internalSearch( new SearchParameterMap( Patient.SP_RES_ID, new ReferenceParam( patientId ) ), 1 ), theRequestDetails)
 				.getResources(0, 1)
 				;
 		return resources.stream().findFirst();
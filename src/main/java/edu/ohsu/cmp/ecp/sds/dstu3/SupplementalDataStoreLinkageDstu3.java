@@ -4,12 +4,14 @@ import static java.util.stream.Collectors.toList;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
 
 import javax.inject.Inject;
 
+import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -17,6 +19,7 @@ import org.hl7.fhir.dstu3.model.RelatedPerson;
 import org.hl7.fhir.dstu3.model.Type;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.BooleanType;
+import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.DomainResource;
 import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.IdType;
@@ -25,6 +28,7 @@ import org.hl7.fhir.dstu3.model.Linkage.LinkageType;
 import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.dstu3.model.Practitioner;
 import org.hl7.fhir.dstu3.model.Reference;
+import org.hl7.fhir.dstu3.model.Resource;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.stereotype.Component;
 
@@ -35,8 +39,10 @@ import ca.uhn.fhir.jpa.starter.annotations.OnDSTU3Condition;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreProperties;
 import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.base.LinkageSearchParameters;
 import edu.ohsu.cmp.ecp.sds.base.SupplementalDataStoreLinkageBase;
 
 @Component
@@ -144,26 +150,26 @@ public class SupplementalDataStoreLinkageDstu3 extends SupplementalDataStoreLink
 
 	@Override
 	protected List<IBaseResource> searchLinkageResources( SearchParameterMap linkageSearchParamMap, RequestDetails theRequestDetails ) {
-		/*
-		 * server is returning LINKAGE resources while searching on SOURCE that match the id but are not SOURCE
-		 */
 		/*
 		 * item and source parameters must be relative (i.e. no baseUrl) in order to find these LINKAGE resources
 		 */
 
 		SearchParameterMap replacementSearchParameterMap = linkageSearchParamMap.clone() ;
-		List<List<IQueryParameterType>> itemQueryParameter = replacementSearchParameterMap.remove("item");
-		List<List<IQueryParameterType>> sourceQueryParameter = replacementSearchParameterMap.remove("source");
-		if ( null != itemQueryParameter ) {
-			replacementSearchParameterMap.put( "item", convertQueryParametersList( itemQueryParameter ) );
-		}
-		if ( null != sourceQueryParameter ) {
-			replacementSearchParameterMap.put( "source", convertQueryParametersList( sourceQueryParameter ) );
+		for ( String paramName : List.of( "item", "source", LinkageSearchParameters.SP_LINKAGE_SOURCE, LinkageSearchParameters.SP_LINKAGE_ALTERNATE ) ) {
+			List<List<IQueryParameterType>> queryParameter = replacementSearchParameterMap.remove( paramName );
+			if ( null != queryParameter ) {
+				replacementSearchParameterMap.put( paramName, convertQueryParametersList( queryParameter ) );
+			}
 		}
+
+		/*
+		 * the sds-linkage-* parameters only index items of their own type;
+		 * the standard parameters return LINKAGE resources while searching on SOURCE that match the id but are not SOURCE
+		 */
 		return daoLinkageDstu3.search(replacementSearchParameterMap, theRequestDetails).getAllResources()
 				.stream()
-				.filter( linkageItemFilter( itemQueryParameter ) )
-				.filter( linkageSourceFilter( sourceQueryParameter ) )
+				.filter( linkageItemFilter( linkageSearchParamMap.get( "item" ) ) )
+				.filter( linkageSourceFilter( linkageSearchParamMap.get( "source" ) ) )
 				.collect( java.util.stream.Collectors.toList() )
 				;
 	}
@@ -222,16 +228,32 @@ public class SupplementalDataStoreLinkageDstu3 extends SupplementalDataStoreLink
 	}
 
 	@Override
-	protected void createLinkage( IIdType sourcePatientId, IIdType alternatePatientId, RequestDetails theRequestDetails ) {
+	protected IBaseResource newLinkage( IIdType sourceUserId, IIdType alternateUserId ) {
 		Linkage linkage = new Linkage();
-		linkage.addItem().setType(LinkageType.SOURCE).setResource(referenceForLinkage(sourcePatientId));
-		linkage.addItem().setType(LinkageType.ALTERNATE).setResource(referenceForLinkage(alternatePatientId));
+		linkage.addItem().setType(LinkageType.SOURCE).setResource(referenceForLinkage(sourceUserId));
+		linkage.addItem().setType(LinkageType.ALTERNATE).setResource(referenceForLinkage(alternateUserId));
+		return linkage;
+	}
+
+	@Override
+	protected void createLinkage( IIdType sourcePatientId, IIdType alternatePatientId, RequestDetails theRequestDetails ) {
+		Linkage linkage = (Linkage)newLinkage( sourcePatientId, alternatePatientId );
 		DaoMethodOutcome outcome = daoLinkageDstu3.create(linkage, theRequestDetails);
 		if ( Boolean.TRUE != outcome.getCreated() ) {
-			throw new RuntimeException( "failed to create linkage between " + sourcePatientId + " and " + alternatePatientId ) ;
+			throw new InternalErrorException( "failed to create linkage between " + sourcePatientId + " and " + alternatePatientId ) ;
 		}
 	}
 
+	@Override
+	protected IBaseBundle newTransactionCreating( Map<String,IBaseResource> resourcesByFullUrl ) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.TRANSACTION);
+		resourcesByFullUrl.forEach( (fullUrl, resource) -> {
+			bundle.addEntry().setFullUrl(fullUrl).setResource((Resource)resource).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resource.fhirType());
+		});
+		return bundle;
+	}
+
 	@Override
 	protected Set<? extends IBaseReference> alternatePatientsFromLinkageResources(List<? extends IBaseResource> linkageResources) {
 		List<Reference> sourceRefs =
@@ -260,6 +282,11 @@ public class SupplementalDataStoreLinkageDstu3 extends SupplementalDataStoreLink
 		return FhirResourceComparison.references().createSet( sourceRefs ) ;
 	}
 
+	@Override
+	protected IBaseReference referenceTo(IIdType id) {
+		return new Reference( id ) ;
+	}
+
 	@Override
 	public IBaseResource createLocalPatient( RequestDetails theRequestDetails ) {
 		Patient patient = new Patient();
@@ -299,7 +326,7 @@ public class SupplementalDataStoreLinkageDstu3 extends SupplementalDataStoreLink
 	protected Optional<IBaseResource> searchPatient(IIdType patientId, RequestDetails theRequestDetails) {
 		List<IBaseResource> resources =
 			daoPatientDstu3
-				.search( new SearchParameterMap( Patient.SP_RES_ID, new ReferenceParam( patientId ) ), theRequestDetails)
+				.search( internalSearch( new SearchParameterMap( Patient.SP_RES_ID, new ReferenceParam( patientId ) ), 1 ), theRequestDetails)
 				.getResources(0, 1)
 				;
 		return resources.stream().findFirst();
@@ -1,30 +1,250 @@
 package edu.ohsu.cmp.ecp.security;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.security.oauth2.resource.OAuth2ResourceServerProperties;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
 import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.server.resource.introspection.BadOpaqueTokenException;
 import org.springframework.security.oauth2.server.resource.introspection.NimbusOpaqueTokenIntrospector;
+import org.springframework.security.oauth2.server.resource.introspection.OAuth2IntrospectionException;
 import org.springframework.security.oauth2.server.resource.introspection.OpaqueTokenIntrospector;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
+import edu.ohsu.cmp.ecp.security.IntrospectionResultCache.CachedIntrospection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+
+import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
 
 @Service
+@ConditionalOnProperty(prefix = "sds.jwt", name = "enabled", havingValue = "false", matchIfMissing = true)
 public class ApplicationOpaqueTokenIntrospector implements OpaqueTokenIntrospector {
 
-	private final OAuth2ResourceServerProperties properties;
+	public static final String METRIC_PREFIX = "sds.introspection";
+	public static final String CONNECTION_POOL_NAME = METRIC_PREFIX;
+
+	/* the servlet request attribute holding the nanoseconds spent introspecting the request's token */
+	public static final String REQUEST_ATTR_INTROSPECTION_NANOS = ApplicationOpaqueTokenIntrospector.class.getName() + ".nanos";
+
+	private final CloseableHttpClient httpClient;
+	private final OpaqueTokenIntrospector introspector;
+	private final Optional<IntrospectionResultCache> cache;
+	private final IntrospectionCircuitBreaker circuitBreaker;
+	private final ThreadPoolExecutor introspectionExecutor;
+	private final Duration timeout;
+
+	private final Counter timeoutCounter;
+	private final Counter rejectedCounter;
+	private final Counter staleCounter;
 
-	public ApplicationOpaqueTokenIntrospector(OAuth2ResourceServerProperties properties) {
-		this.properties = properties;
+	/*
+	 * introspections currently waiting on the authorization server, keyed by token hash
+	 *
+	 * a client launching with a new token typically sends a burst of parallel requests;
+	 * only the first of them calls the authorization server, the rest wait for its result
+	 */
+	private final Map<String, CompletableFuture<OAuth2AuthenticatedPrincipal>> inFlight = new ConcurrentHashMap<>();
+
+	@Autowired
+	public ApplicationOpaqueTokenIntrospector(OAuth2ResourceServerProperties properties, IntrospectionProperties introspectionProperties, MeterRegistry meterRegistry) {
+		this(pooledHttpClient(introspectionProperties.getClient(), meterRegistry), properties.getOpaquetoken().getIntrospectionUri(), introspectionProperties, meterRegistry);
+	}
+
+	private ApplicationOpaqueTokenIntrospector(CloseableHttpClient httpClient, String introspectionUri, IntrospectionProperties introspectionProperties, MeterRegistry meterRegistry) {
+		this(httpClient, introspectorWithUri(httpClient, introspectionUri), introspectionProperties, meterRegistry);
+	}
+
+	/* introspects with the given introspector, e.g. one standing in for the authorization server in a test */
+	ApplicationOpaqueTokenIntrospector(CloseableHttpClient httpClient, OpaqueTokenIntrospector introspector, IntrospectionProperties introspectionProperties, MeterRegistry meterRegistry) {
+		IntrospectionProperties.Resilience resilience = introspectionProperties.getResilience();
+		this.httpClient = httpClient;
+		this.introspector = introspector;
+		if (introspectionProperties.getCache().getEnabled()) {
+			this.cache = Optional.of(new IntrospectionResultCache(introspectionProperties.getCache(), resilience.getGracePeriod(), meterRegistry));
+		} else {
+			this.cache = Optional.empty();
+		}
+		this.circuitBreaker = new IntrospectionCircuitBreaker(resilience.getFailureThreshold(), resilience.getOpenDuration(), meterRegistry);
+		this.introspectionExecutor = introspectionExecutor(resilience);
+		this.timeout = resilience.getTimeout();
+
+		this.timeoutCounter = Counter.builder(METRIC_PREFIX + ".timeouts")
+			.description("requests that gave up waiting on an introspection")
+			.register(meterRegistry);
+		this.rejectedCounter = Counter.builder(METRIC_PREFIX + ".rejected")
+			.description("introspections refused because the circuit was open or the executor was saturated")
+			.register(meterRegistry);
+		this.staleCounter = Counter.builder(METRIC_PREFIX + ".stale")
+			.description("requests served a stale introspection result while it was refreshed")
+			.register(meterRegistry);
 	}
 
 	@Override
 	public OAuth2AuthenticatedPrincipal introspect(String token) {
-		return withAdditionalRole("USER", introspectorForToken(token).introspect(token));
+		long started = System.nanoTime();
+		IntrospectionEvent event = new IntrospectionEvent();
+		event.begin();
+		String outcome = IntrospectionEvent.OUTCOME_FAILED;
+		try {
+			OAuth2AuthenticatedPrincipal principal = introspectOrServeCached(token, event);
+			outcome = IntrospectionEvent.OUTCOME_ACTIVE;
+			return principal;
+		} catch (BadOpaqueTokenException ex) {
+			outcome = IntrospectionEvent.OUTCOME_INACTIVE;
+			throw ex;
+		} finally {
+			event.end();
+			/* the event is only filled in when it will be committed */
+			if (event.shouldCommit()) {
+				event.outcome = outcome;
+				event.commit();
+			}
+			RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+			if (null != requestAttributes)
+				requestAttributes.setAttribute(REQUEST_ATTR_INTROSPECTION_NANOS, System.nanoTime() - started, RequestAttributes.SCOPE_REQUEST);
+		}
+	}
+
+	private OAuth2AuthenticatedPrincipal introspectOrServeCached(String token, IntrospectionEvent event) {
+		Optional<CachedIntrospection> cached = cache.flatMap(c -> c.lookup(token));
+		if (cached.isPresent()) {
+			if (cached.get().isFresh()) {
+				if (event.shouldCommit())
+					event.cache = IntrospectionEvent.CACHE_FRESH;
+				return cached.get().principal();
+			}
+
+			/* within the grace period: serve the last known-good result and refresh it in the background */
+			if (event.shouldCommit())
+				event.cache = IntrospectionEvent.CACHE_STALE;
+			staleCounter.increment();
+			inFlightIntrospection(token);
+			return cached.get().principal();
+		}
+
+		CompletableFuture<OAuth2AuthenticatedPrincipal> introspection = inFlightIntrospection(token);
+		if (null == introspection) {
+			rejectedCounter.increment();
+			throw new OAuth2IntrospectionException("Introspection endpoint is unavailable");
+		}
+		return awaitIntrospection(introspection);
+	}
+
+	/*
+	 * joins the introspection already in flight for this token, or starts one if the
+	 * circuit breaker allows it; returns null when no introspection could be started
+	 */
+	private CompletableFuture<OAuth2AuthenticatedPrincipal> inFlightIntrospection(String token) {
+		String key = IntrospectionResultCache.keyForToken(token);
+		CompletableFuture<OAuth2AuthenticatedPrincipal> existingIntrospection = inFlight.get(key);
+		if (null != existingIntrospection)
+			return existingIntrospection;
+
+		if (!circuitBreaker.allowRequest())
+			return null;
+
+		CompletableFuture<OAuth2AuthenticatedPrincipal> introspection = new CompletableFuture<>();
+		existingIntrospection = inFlight.putIfAbsent(key, introspection);
+		if (null != existingIntrospection) {
+			/* another caller started one first; the breaker permit was not used */
+			circuitBreaker.releasePermit();
+			return existingIntrospection;
+		}
+
+		try {
+			introspectionExecutor.execute(() -> runIntrospection(key, token, introspection));
+		} catch (RejectedExecutionException ex) {
+			circuitBreaker.recordFailure();
+			inFlight.remove(key, introspection);
+			introspection.completeExceptionally(new OAuth2IntrospectionException("Introspection endpoint is saturated", ex));
+		}
+		return introspection;
+	}
+
+	private void runIntrospection(String key, String token, CompletableFuture<OAuth2AuthenticatedPrincipal> introspection) {
+		long started = System.nanoTime();
+		try {
+			OAuth2AuthenticatedPrincipal principal = introspectAndCache(token);
+			recordOutcome(started, true);
+			introspection.complete(principal);
+		} catch (BadOpaqueTokenException ex) {
+			/* the endpoint answered; the token is simply inactive */
+			recordOutcome(started, true);
+			introspection.completeExceptionally(ex);
+		} catch (RuntimeException | Error ex) {
+			/* never leave the waiting callers hanging */
+			recordOutcome(started, false);
+			introspection.completeExceptionally(ex);
+		} finally {
+			/* a cacheable result is already cached, so a caller arriving after this point will not introspect again */
+			inFlight.remove(key, introspection);
+		}
+	}
+
+	private void recordOutcome(long started, boolean answered) {
+		/* an answer that took longer than callers are willing to wait still counts against the endpoint */
+		if (answered && System.nanoTime() - started <= timeout.toNanos())
+			circuitBreaker.recordSuccess();
+		else
+			circuitBreaker.recordFailure();
+	}
+
+	private OAuth2AuthenticatedPrincipal awaitIntrospection(CompletableFuture<OAuth2AuthenticatedPrincipal> introspection) {
+		try {
+			return introspection.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			timeoutCounter.increment();
+			throw new OAuth2IntrospectionException("Timed out waiting on the introspection endpoint", ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new OAuth2IntrospectionException("Interrupted waiting on the introspection endpoint", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ex.getCause();
+			if (ex.getCause() instanceof Error)
+				throw (Error) ex.getCause();
+			throw new OAuth2IntrospectionException(ex.getMessage(), ex);
+		}
+	}
+
+	private OAuth2AuthenticatedPrincipal introspectAndCache(String token) {
+		try {
+			OAuth2AuthenticatedPrincipal principal = withAdditionalRole("USER", introspector.introspect(token));
+			cache.ifPresent(c -> c.putActive(token, principal));
+			return principal;
+		} catch (BadOpaqueTokenException ex) {
+			/* the token is inactive; other introspection failures are not cached */
+			cache.ifPresent(c -> c.putInactive(token, ex));
+			throw ex;
+		}
 	}
 
 	private OAuth2AuthenticatedPrincipal withAdditionalRole(String role, OAuth2AuthenticatedPrincipal principal) {
@@ -34,14 +254,62 @@ public class ApplicationOpaqueTokenIntrospector implements OpaqueTokenIntrospect
 		return new DefaultOAuth2AuthenticatedPrincipal(principal.getAttributes(), authorities);
 	}
 
-	private OpaqueTokenIntrospector introspectorForToken(String token) {
-		return introspectorWithUri(properties.getOpaquetoken().getIntrospectionUri());
-	}
-
-	private OpaqueTokenIntrospector introspectorWithUri(String introspectionUri) {
-		RestTemplate restTemplate = new RestTemplate();
+	private static OpaqueTokenIntrospector introspectorWithUri(CloseableHttpClient httpClient, String introspectionUri) {
+		RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
 		restTemplate.getInterceptors().add(new IntrospectorReflexiveAuthenticationInterceptor());
 		OpaqueTokenIntrospector introspector = new NimbusOpaqueTokenIntrospector(introspectionUri, restTemplate);
 		return introspector;
 	}
+
+	/*
+	 * one pooled client for the lifetime of the application, so that
+	 * connections (and their TLS sessions) to the authorization server are kept alive
+	 * between introspections rather than re-established for every request
+	 */
+	private static CloseableHttpClient pooledHttpClient(IntrospectionProperties.Client client, MeterRegistry meterRegistry) {
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(client.getMaxConnections());
+		/* every introspection goes to the same host */
+		connectionManager.setDefaultMaxPerRoute(client.getMaxConnections());
+		new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, CONNECTION_POOL_NAME).bindTo(meterRegistry);
+
+		return HttpClients.custom()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(
+				RequestConfig.custom()
+					.setConnectTimeout((int) client.getConnectTimeout().toMillis())
+					.setSocketTimeout((int) client.getReadTimeout().toMillis())
+					.setConnectionRequestTimeout((int) client.getConnectionRequestTimeout().toMillis())
+					.build()
+				)
+			.evictExpiredConnections()
+			.evictIdleConnections(client.getMaxIdleTime().toMillis(), TimeUnit.MILLISECONDS)
+			.build();
+	}
+
+	/*
+	 * introspections run here, not on the request thread, so that a request
+	 * can stop waiting on a slow endpoint without abandoning the introspection
+	 */
+	private static ThreadPoolExecutor introspectionExecutor(IntrospectionProperties.Resilience resilience) {
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			resilience.getMaxConcurrent(),
+			resilience.getMaxConcurrent(),
+			60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(resilience.getQueueCapacity()),
+			r -> {
+				Thread thread = new Thread(r, "sds-introspection-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@PreDestroy
+	public void close() throws IOException {
+		introspectionExecutor.shutdownNow();
+		httpClient.close();
+	}
 }
@@ -0,0 +1,108 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.Map;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/*
+ * a minimal circuit breaker guarding the introspection endpoint
+ *
+ * CLOSED: introspections are attempted; consecutive failures are counted
+ * OPEN: after the failure threshold is reached, introspections fail fast until the open duration has passed
+ * HALF_OPEN: one trial introspection is let through; its outcome closes or re-opens the circuit
+ *
+ * every transition is counted (tagged with the state entered) and the current state is exported as a gauge
+ */
+public class IntrospectionCircuitBreaker {
+
+	public static final String METRIC_PREFIX = "sds.introspection.circuit";
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final Duration openDuration;
+	private final Map<State, Counter> transitionCounters = new EnumMap<>(State.class);
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures = 0;
+	private Instant openedAt;
+	private boolean trialInFlight = false;
+
+	public IntrospectionCircuitBreaker(int failureThreshold, Duration openDuration, MeterRegistry meterRegistry) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+		for (State s : State.values()) {
+			transitionCounters.put(s,
+				Counter.builder(METRIC_PREFIX + ".transitions")
+					.description("transitions of the introspection circuit breaker into each state")
+					.tag("state", s.name().toLowerCase())
+					.register(meterRegistry)
+				);
+		}
+		Gauge.builder(METRIC_PREFIX + ".state", this, cb -> cb.getState().ordinal())
+			.description("introspection circuit breaker state (0=closed, 1=open, 2=half-open)")
+			.register(meterRegistry);
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/*
+	 * whether an introspection may be attempted now; in HALF_OPEN, only the first caller is allowed
+	 * and must report its outcome with recordSuccess() or recordFailure()
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (Duration.between(openedAt, Instant.now()).compareTo(openDuration) < 0)
+				return false;
+			transitionTo(State.HALF_OPEN);
+			trialInFlight = true;
+			return true;
+		case HALF_OPEN:
+		default:
+			if (trialInFlight)
+				return false;
+			trialInFlight = true;
+			return true;
+		}
+	}
+
+	/*
+	 * gives back a permit from allowRequest() that was not used for an introspection
+	 */
+	public synchronized void releasePermit() {
+		trialInFlight = false;
+	}
+
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+		trialInFlight = false;
+		if (state != State.CLOSED)
+			transitionTo(State.CLOSED);
+	}
+
+	public synchronized void recordFailure() {
+		trialInFlight = false;
+		consecutiveFailures += 1;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+			openedAt = Instant.now();
+			transitionTo(State.OPEN);
+		}
+	}
+
+	private void transitionTo(State newState) {
+		state = newState;
+		transitionCounters.get(newState).increment();
+	}
+}
@@ -0,0 +1,35 @@
+package edu.ohsu.cmp.ecp.security;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * a Java Flight Recorder event for each token introspected on behalf of a request,
+ * whether it was answered from the cache, by an introspection already in flight, or by the authorization server
+ */
+@Name("edu.ohsu.cmp.ecp.security.Introspection")
+@Label("Token Introspection")
+@Category({ "Supplemental Data Store", "Security" })
+@StackTrace(false)
+public class IntrospectionEvent extends Event {
+
+	public static final String CACHE_FRESH = "fresh";
+	public static final String CACHE_STALE = "stale";
+	public static final String CACHE_MISS = "miss";
+
+	public static final String OUTCOME_ACTIVE = "active";
+	public static final String OUTCOME_INACTIVE = "inactive";
+	public static final String OUTCOME_FAILED = "failed";
+
+	@Label("Cache")
+	@Description("fresh, stale ( served while refreshed ) or miss")
+	public String cache = CACHE_MISS;
+
+	@Label("Outcome")
+	@Description("active, inactive or failed")
+	public String outcome;
+}
@@ -0,0 +1,199 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.time.Duration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@ConfigurationProperties(prefix = "sds.introspection")
+public class IntrospectionProperties {
+
+	private Cache cache = new Cache();
+	private Client client = new Client();
+	private Resilience resilience = new Resilience();
+
+	public Cache getCache() {
+		return cache;
+	}
+
+	public void setCache(Cache cache) {
+		this.cache = cache;
+	}
+
+	public Client getClient() {
+		return client;
+	}
+
+	public void setClient(Client client) {
+		this.client = client;
+	}
+
+	public Resilience getResilience() {
+		return resilience;
+	}
+
+	public void setResilience(Resilience resilience) {
+		this.resilience = resilience;
+	}
+
+	public static class Cache {
+
+		private boolean enabled = true;
+		private long maximumSize = 10000;
+		private Duration maximumTtl = Duration.ofMinutes(5);
+		private Duration inactiveTtl = Duration.ofSeconds(30);
+
+		public boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaximumSize() {
+			return maximumSize;
+		}
+
+		public void setMaximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+		}
+
+		public Duration getMaximumTtl() {
+			return maximumTtl;
+		}
+
+		public void setMaximumTtl(Duration maximumTtl) {
+			this.maximumTtl = maximumTtl;
+		}
+
+		public Duration getInactiveTtl() {
+			return inactiveTtl;
+		}
+
+		public void setInactiveTtl(Duration inactiveTtl) {
+			this.inactiveTtl = inactiveTtl;
+		}
+
+	}
+
+	public static class Client {
+
+		private Duration connectTimeout = Duration.ofSeconds(5);
+		private Duration readTimeout = Duration.ofSeconds(10);
+		private Duration connectionRequestTimeout = Duration.ofSeconds(5);
+		private int maxConnections = 50;
+		private Duration maxIdleTime = Duration.ofSeconds(30);
+
+		public Duration getConnectTimeout() {
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(Duration connectTimeout) {
+			this.connectTimeout = connectTimeout;
+		}
+
+		public Duration getReadTimeout() {
+			return readTimeout;
+		}
+
+		public void setReadTimeout(Duration readTimeout) {
+			this.readTimeout = readTimeout;
+		}
+
+		public Duration getConnectionRequestTimeout() {
+			return connectionRequestTimeout;
+		}
+
+		public void setConnectionRequestTimeout(Duration connectionRequestTimeout) {
+			this.connectionRequestTimeout = connectionRequestTimeout;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public void setMaxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+		}
+
+		public Duration getMaxIdleTime() {
+			return maxIdleTime;
+		}
+
+		public void setMaxIdleTime(Duration maxIdleTime) {
+			this.maxIdleTime = maxIdleTime;
+		}
+
+	}
+
+	public static class Resilience {
+
+		private Duration timeout = Duration.ofSeconds(5);
+		private int maxConcurrent = 50;
+		private int queueCapacity = 200;
+		private int failureThreshold = 5;
+		private Duration openDuration = Duration.ofSeconds(30);
+		private Duration gracePeriod = Duration.ZERO;
+
+		/*
+		 * the longest a request waits on an introspection before failing
+		 */
+		public Duration getTimeout() {
+			return timeout;
+		}
+
+		public void setTimeout(Duration timeout) {
+			this.timeout = timeout;
+		}
+
+		public int getMaxConcurrent() {
+			return maxConcurrent;
+		}
+
+		public void setMaxConcurrent(int maxConcurrent) {
+			this.maxConcurrent = maxConcurrent;
+		}
+
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		/*
+		 * consecutive failed or timed-out introspections before the circuit opens
+		 */
+		public int getFailureThreshold() {
+			return failureThreshold;
+		}
+
+		public void setFailureThreshold(int failureThreshold) {
+			this.failureThreshold = failureThreshold;
+		}
+
+		public Duration getOpenDuration() {
+			return openDuration;
+		}
+
+		public void setOpenDuration(Duration openDuration) {
+			this.openDuration = openDuration;
+		}
+
+		/*
+		 * how long past its cache ttl an active result may still be served while
+		 * the token is introspected again in the background; zero disables it
+		 */
+		public Duration getGracePeriod() {
+			return gracePeriod;
+		}
+
+		public void setGracePeriod(Duration gracePeriod) {
+			this.gracePeriod = gracePeriod;
+		}
+
+	}
+}
@@ -0,0 +1,160 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Optional;
+
+import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.server.resource.introspection.BadOpaqueTokenException;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.google.common.hash.Hashing;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * a bounded cache of introspection results, keyed by a hash of the token
+ *
+ * an active result is kept no longer than the "exp" claim of the token
+ * or the configured maximum ttl, whichever comes first
+ *
+ * an inactive result is kept for the (short) configured inactive ttl, so a
+ * client that keeps presenting a revoked or expired token does not cost
+ * an introspection call on every request
+ *
+ * when a grace period is configured, an active result that is no longer fresh is
+ * retained (stale) for up to the grace period longer, but never beyond the "exp" claim,
+ * so it can be served while the token is introspected again in the background
+ */
+public class IntrospectionResultCache {
+
+	public static final String CACHE_NAME = "sds.introspection";
+
+	private final Cache<String,CachedIntrospection> cache;
+	private final Duration maximumTtl;
+	private final Duration inactiveTtl;
+	private final Duration gracePeriod;
+
+	public IntrospectionResultCache(IntrospectionProperties.Cache properties, Duration gracePeriod, MeterRegistry meterRegistry) {
+		this.maximumTtl = properties.getMaximumTtl();
+		this.inactiveTtl = properties.getInactiveTtl();
+		this.gracePeriod = gracePeriod;
+		this.cache = Caffeine.newBuilder()
+			.maximumSize(properties.getMaximumSize())
+			.expireAfter(new CachedIntrospectionExpiry())
+			.recordStats()
+			.build();
+		CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+	}
+
+	public Optional<CachedIntrospection> lookup(String token) {
+		return Optional.ofNullable(cache.getIfPresent(keyForToken(token)));
+	}
+
+	public void putActive(String token, OAuth2AuthenticatedPrincipal principal) {
+		Instant now = Instant.now();
+		Optional<Instant> expiresAt = expirationOf(principal);
+		Instant freshUntil = earliest(now.plus(maximumTtl), expiresAt);
+		Instant retainUntil = earliest(freshUntil.plus(gracePeriod), expiresAt);
+		if (!retainUntil.isAfter(now))
+			return;
+		cache.put(keyForToken(token), CachedIntrospection.active(principal, freshUntil, retainUntil));
+	}
+
+	public void putInactive(String token, BadOpaqueTokenException ex) {
+		if (inactiveTtl.isNegative() || inactiveTtl.isZero())
+			return;
+		Instant retainUntil = Instant.now().plus(inactiveTtl);
+		cache.put(keyForToken(token), CachedIntrospection.inactive(ex.getMessage(), retainUntil));
+	}
+
+	static String keyForToken(String token) {
+		/* never hold the bearer token itself in memory longer than the request needs it */
+		return Hashing.sha256().hashString(token, StandardCharsets.UTF_8).toString();
+	}
+
+	private static Instant earliest(Instant instant, Optional<Instant> other) {
+		if (other.isPresent() && other.get().isBefore(instant))
+			return other.get();
+		return instant;
+	}
+
+	private static Optional<Instant> expirationOf(OAuth2AuthenticatedPrincipal principal) {
+		Object exp = principal.getAttribute("exp");
+		if (exp instanceof Instant)
+			return Optional.of((Instant)exp);
+		if (exp instanceof Date)
+			return Optional.of(((Date)exp).toInstant());
+		if (exp instanceof Number)
+			return Optional.of(Instant.ofEpochSecond(((Number)exp).longValue()));
+		return Optional.empty();
+	}
+
+	public static final class CachedIntrospection {
+		private final OAuth2AuthenticatedPrincipal principal;
+		private final String inactiveMessage;
+		private final Instant freshUntil;
+		private final Instant retainUntil;
+
+		private CachedIntrospection(OAuth2AuthenticatedPrincipal principal, String inactiveMessage, Instant freshUntil, Instant retainUntil) {
+			this.principal = principal;
+			this.inactiveMessage = inactiveMessage;
+			this.freshUntil = freshUntil;
+			this.retainUntil = retainUntil;
+		}
+
+		static CachedIntrospection active(OAuth2AuthenticatedPrincipal principal, Instant freshUntil, Instant retainUntil) {
+			return new CachedIntrospection(principal, null, freshUntil, retainUntil);
+		}
+
+		static CachedIntrospection inactive(String inactiveMessage, Instant retainUntil) {
+			return new CachedIntrospection(null, inactiveMessage, retainUntil, retainUntil);
+		}
+
+		public boolean isActive() {
+			return null != principal;
+		}
+
+		/*
+		 * a result that is not fresh is within its grace period; it may be served,
+		 * but the token should be introspected again
+		 */
+		public boolean isFresh() {
+			return Instant.now().isBefore(freshUntil);
+		}
+
+		public OAuth2AuthenticatedPrincipal principal() {
+			if (!isActive())
+				throw new BadOpaqueTokenException(inactiveMessage);
+			return principal;
+		}
+
+		Duration ttl() {
+			Duration ttl = Duration.between(Instant.now(), retainUntil);
+			return ttl.isNegative() ? Duration.ZERO : ttl;
+		}
+	}
+
+	private static class CachedIntrospectionExpiry implements Expiry<String,CachedIntrospection> {
+
+		@Override
+		public long expireAfterCreate(String key, CachedIntrospection value, long currentTime) {
+			return value.ttl().toNanos();
+		}
+
+		@Override
+		public long expireAfterUpdate(String key, CachedIntrospection value, long currentTime, long currentDuration) {
+			return value.ttl().toNanos();
+		}
+
+		@Override
+		public long expireAfterRead(String key, CachedIntrospection value, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import com.nimbusds.jose.KeySourceException;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.proc.SecurityContext;
+
+/*
+ * a JWKSource backed by a JWKS document at any Spring resource location (URL or local file)
+ *
+ * the document is loaded once up front, reloaded in the background on a fixed interval,
+ * and reloaded on demand (at most once per minimum refresh interval) when a token names a key
+ * that is not in the current set, so that key rotation does not wait on the schedule
+ *
+ * a failed reload keeps the last key set that loaded successfully
+ */
+public class JwkSetResourceSource implements JWKSource<SecurityContext>, AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(JwkSetResourceSource.class);
+
+	private final Resource jwkSetResource;
+	private final Duration minimumRefreshInterval;
+	private final ScheduledExecutorService refreshExecutor;
+
+	private volatile JWKSet jwkSet;
+	private volatile Instant lastLoaded;
+
+	public JwkSetResourceSource(Resource jwkSetResource, Duration refreshInterval, Duration minimumRefreshInterval) throws IOException {
+		this.jwkSetResource = jwkSetResource;
+		this.minimumRefreshInterval = minimumRefreshInterval;
+		this.jwkSet = load();
+		this.lastLoaded = Instant.now();
+
+		this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "sds-jwks-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long refreshMillis = refreshInterval.toMillis();
+		this.refreshExecutor.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public List<JWK> get(JWKSelector jwkSelector, SecurityContext context) throws KeySourceException {
+		List<JWK> keys = jwkSelector.select(jwkSet);
+		if (keys.isEmpty() && refreshIfStale()) {
+			keys = jwkSelector.select(jwkSet);
+		}
+		return keys;
+	}
+
+	public JWKSet getJwkSet() {
+		return jwkSet;
+	}
+
+	private synchronized boolean refreshIfStale() {
+		if (Duration.between(lastLoaded, Instant.now()).compareTo(minimumRefreshInterval) < 0)
+			return false;
+		return refresh();
+	}
+
+	synchronized boolean refresh() {
+		try {
+			jwkSet = load();
+			return true;
+		} catch (IOException ex) {
+			logger.warn("failed to reload JWKS from {}; keeping the previous key set", jwkSetResource.getDescription(), ex);
+			return false;
+		} finally {
+			lastLoaded = Instant.now();
+		}
+	}
+
+	private JWKSet load() throws IOException {
+		try (InputStream in = jwkSetResource.getInputStream()) {
+			return JWKSet.load(in);
+		} catch (ParseException ex) {
+			throw new IOException("invalid JWKS document at " + jwkSetResource.getDescription(), ex);
+		}
+	}
+
+	@Override
+	public void close() {
+		refreshExecutor.shutdownNow();
+	}
+}
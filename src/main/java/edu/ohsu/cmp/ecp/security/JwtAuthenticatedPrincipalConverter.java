@@ -0,0 +1,40 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.core.OAuth2AccessToken;
+import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthentication;
+import org.springframework.security.oauth2.server.resource.authentication.JwtGrantedAuthoritiesConverter;
+
+/*
+ * converts a locally validated JWT into the same kind of Authentication that
+ * opaque-token introspection produces: a BearerTokenAuthentication whose principal
+ * is an OAuth2AuthenticatedPrincipal carrying the token claims ("sub", "fhirUser", "patient", ...)
+ * as attributes, with SCOPE_ authorities and ROLE_USER
+ *
+ * this keeps SupplementalDataStoreAuthBase and the rest of the permissions pipeline
+ * unaware of which validation mode is in use
+ */
+public class JwtAuthenticatedPrincipalConverter implements Converter<Jwt, AbstractAuthenticationToken> {
+
+	private final JwtGrantedAuthoritiesConverter scopeAuthoritiesConverter = new JwtGrantedAuthoritiesConverter();
+
+	@Override
+	public AbstractAuthenticationToken convert(Jwt jwt) {
+		Collection<GrantedAuthority> authorities = new ArrayList<>();
+		authorities.addAll(scopeAuthoritiesConverter.convert(jwt));
+		authorities.add(new SimpleGrantedAuthority("ROLE_USER"));
+
+		OAuth2AuthenticatedPrincipal principal = new DefaultOAuth2AuthenticatedPrincipal(jwt.getSubject(), jwt.getClaims(), authorities);
+		OAuth2AccessToken accessToken = new OAuth2AccessToken(OAuth2AccessToken.TokenType.BEARER, jwt.getTokenValue(), jwt.getIssuedAt(), jwt.getExpiresAt());
+		return new BearerTokenAuthentication(principal, accessToken, authorities);
+	}
+}
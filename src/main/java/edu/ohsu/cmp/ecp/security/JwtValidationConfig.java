@@ -0,0 +1,82 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.security.oauth2.core.DelegatingOAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2TokenValidatorResult;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+
+@Configuration
+@ConditionalOnProperty(prefix = "sds.jwt", name = "enabled", havingValue = "true")
+public class JwtValidationConfig {
+
+	@Bean(destroyMethod = "close")
+	public JwkSetResourceSource jwkSetResourceSource(JwtValidationProperties properties, ResourceLoader resourceLoader) throws IOException {
+		if (null == properties.getJwkSetLocation())
+			throw new IllegalStateException("sds.jwt.enabled requires sds.jwt.jwk-set-location");
+		return new JwkSetResourceSource(
+			resourceLoader.getResource(properties.getJwkSetLocation()),
+			properties.getRefreshInterval(),
+			properties.getMinimumRefreshInterval()
+			);
+	}
+
+	@Bean
+	public JwtDecoder jwtDecoder(JwtValidationProperties properties, JwkSetResourceSource jwkSource) {
+		return jwtDecoderFor(jwkSource, properties.getIssuer(), properties.getAudiences());
+	}
+
+	@Bean
+	public JwtAuthenticatedPrincipalConverter jwtAuthenticatedPrincipalConverter() {
+		return new JwtAuthenticatedPrincipalConverter();
+	}
+
+	static JwtDecoder jwtDecoderFor(JwkSetResourceSource jwkSource, String issuer, List<String> audiences) {
+		/* asymmetric algorithms only; a published key set never verifies an HMAC signature */
+		Set<JWSAlgorithm> algorithms = new HashSet<>();
+		algorithms.addAll(JWSAlgorithm.Family.RSA);
+		algorithms.addAll(JWSAlgorithm.Family.EC);
+
+		DefaultJWTProcessor<SecurityContext> jwtProcessor = new DefaultJWTProcessor<>();
+		jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(algorithms, jwkSource));
+		/* claims are validated by the Spring validators below */
+		jwtProcessor.setJWTClaimsSetVerifier((claims, context) -> {});
+
+		List<OAuth2TokenValidator<Jwt>> validators = new ArrayList<>();
+		validators.add(null == issuer ? JwtValidators.createDefault() : JwtValidators.createDefaultWithIssuer(issuer));
+		if (null != audiences && !audiences.isEmpty())
+			validators.add(audienceValidator(audiences));
+
+		NimbusJwtDecoder jwtDecoder = new NimbusJwtDecoder(jwtProcessor);
+		jwtDecoder.setJwtValidator(new DelegatingOAuth2TokenValidator<>(validators));
+		return jwtDecoder;
+	}
+
+	private static OAuth2TokenValidator<Jwt> audienceValidator(List<String> audiences) {
+		OAuth2Error error = new OAuth2Error("invalid_token", "The required audience is missing", null);
+		return jwt -> {
+			List<String> tokenAudiences = jwt.getAudience();
+			if (null != tokenAudiences && tokenAudiences.stream().anyMatch(audiences::contains))
+				return OAuth2TokenValidatorResult.success();
+			return OAuth2TokenValidatorResult.failure(error);
+		};
+	}
+}
@@ -0,0 +1,80 @@
+package edu.ohsu.cmp.ecp.security;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+/*
+ * settings for validating self-contained JWT access tokens locally,
+ * as an alternative to introspecting opaque tokens at the authorization server
+ */
+@Configuration
+@ConfigurationProperties(prefix = "sds.jwt")
+public class JwtValidationProperties {
+
+	private boolean enabled = false;
+	private String jwkSetLocation;
+	private Duration refreshInterval = Duration.ofMinutes(5);
+	private Duration minimumRefreshInterval = Duration.ofSeconds(30);
+	private String issuer;
+	private List<String> audiences = new ArrayList<>();
+
+	public boolean getEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/*
+	 * a Spring resource location for the JWKS document, e.g.
+	 * "https://my-ehr.org/oauth2/jwks" or "file:/etc/sds/jwks.json"
+	 */
+	public String getJwkSetLocation() {
+		return jwkSetLocation;
+	}
+
+	public void setJwkSetLocation(String jwkSetLocation) {
+		this.jwkSetLocation = jwkSetLocation;
+	}
+
+	public Duration getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	public void setRefreshInterval(Duration refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/*
+	 * the shortest time between reloads triggered by a token signed with an unknown key
+	 */
+	public Duration getMinimumRefreshInterval() {
+		return minimumRefreshInterval;
+	}
+
+	public void setMinimumRefreshInterval(Duration minimumRefreshInterval) {
+		this.minimumRefreshInterval = minimumRefreshInterval;
+	}
+
+	public String getIssuer() {
+		return issuer;
+	}
+
+	public void setIssuer(String issuer) {
+		this.issuer = issuer;
+	}
+
+	public List<String> getAudiences() {
+		return audiences;
+	}
+
+	public void setAudiences(List<String> audiences) {
+		this.audiences = audiences;
+	}
+
+}
@@ -19,6 +19,10 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import org.hl7.fhir.instance.model.api.IIdType;
@@ -28,10 +32,12 @@ import org.junit.jupiter.api.Test;
 import org.mockserver.client.MockServerClient;
 import org.mockserver.mock.Expectation;
 import org.mockserver.model.HttpRequest;
+import org.mockserver.model.Delay;
 import org.mockserver.model.HttpResponse;
 import org.mockserver.model.RequestDefinition;
 import org.mockserver.springtest.MockServerPort;
 import org.mockserver.springtest.MockServerTest;
+import org.mockserver.verify.VerificationTimes;
 import org.opentest4j.AssertionFailedError;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ActiveProfiles;
@@ -426,6 +432,56 @@ public class AppClientIntrospectTest extends BaseSuppplementalDataStoreTest {
 		checkPermissionForPatientReadWriteAccessWhenAuthorizationIsRelatedPerson( WITHOUT_RESOURCE_TYPE_WITH_FHIR_USER, true ) ;
 	}
 
+	/************************************************************************************************************
+	 * introspection results are cached for the lifetime of the token
+	 ************************************************************************************************************/
+
+	@Test
+	public void introspectsTokenOnceForRepeatedRequests() {
+		IIdType authorizedPatientId = new IdType( ehrBaseUrl.toString(), "Patient", createTestSpecificId(), null ) ;
+
+		respondToIntrospectWith( introspectResponseBuilder().patient(authorizedPatientId).build() );
+
+		assertAuthorizationToReadResourceThatisMissing( authorizedPatientId, true ) ;
+		assertAuthorizationToReadResourceThatisMissing( authorizedPatientId, true ) ;
+		assertAuthorizationToReadResourceThatisMissing( authorizedPatientId, true ) ;
+
+		mockServerClient.verify( oauth2IntrospectRequest(), VerificationTimes.once() ) ;
+	}
+
+	@Test
+	public void introspectsInactiveTokenOnceForRepeatedRequests() {
+		IIdType authorizedPatientId = new IdType( ehrBaseUrl.toString(), "Patient", createTestSpecificId(), null ) ;
+
+		respondToIntrospectWith( response().withStatusCode( 200 ).withBody( json( "{ \"active\": false }" ) ) );
+
+		assertAuthorizationToReadResourceThatisMissing( authorizedPatientId, false ) ;
+		assertAuthorizationToReadResourceThatisMissing( authorizedPatientId, false ) ;
+
+		mockServerClient.verify( oauth2IntrospectRequest(), VerificationTimes.once() ) ;
+	}
+
+	@Test
+	public void introspectsTokenOnceForConcurrentRequests() throws Exception {
+		IIdType authorizedPatientId = new IdType( ehrBaseUrl.toString(), "Patient", createTestSpecificId(), null ) ;
+
+		/* slow enough that every request arrives while the first introspection is still in flight */
+		respondToIntrospectWith( introspectResponseBuilder().patient(authorizedPatientId).build().withDelay( Delay.milliseconds( 500 ) ) );
+
+		ExecutorService executor = Executors.newFixedThreadPool( 10 ) ;
+		try {
+			List<Future<?>> requests = new ArrayList<>() ;
+			for ( int i = 0 ; i < 10 ; ++i )
+				requests.add( executor.submit( () -> assertAuthorizationToReadResourceThatisMissing( authorizedPatientId, true ) ) ) ;
+			for ( Future<?> request : requests )
+				request.get( 30, TimeUnit.SECONDS ) ;
+		} finally {
+			executor.shutdownNow() ;
+		}
+
+		mockServerClient.verify( oauth2IntrospectRequest(), VerificationTimes.once() ) ;
+	}
+
 	/************************************************************************************************************
 	 * request and response helpers
 	 ************************************************************************************************************/
@@ -0,0 +1,92 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+
+@ActiveProfiles( "auth-aware-test")
+public class AuthorizationRuleCacheTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreAuthorizationRuleCache ruleCache ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	private IIdType authorizedUserId ;
+	private AtomicInteger builds ;
+
+	@BeforeEach
+	public void setupUser() {
+		authorizedUserId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		builds = new AtomicInteger() ;
+	}
+
+	private Supplier<List<IAuthRule>> countingBuilder() {
+		return () -> {
+			builds.incrementAndGet() ;
+			return new ArrayList<>() ;
+		};
+	}
+
+	private Permissions permissionsFor( IIdType localPatientId, IIdType... nonLocalPatientIds ) {
+		UserIdentity patientIdentity = new UserIdentity( authorizedUserId, Optional.ofNullable( localPatientId ), List.of( nonLocalPatientIds ) ) ;
+		return new Permissions( new Permissions.ReadAndWriteSpecificPatient( authorizedUserId, patientIdentity ) ) ;
+	}
+
+	@Test
+	void reusesRulesForSamePermissions() {
+		IIdType localPatientId = new IdType( "Patient", createTestSpecificId() ) ;
+		IIdType otherNonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		List<IAuthRule> rules = ruleCache.rulesFor( permissionsFor( localPatientId, authorizedUserId, otherNonLocalPatientId ), countingBuilder() ) ;
+		List<IAuthRule> sameRules = ruleCache.rulesFor( permissionsFor( localPatientId, otherNonLocalPatientId, authorizedUserId ), countingBuilder() ) ;
+
+		assertThat( sameRules, sameInstance( rules ) ) ;
+		assertThat( builds.get(), equalTo( 1 ) ) ;
+	}
+
+	@Test
+	void rebuildsRulesForDifferentPermissions() {
+		IIdType localPatientId = new IdType( "Patient", createTestSpecificId() ) ;
+
+		List<IAuthRule> rules = ruleCache.rulesFor( permissionsFor( localPatientId, authorizedUserId ), countingBuilder() ) ;
+		List<IAuthRule> otherRules = ruleCache.rulesFor( permissionsFor( null, authorizedUserId ), countingBuilder() ) ;
+
+		assertThat( otherRules, not( sameInstance( rules ) ) ) ;
+		assertThat( builds.get(), equalTo( 2 ) ) ;
+	}
+
+	@Test
+	void rebuildsRulesAfterLinkageChanges() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		Permissions permissions = permissionsFor( localPatientId ) ;
+
+		ruleCache.rulesFor( permissions, countingBuilder() ) ;
+		ruleCache.rulesFor( permissions, countingBuilder() ) ;
+		assertThat( builds.get(), equalTo( 1 ) ) ;
+
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, authorizedUserId ) ;
+
+		ruleCache.rulesFor( permissions, countingBuilder() ) ;
+		assertThat( builds.get(), equalTo( 2 ) ) ;
+	}
+}
@@ -0,0 +1,200 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreCompartmentRule.CompartmentOperation;
+
+/*
+ * the hash-based compartment rule must decide exactly as the per-patient RuleBuilder compartment rules did
+ */
+public class CompartmentRuleTest {
+
+	private static final FhirContext fhirContext = FhirContext.forR4Cached() ;
+
+	private static final AuthorizationInterceptor ruleApplier = new AuthorizationInterceptor() ;
+
+	private static final IIdType LOCAL_PATIENT = new IdType( "Patient/local-1" ) ;
+	private static final IIdType NON_LOCAL_PATIENT = new IdType( "http://my.ehr.org/fhir/R4/Patient/foreign-1" ) ;
+	private static final IIdType OTHER_PATIENT = new IdType( "Patient/other-1" ) ;
+
+	private static final List<IIdType> OWNERS = List.of( LOCAL_PATIENT, NON_LOCAL_PATIENT, NON_LOCAL_PATIENT.toUnqualifiedVersionless() ) ;
+
+	private static class Scenario {
+		final String description ;
+		RestOperationTypeEnum operation ;
+		IBaseResource inputResource ;
+		IIdType inputResourceId ;
+		IBaseResource outputResource ;
+		Pointcut pointcut = Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED ;
+		String resourceName ;
+		Map<String, String[]> parameters = new HashMap<>() ;
+
+		Scenario( String description, RestOperationTypeEnum operation ) {
+			this.description = description ;
+			this.operation = operation ;
+		}
+		Scenario input( IBaseResource resource ) { inputResource = resource ; if ( resource.getIdElement().hasIdPart() ) inputResourceId = resource.getIdElement() ; return this ; }
+		Scenario inputId( String id ) { inputResourceId = new IdType( id ) ; return this ; }
+		Scenario output( IBaseResource resource ) { outputResource = resource ; pointcut = Pointcut.STORAGE_PREACCESS_RESOURCES ; return this ; }
+		Scenario at( Pointcut p ) { pointcut = p ; return this ; }
+		Scenario search( String type, String param, String value ) { resourceName = type ; if ( null != param ) parameters.put( param, new String[] { value } ) ; return this ; }
+		Scenario type( String type ) { resourceName = type ; return this ; }
+	}
+
+	private static Observation observationFor( IIdType patientId ) {
+		Observation observation = new Observation() ;
+		observation.setId( "Observation/obs-1" ) ;
+		observation.setSubject( new Reference( patientId ) ) ;
+		return observation ;
+	}
+
+	private static Patient patient( IIdType patientId ) {
+		Patient patient = new Patient() ;
+		patient.setId( patientId.toUnqualifiedVersionless() ) ;
+		return patient ;
+	}
+
+	private static List<Scenario> scenarios() {
+		List<Scenario> scenarios = new ArrayList<>() ;
+		scenarios.add( new Scenario( "read own patient", RestOperationTypeEnum.READ ).inputId( "Patient/local-1" ) ) ;
+		scenarios.add( new Scenario( "read other patient", RestOperationTypeEnum.READ ).inputId( "Patient/other-1" ) ) ;
+		scenarios.add( new Scenario( "read observation before loading", RestOperationTypeEnum.READ ).inputId( "Observation/obs-1" ) ) ;
+		scenarios.add( new Scenario( "show own observation", RestOperationTypeEnum.READ ).output( observationFor( LOCAL_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "show non-local observation", RestOperationTypeEnum.READ ).output( observationFor( NON_LOCAL_PATIENT.toUnqualifiedVersionless() ) ) ) ;
+		scenarios.add( new Scenario( "show qualified non-local observation", RestOperationTypeEnum.READ ).output( observationFor( NON_LOCAL_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "show other observation", RestOperationTypeEnum.READ ).output( observationFor( OTHER_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "show own patient", RestOperationTypeEnum.READ ).output( patient( LOCAL_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "show other patient", RestOperationTypeEnum.READ ).output( patient( OTHER_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "search by own subject", RestOperationTypeEnum.SEARCH_TYPE ).search( "Observation", "subject", "Patient/local-1" ) ) ;
+		scenarios.add( new Scenario( "search by non-local patient id", RestOperationTypeEnum.SEARCH_TYPE ).search( "Observation", "patient", "foreign-1" ) ) ;
+		scenarios.add( new Scenario( "search by qualified non-local patient", RestOperationTypeEnum.SEARCH_TYPE ).search( "Observation", "patient", NON_LOCAL_PATIENT.getValue() ) ) ;
+		scenarios.add( new Scenario( "search by other subject", RestOperationTypeEnum.SEARCH_TYPE ).search( "Observation", "subject", "Patient/other-1" ) ) ;
+		scenarios.add( new Scenario( "search by any of several subjects", RestOperationTypeEnum.SEARCH_TYPE ).search( "Observation", "subject", "Patient/other-1,Patient/local-1" ) ) ;
+		scenarios.add( new Scenario( "search without parameters", RestOperationTypeEnum.SEARCH_TYPE ).search( "Observation", null, null ) ) ;
+		scenarios.add( new Scenario( "search own patient by id", RestOperationTypeEnum.SEARCH_TYPE ).search( "Patient", "_id", "local-1" ) ) ;
+		scenarios.add( new Scenario( "search other patient by id", RestOperationTypeEnum.SEARCH_TYPE ).search( "Patient", "_id", "other-1" ) ) ;
+		scenarios.add( new Scenario( "search outside compartment", RestOperationTypeEnum.SEARCH_TYPE ).search( "Organization", null, null ) ) ;
+		scenarios.add( new Scenario( "search system", RestOperationTypeEnum.SEARCH_SYSTEM ) ) ;
+		scenarios.add( new Scenario( "history of type", RestOperationTypeEnum.HISTORY_TYPE ).type( "Observation" ) ) ;
+		scenarios.add( new Scenario( "history of instance", RestOperationTypeEnum.HISTORY_INSTANCE ).inputId( "Patient/local-1" ) ) ;
+		scenarios.add( new Scenario( "get page", RestOperationTypeEnum.GET_PAGE ) ) ;
+		scenarios.add( new Scenario( "create own observation", RestOperationTypeEnum.CREATE ).input( new Observation().setSubject( new Reference( LOCAL_PATIENT ) ) ) ) ;
+		scenarios.add( new Scenario( "create other observation", RestOperationTypeEnum.CREATE ).input( new Observation().setSubject( new Reference( OTHER_PATIENT ) ) ) ) ;
+		scenarios.add( new Scenario( "update own patient", RestOperationTypeEnum.UPDATE ).input( patient( LOCAL_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "update other patient", RestOperationTypeEnum.UPDATE ).input( patient( OTHER_PATIENT ) ) ) ;
+		scenarios.add( new Scenario( "patch own patient", RestOperationTypeEnum.PATCH ).inputId( "Patient/local-1" ) ) ;
+		scenarios.add( new Scenario( "patch observation", RestOperationTypeEnum.PATCH ).inputId( "Observation/obs-1" ) ) ;
+		scenarios.add( new Scenario( "delete own observation", RestOperationTypeEnum.DELETE ).input( observationFor( LOCAL_PATIENT ) ).at( Pointcut.STORAGE_PRESTORAGE_RESOURCE_DELETED ) ) ;
+		scenarios.add( new Scenario( "delete other observation", RestOperationTypeEnum.DELETE ).input( observationFor( OTHER_PATIENT ) ).at( Pointcut.STORAGE_PRESTORAGE_RESOURCE_DELETED ) ) ;
+		scenarios.add( new Scenario( "cascade-delete own observation", RestOperationTypeEnum.DELETE ).input( observationFor( LOCAL_PATIENT ) ).at( Pointcut.STORAGE_CASCADE_DELETE ) ) ;
+		scenarios.add( new Scenario( "cascade-delete other observation", RestOperationTypeEnum.DELETE ).input( observationFor( OTHER_PATIENT ) ).at( Pointcut.STORAGE_CASCADE_DELETE ) ) ;
+		scenarios.add( new Scenario( "delete-expunge", RestOperationTypeEnum.DELETE ).inputId( "Observation" ).at( Pointcut.STORAGE_PRE_DELETE_EXPUNGE ) ) ;
+		scenarios.add( new Scenario( "delete before loading", RestOperationTypeEnum.DELETE ).inputId( "Observation/obs-1" ).at( Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED ) ) ;
+		return scenarios ;
+	}
+
+	private static List<IAuthRule> ruleBuilderRules( boolean manage ) {
+		List<IAuthRule> rules = new ArrayList<>() ;
+		for ( IIdType owner : OWNERS ) {
+			if ( !manage ) {
+				rules.addAll( new RuleBuilder().allow().read().allResources().inCompartment( "Patient", owner ).build() ) ;
+				continue ;
+			}
+			rules.addAll(
+				new RuleBuilder()
+					.allow().read().allResources().inCompartment( "Patient", owner )
+					.andThen()
+					.allow().write().allResources().inCompartment( "Patient", owner )
+					.andThen()
+					.allow().delete().allResources().inCompartment( "Patient", owner )
+					.build()
+				);
+			rules.addAll( new RuleBuilder().allow().delete().onCascade().allResources().inCompartment( "Patient", owner ).build() ) ;
+			rules.addAll( new RuleBuilder().allow().delete().onExpunge().allResources().inCompartment( "Patient", owner ).build() ) ;
+		}
+		return rules ;
+	}
+
+	private static IAuthRule compartmentRule( boolean manage ) {
+		Set<CompartmentOperation> operations = manage ? EnumSet.allOf( CompartmentOperation.class ) : EnumSet.of( CompartmentOperation.READ ) ;
+		return new SupplementalDataStoreCompartmentRule( "compartment", operations, OWNERS ) ;
+	}
+
+	private static PolicyEnum decide( List<IAuthRule> rules, Scenario scenario, Set<AuthorizationFlagsEnum> flags ) {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setFhirContext( fhirContext ) ;
+		request.setResourceName( scenario.resourceName ) ;
+		request.setParameters( scenario.parameters ) ;
+		for ( IAuthRule rule : rules ) {
+			Verdict verdict = rule.applyRule( scenario.operation, request, scenario.inputResource, scenario.inputResourceId, scenario.outputResource, ruleApplier, flags, scenario.pointcut ) ;
+			if ( null != verdict )
+				return verdict.getDecision() ;
+		}
+		return null ;
+	}
+
+	private static void assertSameDecisions( boolean manage, Set<AuthorizationFlagsEnum> flags ) {
+		List<IAuthRule> ruleBuilderRules = ruleBuilderRules( manage ) ;
+		List<IAuthRule> compartmentRules = List.of( compartmentRule( manage ) ) ;
+		int allowed = 0 ;
+		int undecided = 0 ;
+		for ( Scenario scenario : scenarios() ) {
+			PolicyEnum decision = decide( compartmentRules, scenario, flags ) ;
+			assertThat( scenario.description, decision, equalTo( decide( ruleBuilderRules, scenario, flags ) ) ) ;
+			if ( PolicyEnum.ALLOW == decision )
+				++allowed ;
+			else
+				++undecided ;
+		}
+		/* the scenarios must exercise both outcomes */
+		assertThat( allowed, greaterThan( 0 ) ) ;
+		assertThat( undecided, greaterThan( 0 ) ) ;
+	}
+
+	@Test
+	void decidesReadAccessAsRuleBuilderRules() {
+		assertSameDecisions( false, Collections.emptySet() ) ;
+		assertSameDecisions( false, EnumSet.of( AuthorizationFlagsEnum.DO_NOT_PROACTIVELY_BLOCK_COMPARTMENT_READ_ACCESS ) ) ;
+	}
+
+	@Test
+	void decidesManageAccessAsRuleBuilderRules() {
+		assertSameDecisions( true, Collections.emptySet() ) ;
+		assertSameDecisions( true, EnumSet.of( AuthorizationFlagsEnum.DO_NOT_PROACTIVELY_BLOCK_COMPARTMENT_READ_ACCESS ) ) ;
+	}
+
+	@Test
+	void grantsNothingWithoutCompartmentOwners() {
+		IAuthRule rule = new SupplementalDataStoreCompartmentRule( "compartment", EnumSet.allOf( CompartmentOperation.class ), List.of() ) ;
+		for ( Scenario scenario : scenarios() )
+			assertThat( scenario.description, decide( List.of( rule ), scenario, Collections.emptySet() ), equalTo( null ) ) ;
+	}
+}
@@ -0,0 +1,287 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.interceptor.api.IAnonymousInterceptor;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+
+@ActiveProfiles( "auth-aware-test")
+public class ConcurrentOnboardingTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: the parallel first requests of a newly launched app all create the local user for the same non-local patient
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+	private static final String FOREIGN_PARTITION_NAME_OTHER = "http://other.ehr.org/fhir/R4/" ;
+
+	private static final int PATIENTS = 4 ;
+	private static final int REQUESTS_PER_PATIENT = 8 ;
+	private static final int MAXIMUM_ATTEMPTS = 5 ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStorePartition partition ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	IInterceptorService interceptorService ;
+
+	private IIdType createNonLocalPatient() {
+		return createNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+	}
+
+	private IIdType createNonLocalPatient( String partitionName ) {
+		IIdType nonLocalPatientId = new IdType( partitionName, "Patient", createTestSpecificId(), null ) ;
+
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Patient> daoPatient = daoRegistry.getResourceDao( "Patient" ) ;
+		Patient patient = new Patient() ;
+		patient.setId( nonLocalPatientId.toUnqualifiedVersionless() ) ;
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( partitionName ) ) ;
+		daoPatient.update( patient, request ) ;
+
+		return nonLocalPatientId ;
+	}
+
+	@Test
+	@Transactional( propagation = Propagation.NOT_SUPPORTED )
+	void createsOneLocalUserPerPatient() throws Exception {
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME ) ;
+
+		List<IIdType> nonLocalPatientIds = new ArrayList<>() ;
+		for ( int p = 0 ; p < PATIENTS ; ++p )
+			nonLocalPatientIds.add( createNonLocalPatient() ) ;
+
+		ExecutorService executor = Executors.newFixedThreadPool( PATIENTS * REQUESTS_PER_PATIENT ) ;
+		CountDownLatch start = new CountDownLatch( 1 ) ;
+		List<List<Future<IIdType>>> localUserIds = new ArrayList<>() ;
+		try {
+			for ( IIdType nonLocalPatientId : nonLocalPatientIds ) {
+				List<Future<IIdType>> requests = new ArrayList<>() ;
+				for ( int r = 0 ; r < REQUESTS_PER_PATIENT ; ++r ) {
+					requests.add( executor.submit( () -> {
+						start.await() ;
+						return linkage.establishLocalUserFor( nonLocalPatientId ) ;
+					}) ) ;
+				}
+				localUserIds.add( requests ) ;
+			}
+			start.countDown() ;
+
+			Set<String> allLocalUserIds = new HashSet<>() ;
+			for ( int p = 0 ; p < PATIENTS ; ++p ) {
+				Set<String> distinctLocalUserIds = new HashSet<>() ;
+				for ( Future<IIdType> request : localUserIds.get( p ) )
+					distinctLocalUserIds.add( request.get( 60, TimeUnit.SECONDS ).toUnqualifiedVersionless().getValue() ) ;
+				assertThat( distinctLocalUserIds, hasSize( 1 ) ) ;
+
+				List<String> linkedLocalUserIds =
+					linkage.patientsLinkedFrom( nonLocalPatientIds.get( p ) ).stream()
+						.map( IBaseReference::getReferenceElement )
+						.map( id -> id.toUnqualifiedVersionless().getValue() )
+						.collect( toList() )
+						;
+				assertThat( linkedLocalUserIds, contains( distinctLocalUserIds.iterator().next() ) ) ;
+
+				allLocalUserIds.addAll( distinctLocalUserIds ) ;
+			}
+			assertThat( allLocalUserIds, hasSize( PATIENTS ) ) ;
+		} finally {
+			executor.shutdownNow() ;
+		}
+	}
+
+	private Observation foreignObservationFor( IIdType subject ) {
+		Observation observation = new Observation() ;
+		observation.setId( new IdType( "Observation", createTestSpecificId() ) ) ;
+		observation.setSubject( new Reference( subject ) ) ;
+		observation.getCode().setText( "MY-OBSERVATION" ) ;
+		observation.setEffective( new DateTimeType( new Date() ) ) ;
+		observation.setValue( new BooleanType( true ) ) ;
+		return observation ;
+	}
+
+	/*
+	 * without the lock, a request that loses the race for the local user claim is rolled back with a conflict, and simply retried
+	 */
+	private static <T> T retryingConflicts( Supplier<T> request ) {
+		for ( int attempt = 1 ; ; ++attempt ) {
+			try {
+				return request.get() ;
+			} catch ( ResourceVersionConflictException ex ) {
+				if ( attempt >= MAXIMUM_ATTEMPTS )
+					throw ex ;
+			}
+		}
+	}
+
+	private Set<String> localUserIdsLinkedFrom( IIdType nonLocalPatientId ) {
+		Set<String> localUserIds = new HashSet<>() ;
+		for ( IBaseReference ref : linkage.patientsLinkedFrom( nonLocalPatientId ) )
+			localUserIds.add( ref.getReferenceElement().toUnqualifiedVersionless().getValue() ) ;
+		return localUserIds ;
+	}
+
+	/*
+	 * the app stores records from another institution in parallel;
+	 * each request needs the local user linked to the authorized patient, and creates it if it is absent
+	 *
+	 * unless conflicts are retried, any request rolled back with a conflict fails the test
+	 */
+	private void storeOtherPatientRecordsConcurrently( IIdType authorizedPatientId, IIdType otherPatientId, boolean retryConflicts ) throws Exception {
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+
+		ExecutorService executor = Executors.newFixedThreadPool( REQUESTS_PER_PATIENT ) ;
+		CountDownLatch start = new CountDownLatch( 1 ) ;
+		List<Future<IIdType>> requests = new ArrayList<>() ;
+		try {
+			for ( int r = 0 ; r < REQUESTS_PER_PATIENT ; ++r ) {
+				IGenericClient client = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME_OTHER ) ;
+				requests.add( executor.submit( () -> {
+					start.await() ;
+					Supplier<IIdType> request = () -> client.update().resource( foreignObservationFor( otherPatientId ) ).execute().getId() ;
+					return retryConflicts ? retryingConflicts( request ) : request.get() ;
+				}) ) ;
+			}
+			start.countDown() ;
+
+			for ( Future<IIdType> request : requests )
+				request.get( 60, TimeUnit.SECONDS ) ;
+		} finally {
+			executor.shutdownNow() ;
+		}
+	}
+
+	@Test
+	@Transactional( propagation = Propagation.NOT_SUPPORTED )
+	void concurrentRequestsCreateOneLocalUser() throws Exception {
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME ) ;
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME_OTHER ) ;
+
+		IIdType authorizedPatientId = createNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		IIdType otherPatientId = createNonLocalPatient( FOREIGN_PARTITION_NAME_OTHER ) ;
+
+		/* the lock serializes the requests, so none of them should ever lose the race for the claim */
+		storeOtherPatientRecordsConcurrently( authorizedPatientId, otherPatientId, false ) ;
+
+		Set<String> localUserIds = localUserIdsLinkedFrom( authorizedPatientId ) ;
+		assertThat( localUserIds, hasSize( 1 ) ) ;
+		assertThat( localUserIdsLinkedFrom( otherPatientId ), contains( localUserIds.iterator().next() ) ) ;
+	}
+
+	/*
+	 * without the lock, nothing but the local user claim keeps the requests from each creating a local user
+	 */
+	@Test
+	@Transactional( propagation = Propagation.NOT_SUPPORTED )
+	void concurrentRequestsCreateOneLocalUserWithoutWaitingForTheLock() throws Exception {
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME ) ;
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME_OTHER ) ;
+
+		IIdType authorizedPatientId = createNonLocalPatient( FOREIGN_PARTITION_NAME ) ;
+		IIdType otherPatientId = createNonLocalPatient( FOREIGN_PARTITION_NAME_OTHER ) ;
+
+		Duration lockTimeout = sdsProperties.getOnboarding().getLockTimeout() ;
+		sdsProperties.getOnboarding().setLockTimeout( Duration.ZERO ) ;
+		try {
+			storeOtherPatientRecordsConcurrently( authorizedPatientId, otherPatientId, true ) ;
+		} finally {
+			sdsProperties.getOnboarding().setLockTimeout( lockTimeout ) ;
+		}
+
+		Set<String> localUserIds = localUserIdsLinkedFrom( authorizedPatientId ) ;
+		assertThat( localUserIds, hasSize( 1 ) ) ;
+		assertThat( localUserIdsLinkedFrom( otherPatientId ), contains( localUserIds.iterator().next() ) ) ;
+	}
+
+	private int countLocalPatients() {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( sdsProperties.getPartition().getLocalName() ) ) ;
+		return daoRegistry.getResourceDao( "Patient" ).search( SearchParameterMap.newSynchronous(), request ).size() ;
+	}
+
+	/*
+	 * when the Linkage cannot be stored, the local user created alongside it is rolled back too
+	 */
+	@Test
+	@Transactional( propagation = Propagation.NOT_SUPPORTED )
+	void createsLocalUserAndLinkageInOneTransaction() {
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME ) ;
+		IIdType nonLocalPatientId = createNonLocalPatient() ;
+
+		IAnonymousInterceptor refuseLinkage = ( pointcut, params ) -> {
+			if ( "Linkage".equals( params.get( IBaseResource.class ).fhirType() ) )
+				throw new InternalErrorException( "refusing to store a Linkage" ) ;
+		};
+		int localPatients = countLocalPatients() ;
+		interceptorService.registerAnonymousInterceptor( Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED, refuseLinkage ) ;
+		try {
+			assertThrows( BaseServerResponseException.class, () -> linkage.establishLocalUserLinkedTo( nonLocalPatientId ) ) ;
+		} finally {
+			interceptorService.unregisterInterceptor( refuseLinkage ) ;
+		}
+
+		assertThat( countLocalPatients(), equalTo( localPatients ) ) ;
+		assertThat( localUserIdsLinkedFrom( nonLocalPatientId ), empty() ) ;
+
+		IIdType localUserId = linkage.establishLocalUserLinkedTo( nonLocalPatientId ) ;
+		assertThat( localUserIdsLinkedFrom( nonLocalPatientId ), contains( localUserId.toUnqualifiedVersionless().getValue() ) ) ;
+	}
+}
@@ -0,0 +1,142 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.Resource;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+@ActiveProfiles( "auth-aware-test")
+@TestPropertySource( properties = "management.endpoints.web.exposure.include=health,prometheus," + SupplementalDataStoreFlightRecordingEndpoint.ENDPOINT_ID )
+public class FlightRecordingTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: an administrator records the SDS events of a running server and downloads the recording
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4" ;
+
+	@Autowired
+	SupplementalDataStoreFlightRecordingEndpoint flightRecording ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@AfterEach
+	public void closeRecording() {
+		flightRecording.closeRecording() ;
+	}
+
+	private List<RecordedEvent> download( long recordingId ) throws Exception {
+		WebEndpointResponse<Resource> response = flightRecording.download( recordingId ) ;
+		assertThat( response.getStatus(), equalTo( WebEndpointResponse.STATUS_OK ) ) ;
+		Path recordingFile = Files.createTempFile( "sds-test-", ".jfr" ) ;
+		try {
+			try ( InputStream recording = response.getBody().getInputStream() ) {
+				Files.copy( recording, recordingFile, StandardCopyOption.REPLACE_EXISTING ) ;
+			}
+			return RecordingFile.readAllEvents( recordingFile ) ;
+		} finally {
+			Files.deleteIfExists( recordingFile ) ;
+		}
+	}
+
+	private int statusOfRecordingRequestWith( String token ) {
+		HttpResponse response =
+			executeRequest( HttpGet::new, "/actuator/" + SupplementalDataStoreFlightRecordingEndpoint.ENDPOINT_ID, q -> {
+				q.addHeader( HttpHeaders.AUTHORIZATION, "Bearer " + token ) ;
+				return q ;
+			});
+		EntityUtils.consumeQuietly( response.getEntity() ) ;
+		return response.getStatusLine().getStatusCode() ;
+	}
+
+	private static List<RecordedEvent> eventsNamed( List<RecordedEvent> events, String eventName ) {
+		return events.stream().filter( e -> eventName.equals( e.getEventType().getName() ) ).collect( toList() ) ;
+	}
+
+	@Test
+	void recordsLinkageLookupsAndIdentityBootstrap() throws Exception {
+		WebEndpointResponse<Map<String,Object>> started = flightRecording.start( "1m" ) ;
+		assertThat( started.getStatus(), equalTo( WebEndpointResponse.STATUS_OK ) ) ;
+		assertThat( started.getBody().get( "state" ), equalTo( "RUNNING" ) ) ;
+		long recordingId = (Long)started.getBody().get( "id" ) ;
+
+		/* a second recording cannot be started over the first */
+		assertThat( flightRecording.start( null ).getStatus(), equalTo( 409 ) ) ;
+
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		linkage.establishLocalUserLinkedTo( nonLocalPatientId ) ;
+		linkage.lookupLocalUserFor( nonLocalPatientId ) ;
+		linkage.lookupLocalUserFor( nonLocalPatientId ) ;
+
+		assertThat( flightRecording.stop().getBody().get( "state" ), equalTo( "STOPPED" ) ) ;
+
+		List<RecordedEvent> events = download( recordingId ) ;
+
+		List<RecordedEvent> bootstraps = eventsNamed( events, "edu.ohsu.cmp.ecp.sds.IdentityBootstrap" ) ;
+		assertThat( bootstraps.stream().map( e -> e.getBoolean( "created" ) ).collect( toList() ), contains( true ) ) ;
+
+		List<RecordedEvent> lookups =
+			eventsNamed( events, "edu.ohsu.cmp.ecp.sds.LinkageLookup" ).stream()
+				.filter( e -> "localUserFor".equals( e.getString( "call" ) ) )
+				.collect( toList() )
+				;
+		assertThat( lookups.stream().map( e -> e.getBoolean( "cacheHit" ) ).collect( toList() ), contains( false, true ) ) ;
+		assertThat( lookups.get( 0 ).getInt( "results" ), equalTo( 1 ) ) ;
+		assertThat( lookups.get( 0 ).getString( "partitions" ), containsString( sdsProperties.getPartition().getLocalName() ) ) ;
+		assertThat( lookups.get( 0 ).getString( "partitions" ), containsString( FOREIGN_PARTITION_NAME ) ) ;
+	}
+
+	@Test
+	void refusesRecordingRequestWithoutAdminAuthority() {
+		IIdType patientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", patientId.toString() ).token() ;
+
+		assertThat( statusOfRecordingRequestWith( token ), equalTo( 403 ) ) ;
+	}
+
+	@Test
+	void allowsRecordingRequestWithAdminAuthority() {
+		String adminAuthority = sdsProperties.getFlightRecording().getAdminAuthority() ;
+		DefaultOAuth2AuthenticatedPrincipal admin =
+			new DefaultOAuth2AuthenticatedPrincipal( "MyAdmin", Map.of( "sub", "MyAdmin" ), List.of( new SimpleGrantedAuthority( adminAuthority ) ) ) ;
+		String token = mockPrincipalRegistry.register().principal( admin ).token() ;
+
+		assertThat( statusOfRecordingRequestWith( token ), equalTo( 200 ) ) ;
+	}
+}
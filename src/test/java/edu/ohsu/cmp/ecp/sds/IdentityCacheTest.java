@@ -0,0 +1,125 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+
+@ActiveProfiles( "auth-aware-test")
+public class IdentityCacheTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	SupplementalDataStorePartition partition ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	private IIdType nonLocalPatientId ;
+
+	@BeforeEach
+	public void setupPatient() {
+		nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		/* linkages are only found by their non-local item once the non-local patient exists */
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME ) ;
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Patient> daoPatient = daoRegistry.getResourceDao( "Patient" ) ;
+		Patient patient = new Patient() ;
+		patient.setId( nonLocalPatientId.toUnqualifiedVersionless() ) ;
+		daoPatient.update( patient, partitionRequest( FOREIGN_PARTITION_NAME ) ) ;
+	}
+
+	private SystemRequestDetails partitionRequest( String partitionName ) {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( partitionName ) ) ;
+		return request ;
+	}
+
+	private SystemRequestDetails localPartitionRequest() {
+		return partitionRequest( sdsProperties.getPartition().getLocalName() ) ;
+	}
+
+	private List<String> linkedPatientIds( IIdType localPatientId ) {
+		return linkage.patientsLinkedTo( localPatientId ).stream().map( IBaseReference::getReferenceElement ).map( IIdType::getValue ).collect( toList() ) ;
+	}
+
+	private void deleteLinkagesFrom( IIdType localPatientId ) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Linkage> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		List<IBaseResource> linkages =
+			daoLinkage.search( new SearchParameterMap( "source", new ReferenceParam( localPatientId ) ), localPartitionRequest() ).getAllResources() ;
+		for ( IBaseResource l : linkages )
+			daoLinkage.delete( l.getIdElement().toUnqualifiedVersionless(), localPartitionRequest() ) ;
+	}
+
+	@Test
+	void canLookupLocalUserAfterLinkageIsCreated() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+
+		/* prime the cache with the unlinked state */
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ), equalTo( Optional.empty() ) ) ;
+		assertThat( linkedPatientIds( localPatientId ), empty() ) ;
+
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+		assertThat( linkedPatientIds( localPatientId ), contains( nonLocalPatientId.getValue() ) ) ;
+	}
+
+	@Test
+	void cannotLookupLocalUserAfterLinkageIsDeleted() {
+		IIdType localPatientId = linkage.establishLocalUserFor( nonLocalPatientId ) ;
+
+		/* prime the cache with the linked state */
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+		assertThat( linkedPatientIds( localPatientId ), contains( nonLocalPatientId.getValue() ) ) ;
+
+		deleteLinkagesFrom( localPatientId ) ;
+
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ), equalTo( Optional.empty() ) ) ;
+		assertThat( linkedPatientIds( localPatientId ), empty() ) ;
+	}
+
+	@Test
+	void callersCannotChangeCachedIdentities() {
+		IIdType localPatientId = linkage.establishLocalUserFor( nonLocalPatientId ) ;
+		IIdType otherId = new IdType( "Patient", createTestSpecificId() ) ;
+
+		/* change what the first caller was handed */
+		linkage.lookupLocalUserFor( nonLocalPatientId ).get().setValue( otherId.getValue() ) ;
+		linkage.patientsLinkedTo( localPatientId ).forEach( ref -> ref.setReference( otherId.getValue() ) ) ;
+
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+		assertThat( linkedPatientIds( localPatientId ), contains( nonLocalPatientId.getValue() ) ) ;
+	}
+}
@@ -0,0 +1,149 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.IResourcePersistentId;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import edu.ohsu.cmp.ecp.sds.base.IdentityLink;
+import edu.ohsu.cmp.ecp.sds.base.IdentityLinkBackfill;
+import edu.ohsu.cmp.ecp.sds.base.IdentityLinkIndex;
+
+@ActiveProfiles( "auth-aware-test")
+public class IdentityLinkIndexTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	IdentityLinkIndex identityLinks ;
+
+	@Autowired
+	IdentityLinkBackfill identityLinkBackfill ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	private IIdType nonLocalPatientId ;
+
+	@BeforeEach
+	public void setupIndex() {
+		nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		identityLinkBackfill.backfill() ;
+	}
+
+	private SystemRequestDetails localPartitionRequest() {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( sdsProperties.getPartition().getLocalName() ) ) ;
+		return request ;
+	}
+
+	private List<IBaseResource> linkagesFrom( IIdType localPatientId ) {
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Linkage> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		return daoLinkage.search( new SearchParameterMap( "source", new ReferenceParam( localPatientId ) ), localPartitionRequest() ).getAllResources() ;
+	}
+
+	private List<String> indexedLocalIdsFor( IIdType nonLocalPatientId ) {
+		return identityLinks.linksToNonLocal( nonLocalPatientId, IdentityLinkIndex.LINK_TYPE_ALTERNATE ).stream().map( IdentityLink::getLocalId ).collect( toList() ) ;
+	}
+
+	@Test
+	void indexesLinkageWhenCreated() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		assertThat( indexedLocalIdsFor( nonLocalPatientId ), contains( localPatientId.toUnqualifiedVersionless().getValue() ) ) ;
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+		assertThat(
+			linkage.patientsLinkedTo( localPatientId ).stream().map( IBaseReference::getReferenceElement ).map( IIdType::getValue ).collect( toList() ),
+			contains( nonLocalPatientId.getValue() )
+			);
+		assertThat(
+			linkage.patientsLinkedFrom( nonLocalPatientId ).stream().map( IBaseReference::getReferenceElement ).map( IIdType::getIdPart ).collect( toList() ),
+			contains( localPatientId.getIdPart() )
+			);
+	}
+
+	@Test
+	void removesLinkageFromIndexWhenDeleted() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Linkage> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		for ( IBaseResource l : linkagesFrom( localPatientId ) )
+			daoLinkage.delete( l.getIdElement().toUnqualifiedVersionless(), localPartitionRequest() ) ;
+
+		assertThat( indexedLocalIdsFor( nonLocalPatientId ), empty() ) ;
+	}
+
+	@Test
+	void backfillRestoresMissingLinks() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		List<String> linkageIds = linkagesFrom( localPatientId ).stream().map( l -> l.getIdElement().getIdPart() ).collect( toList() ) ;
+		identityLinks.removeLinks( linkageIds ) ;
+		assertThat( indexedLocalIdsFor( nonLocalPatientId ), empty() ) ;
+
+		identityLinkBackfill.backfill() ;
+
+		assertThat( indexedLocalIdsFor( nonLocalPatientId ), contains( localPatientId.toUnqualifiedVersionless().getValue() ) ) ;
+	}
+
+	@Test
+	void backfillSkipsLinkageDeletedAfterListing() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Linkage> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		List<IResourcePersistentId> linkagePids = daoLinkage.searchForIds( new SearchParameterMap( "source", new ReferenceParam( localPatientId ) ).setLoadSynchronous( true ), localPartitionRequest() ) ;
+		for ( IBaseResource l : linkagesFrom( localPatientId ) )
+			daoLinkage.delete( l.getIdElement().toUnqualifiedVersionless(), localPartitionRequest() ) ;
+
+		assertThat( identityLinkBackfill.backfill( linkagePids ), equalTo( linkagePids.size() ) ) ;
+
+		assertThat( identityLinks.state(), equalTo( IdentityLinkIndex.State.READY ) ) ;
+		assertThat( indexedLocalIdsFor( nonLocalPatientId ), empty() ) ;
+	}
+
+	@Test
+	void backfillDoesNotDuplicateLinks() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		identityLinkBackfill.backfill() ;
+		identityLinkBackfill.backfill() ;
+
+		assertThat( indexedLocalIdsFor( nonLocalPatientId ), contains( localPatientId.toUnqualifiedVersionless().getValue() ) ) ;
+	}
+}
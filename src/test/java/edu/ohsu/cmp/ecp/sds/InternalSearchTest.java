@@ -0,0 +1,82 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.QuestionnaireResponse;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.dao.data.ISearchDao;
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+@ActiveProfiles( "auth-aware-test")
+public class InternalSearchTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	ISearchDao searchDao ;
+
+	private IIdType authorizedPatientId ;
+	private IGenericClient patientAppClient ;
+
+	@BeforeEach
+	public void setupAuthorizedPatient() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+
+		patientAppClient = authenticatingClient( token ) ;
+	}
+
+	/*
+	 *  setup: no resources
+	 * action: store the local patient, then store a resource for the authorized patient
+	 * result: - linkages are searched for and created on behalf of each request
+	 *         - no search is persisted for those internal lookups
+	 */
+	@Test
+	void doesNotPersistSearchesForInternalLookupsPerRequest() {
+		long searchesBefore = searchDao.count() ;
+
+		IIdType localPatientId = patientAppClient.create().resource( new Patient() ).execute().getId() ;
+		assertThat( localPatientId, notNullValue() ) ;
+
+		QuestionnaireResponse questionnaireResponse = new QuestionnaireResponse() ;
+		questionnaireResponse.setSubject( new Reference( authorizedPatientId ) ) ;
+		questionnaireResponse.setQuestionnaire( createTestSpecificId() ) ;
+		patientAppClient.create().resource( questionnaireResponse ).execute() ;
+
+		assertThat( searchDao.count(), equalTo( searchesBefore ) ) ;
+	}
+
+	/*
+	 *  setup: no resources
+	 * action: look up the local user and linked patients directly
+	 * result: no search is persisted for those lookups
+	 */
+	@Test
+	void doesNotPersistSearchesForLinkageLookups() {
+		long searchesBefore = searchDao.count() ;
+
+		IIdType localPatientId = linkage.establishLocalUserFor( authorizedPatientId ) ;
+		linkage.patientsLinkedTo( localPatientId ) ;
+		linkage.patientsLinkedFrom( authorizedPatientId ) ;
+
+		assertThat( searchDao.count(), equalTo( searchesBefore ) ) ;
+	}
+}
@@ -0,0 +1,157 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.hl7.fhir.r4.model.Linkage.LinkageType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.UrlType;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.searchparam.matcher.AuthorizationSearchParamMatcher;
+import ca.uhn.fhir.jpa.searchparam.matcher.SearchParamMatcher;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+
+@ActiveProfiles( "auth-aware-test")
+public class LinkageItemTesterTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4" ;
+
+	@Autowired
+	FhirContext fhirContext ;
+
+	@Autowired
+	SearchParamMatcher searchParamMatcher ;
+
+	private final Set<AuthorizationFlagsEnum> flags = Collections.emptySet() ;
+
+	private static Reference itemReference( IIdType id ) {
+		/* as the linkage writes them: unqualified, with the partition of a non-local patient in an extension */
+		Reference ref = new Reference( id.toUnqualifiedVersionless() ) ;
+		if ( id.hasBaseUrl() )
+			ref.addExtension( "urn:sds:partition-name", new UrlType( id.getBaseUrl() ) ) ;
+		return ref ;
+	}
+
+	private Linkage linkage( IIdType source, IIdType alternate ) {
+		Linkage linkage = new Linkage() ;
+		linkage.setId( new IdType( "Linkage", createTestSpecificId() ) ) ;
+		if ( null != source )
+			linkage.addItem().setType( LinkageType.SOURCE ).setResource( itemReference( source ) ) ;
+		if ( null != alternate )
+			linkage.addItem().setType( LinkageType.ALTERNATE ).setResource( itemReference( alternate ) ) ;
+		return linkage ;
+	}
+
+	private static Reference qualifiedItemReference( IIdType id ) {
+		/* as a client might write them: qualified with the base url of the patient's partition */
+		return new Reference( id.toVersionless() ) ;
+	}
+
+	private Linkage qualifiedLinkage( IIdType source, IIdType alternate ) {
+		Linkage linkage = new Linkage() ;
+		linkage.setId( new IdType( "Linkage", createTestSpecificId() ) ) ;
+		linkage.addItem().setType( LinkageType.SOURCE ).setResource( qualifiedItemReference( source ) ) ;
+		linkage.addItem().setType( LinkageType.ALTERNATE ).setResource( qualifiedItemReference( alternate ) ) ;
+		return linkage ;
+	}
+
+	private List<IAuthRule> filterRules( List<IIdType> patientIds ) {
+		List<IAuthRule> filterRules = filterRules( patientIds ) ;
+		List<IAuthRule> testerRules = testerRules( patientIds ) ;
+		AuthorizationInterceptor applier = applier() ;
+
+		List<Linkage> linkages = List.of(
+			linkage( localPatientId, nonLocalPatientId ),
+			linkage( localPatientId, unrelatedNonLocalPatientId ),
+			linkage( unrelatedPatientId, nonLocalPatientId ),
+			linkage( unrelatedPatientId, unrelatedNonLocalPatientId ),
+			linkage( localPatientId, null ),
+			linkage( null, null )
+			);
+
+		List<Boolean> allowed = new ArrayList<>() ;
+		for ( Linkage linkage : linkages ) {
+			Verdict expectedRead = decide( filterRules, applier, RestOperationTypeEnum.READ, null, linkage, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+			Verdict actualRead = decide( testerRules, applier, RestOperationTypeEnum.READ, null, linkage, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+			assertThat( "read " + linkage.getItem(), null != actualRead, equalTo( null != expectedRead ) ) ;
+			allowed.add( null != actualRead ) ;
+
+			for ( Pointcut pointcut : List.of( Pointcut.STORAGE_CASCADE_DELETE, Pointcut.STORAGE_PRESTORAGE_RESOURCE_DELETED ) ) {
+				Verdict expectedDelete = decide( filterRules, applier, RestOperationTypeEnum.DELETE, linkage, null, pointcut ) ;
+				Verdict actualDelete = decide( testerRules, applier, RestOperationTypeEnum.DELETE, linkage, null, pointcut ) ;
+				assertThat( "delete " + pointcut + " " + linkage.getItem(), null != actualDelete, equalTo( null != expectedDelete ) ) ;
+			}
+		}
+
+		assertThat( allowed, hasItem( true ) ) ;
+		assertThat( allowed, hasItem( false ) ) ;
+	}
+
+	@Test
+	void makesSameDecisionAsItemFilterForLinkageSearch() {
+		List<IIdType> patientIds = List.of( new IdType( "Patient", createTestSpecificId() ) ) ;
+		AuthorizationInterceptor applier = applier() ;
+
+		/* before the search is handled there is no Linkage to inspect */
+		Verdict expected = decide( filterRules( patientIds ), applier, RestOperationTypeEnum.SEARCH_TYPE, null, null, Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED ) ;
+		Verdict actual = decide( testerRules( patientIds ), applier, RestOperationTypeEnum.SEARCH_TYPE, null, null, Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED ) ;
+		assertThat( "search", null != actual, equalTo( null != expected ) ) ;
+
+		/* the Linkages found by the search are decided as they are returned */
+		Linkage linkage = linkage( patientIds.get(0), null ) ;
+		Verdict expectedOutput = decide( filterRules( patientIds ), applier, RestOperationTypeEnum.SEARCH_TYPE, null, linkage, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+		Verdict actualOutput = decide( testerRules( patientIds ), applier, RestOperationTypeEnum.SEARCH_TYPE, null, linkage, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+		assertThat( "search result", null != actualOutput, equalTo( null != expectedOutput ) ) ;
+		assertThat( "search result", null != actualOutput, equalTo( true ) ) ;
+	}
+
+	@Test
+	void makesSameDecisionsAsItemFilterForQualifiedItems() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType otherNonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		IIdType unrelatedNonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		List<IIdType> patientIds = List.of( nonLocalPatientId, otherNonLocalPatientId ) ;
+
+		List<IAuthRule> filterRules = filterRules( patientIds ) ;
+		List<IAuthRule> testerRules = testerRules( patientIds ) ;
+		AuthorizationInterceptor applier = applier() ;
+
+		List<Linkage> linkages = List.of(
+			qualifiedLinkage( nonLocalPatientId, otherNonLocalPatientId ),
+			qualifiedLinkage( nonLocalPatientId, unrelatedNonLocalPatientId ),
+			qualifiedLinkage( unrelatedNonLocalPatientId, unrelatedNonLocalPatientId )
+			);
+
+		for ( Linkage linkage : linkages ) {
+			Verdict expectedRead = decide( filterRules, applier, RestOperationTypeEnum.READ, null, linkage, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+			Verdict actualRead = decide( testerRules, applier, RestOperationTypeEnum.READ, null, linkage, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+			assertThat( "read " + linkage.getItem(), null != actualRead, equalTo( null != expectedRead ) ) ;
+
+			for ( Pointcut pointcut : List.of( Pointcut.STORAGE_CASCADE_DELETE, Pointcut.STORAGE_PRESTORAGE_RESOURCE_DELETED ) ) {
+				Verdict expectedDelete = decide( filterRules, applier, RestOperationTypeEnum.DELETE, linkage, null, pointcut ) ;
+				Verdict actualDelete = decide( testerRules, applier, RestOperationTypeEnum.DELETE, linkage, null, pointcut ) ;
+				assertThat( "delete " + pointcut + " " + linkage.getItem(), null != actualDelete, equalTo( null != expectedDelete ) ) ;
+			}
+		}
+	}
+}
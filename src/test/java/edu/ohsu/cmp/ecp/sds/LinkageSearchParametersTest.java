@@ -0,0 +1,116 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Linkage;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import edu.ohsu.cmp.ecp.sds.base.LinkageSearchParameters;
+
+@ActiveProfiles( "auth-aware-test")
+public class LinkageSearchParametersTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	SupplementalDataStorePartition partition ;
+
+	@Autowired
+	LinkageSearchParameters linkageSearchParameters ;
+
+	@Autowired
+	DaoRegistry daoRegistry ;
+
+	private IIdType nonLocalPatientId ;
+
+	@BeforeEach
+	public void setupSearchParameters() {
+		nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		linkageSearchParameters.install() ;
+
+		/* linkages are only found by their non-local item once the non-local patient exists */
+		partition.establishNonLocalPartition( FOREIGN_PARTITION_NAME ) ;
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Patient> daoPatient = daoRegistry.getResourceDao( "Patient" ) ;
+		Patient patient = new Patient() ;
+		patient.setId( nonLocalPatientId.toUnqualifiedVersionless() ) ;
+		daoPatient.update( patient, partitionRequest( FOREIGN_PARTITION_NAME ) ) ;
+	}
+
+	private SystemRequestDetails partitionRequest( String partitionName ) {
+		SystemRequestDetails request = new SystemRequestDetails() ;
+		request.setRequestPartitionId( RequestPartitionId.fromPartitionName( partitionName ) ) ;
+		return request ;
+	}
+
+	private List<IBaseResource> searchLinkages( String paramName, IIdType id ) {
+		SystemRequestDetails request = partitionRequest( sdsProperties.getPartition().getLocalName() ) ;
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Linkage> daoLinkage = daoRegistry.getResourceDao( "Linkage" ) ;
+		SearchParameterMap searchParamMap = new SearchParameterMap( paramName, new ReferenceParam( id.toUnqualifiedVersionless() ) ) ;
+		return daoLinkage.search( searchParamMap.setLoadSynchronous( true ), request ).getAllResources() ;
+	}
+
+	@Test
+	void searchParametersAreInstalled() {
+		assertThat( linkageSearchParameters.isReady(), equalTo( true ) ) ;
+	}
+
+	@Test
+	void reindexCompletionIsRecorded() {
+		assertThat( linkageSearchParameters.isReindexCompleted(), equalTo( true ) ) ;
+	}
+
+	@Test
+	void reindexesWhenCompletionWasNotRecorded() {
+		/* as if a node crashed mid-reindex, or another node is still reindexing: the search parameters are unchanged but no completion is recorded */
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+		linkageSearchParameters.forgetReindexCompletion() ;
+		assertThat( linkageSearchParameters.isReindexCompleted(), equalTo( false ) ) ;
+
+		linkageSearchParameters.install() ;
+
+		assertThat( linkageSearchParameters.isReindexCompleted(), equalTo( true ) ) ;
+		assertThat( linkageSearchParameters.isReady(), equalTo( true ) ) ;
+		assertThat( searchLinkages( LinkageSearchParameters.SP_LINKAGE_ALTERNATE, nonLocalPatientId ), hasSize( 1 ) ) ;
+	}
+
+	@Test
+	void searchParametersMatchOnlyItemsOfTheirType() {
+		IIdType localPatientId = linkage.establishLocalUser( "Patient" ) ;
+		linkage.linkNonLocalPatientToLocalPatient( localPatientId, nonLocalPatientId ) ;
+
+		assertThat( searchLinkages( LinkageSearchParameters.SP_LINKAGE_SOURCE, localPatientId ), hasSize( 1 ) ) ;
+		assertThat( searchLinkages( LinkageSearchParameters.SP_LINKAGE_ALTERNATE, localPatientId ), empty() ) ;
+		assertThat( searchLinkages( LinkageSearchParameters.SP_LINKAGE_ALTERNATE, nonLocalPatientId ), hasSize( 1 ) ) ;
+		assertThat( searchLinkages( LinkageSearchParameters.SP_LINKAGE_SOURCE, nonLocalPatientId ), empty() ) ;
+
+		assertThat( linkage.lookupLocalUserFor( nonLocalPatientId ).map( IIdType::getIdPart ), equalTo( Optional.of( localPatientId.getIdPart() ) ) ) ;
+	}
+}
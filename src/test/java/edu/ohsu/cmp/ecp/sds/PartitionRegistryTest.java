@@ -0,0 +1,105 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.data.IPartitionDao;
+import ca.uhn.fhir.jpa.entity.PartitionEntity;
+
+@ActiveProfiles( "auth-aware-test")
+public class PartitionRegistryTest extends BaseSuppplementalDataStoreTest {
+
+	@Autowired
+	SupplementalDataStorePartition partition ;
+
+	@Autowired
+	IPartitionDao daoPartition ;
+
+	@Autowired
+	PlatformTransactionManager txManager ;
+
+	private String newPartitionName() {
+		return "http://my.ehr.org/fhir/" + createTestSpecificId() + "/" ;
+	}
+
+	@Test
+	void canEstablishSamePartitionConcurrently() throws Exception {
+		String partitionName = newPartitionName() ;
+		int nodes = 8 ;
+		CountDownLatch start = new CountDownLatch( 1 ) ;
+		ExecutorService executor = Executors.newFixedThreadPool( nodes ) ;
+		try {
+			List<Future<?>> results = new ArrayList<>() ;
+			for ( int i = 0 ; i < nodes ; ++i ) {
+				results.add( executor.submit( () -> {
+					start.await() ;
+					partition.establishNonLocalPartition( partitionName ) ;
+					return null ;
+				}) ) ;
+			}
+			start.countDown() ;
+			for ( Future<?> result : results )
+				result.get( 30, TimeUnit.SECONDS ) ;
+		} finally {
+			executor.shutdownNow() ;
+		}
+
+		assertThat( partition.partitionExists( partitionName ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void canEstablishSamePartitionConcurrentlyWithinRequestTransactions() throws Exception {
+		String partitionName = newPartitionName() ;
+		int nodes = 8 ;
+		CountDownLatch start = new CountDownLatch( 1 ) ;
+		ExecutorService executor = Executors.newFixedThreadPool( nodes ) ;
+		try {
+			List<Future<Boolean>> results = new ArrayList<>() ;
+			for ( int i = 0 ; i < nodes ; ++i ) {
+				results.add( executor.submit( () -> {
+					start.await() ;
+					/* as the linking hooks do, inside the transaction of the request, which must still commit */
+					return new TransactionTemplate( txManager ).execute( s -> {
+						partition.establishNonLocalPartition( partitionName ) ;
+						return daoPartition.findForName( partitionName ).isPresent() ;
+					});
+				}) ) ;
+			}
+			start.countDown() ;
+			for ( Future<Boolean> result : results )
+				assertThat( result.get( 30, TimeUnit.SECONDS ), equalTo( true ) ) ;
+		} finally {
+			executor.shutdownNow() ;
+		}
+
+		assertThat( partition.partitionExists( partitionName ), equalTo( true ) ) ;
+	}
+
+	@Test
+	void findsPartitionCreatedElsewhere() {
+		String partitionName = newPartitionName() ;
+		assertThat( partition.partitionExists( partitionName ), equalTo( false ) ) ;
+
+		PartitionEntity partitionEntity = new PartitionEntity() ;
+		partitionEntity.setId( partitionName.hashCode() ) ;
+		partitionEntity.setName( partitionName ) ;
+		new TransactionTemplate( txManager ).executeWithoutResult( s -> daoPartition.save( partitionEntity ) ) ;
+
+		assertThat( partition.partitionExists( partitionName ), equalTo( true ) ) ;
+		partition.establishNonLocalPartition( partitionName ) ;
+	}
+}
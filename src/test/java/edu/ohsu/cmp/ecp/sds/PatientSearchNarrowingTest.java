@@ -0,0 +1,207 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Goal;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+
+@ActiveProfiles( "auth-aware-test")
+public class PatientSearchNarrowingTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: search without naming the patient, and retrieve only the authorized patient's resources
+	 */
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SdsRequestProbe probe ;
+
+	@Autowired
+	FhirContext fhirContext ;
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	private IIdType authorizedPatientId;
+	private IGenericClient patientAppClient ;
+
+	private IIdType otherPatientId;
+	private IGenericClient otherPatientAppClient ;
+
+	@BeforeEach
+	public void setupAuthorizedPatients() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null );
+		patientAppClient = authenticatingClientTargetingPartition( tokenFor( authorizedPatientId ), FOREIGN_PARTITION_NAME ) ;
+		storePatient( patientAppClient, authorizedPatientId ) ;
+
+		otherPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null );
+		otherPatientAppClient = authenticatingClientTargetingPartition( tokenFor( otherPatientId ), FOREIGN_PARTITION_NAME ) ;
+		storePatient( otherPatientAppClient, otherPatientId ) ;
+	}
+
+	private String tokenFor( IIdType patientId ) {
+		return mockPrincipalRegistry.register().principal( "MyPatient", patientId.toString() ).token() ;
+	}
+
+	private void storePatient( IGenericClient client, IIdType patientId ) {
+		Patient patient = new Patient() ;
+		patient.setId( new IdType( "Patient", patientId.getIdPart() ) ) ;
+		client.update().resource(patient).execute() ;
+	}
+
+	private String storeCondition( IGenericClient client, IIdType patientId ) {
+		Condition condition = new Condition() ;
+		condition.setId( new IdType( "Condition", createTestSpecificId() ) ) ;
+		condition.setSubject( new Reference( new IdType( "Patient", patientId.getIdPart() ) ) ) ;
+		return client.update().resource(condition).execute().getId().getIdPart() ;
+	}
+
+	private String storeGoal( IGenericClient client, IIdType patientId ) {
+		Goal goal = new Goal() ;
+		goal.setId( new IdType( "Goal", createTestSpecificId() ) ) ;
+		goal.setLifecycleStatus( Goal.GoalLifecycleStatus.ACTIVE ) ;
+		goal.getDescription().setText( "walk daily" ) ;
+		goal.setSubject( new Reference( new IdType( "Patient", patientId.getIdPart() ) ) ) ;
+		return client.update().resource(goal).execute().getId().getIdPart() ;
+	}
+
+	private String storeObservationPerformedBy( IGenericClient client, IIdType patientId ) {
+		Observation observation = new Observation() ;
+		observation.setId( new IdType( "Observation", createTestSpecificId() ) ) ;
+		observation.setStatus( Observation.ObservationStatus.FINAL ) ;
+		observation.getCode().setText( "self-reported mood" ) ;
+		observation.addPerformer( new Reference( new IdType( "Patient", patientId.getIdPart() ) ) ) ;
+		return client.update().resource(observation).execute().getId().getIdPart() ;
+	}
+
+	private static List<String> idParts( Bundle bundle ) {
+		return bundle.getEntry().stream()
+			.filter( Bundle.BundleEntryComponent::hasResource )
+			.map( Bundle.BundleEntryComponent::getResource )
+			.map( IBaseResource::getIdElement )
+			.map( IIdType::getIdPart )
+			.collect( toList() )
+			;
+	}
+
+	/* the values the DAO was asked to search the named parameter for, across the searches since the probe started recording */
+	private List<String> searchedValues( String paramName ) {
+		List<SearchParameterMap> searches = probe.searches() ;
+		assertThat( "the search reached the DAO", searches, not( empty() ) ) ;
+		return searches.stream()
+			.filter( m -> m.containsKey( paramName ) )
+			.flatMap( m -> m.get( paramName ).stream() )
+			.flatMap( List::stream )
+			.map( p -> p.getValueAsQueryToken( fhirContext ) )
+			.collect( toList() )
+			;
+	}
+
+	private List<String> patientCompartmentParamNames( String resourceType ) {
+		return fhirContext.getResourceDefinition( resourceType ).getSearchParamsForCompartmentName( "Patient" ).stream()
+			.map( RuntimeSearchParam::getName )
+			.distinct()
+			.collect( toList() )
+			;
+	}
+
+	@Test
+	void searchWithoutPatientIsNarrowedBeforeTheDao() {
+		/* a Goal enters the patient compartment only through its "patient" parameter */
+		assertThat( patientCompartmentParamNames( "Goal" ), contains( "patient" ) ) ;
+
+		storeGoal( patientAppClient, authorizedPatientId ) ;
+		storeGoal( otherPatientAppClient, otherPatientId ) ;
+
+		probe.record() ;
+		patientAppClient.search().forResource(Goal.class).returnBundle(Bundle.class).execute() ;
+
+		List<String> values = searchedValues( "patient" ) ;
+		assertThat( values, hasItem( containsString( authorizedPatientId.getIdPart() ) ) ) ;
+		assertThat( values, everyItem( not( containsString( otherPatientId.getIdPart() ) ) ) ) ;
+	}
+
+	@Test
+	void searchOfTypeInCompartmentThroughSeveralParamsIsNotNarrowed() {
+		List<String> compartmentParamNames = patientCompartmentParamNames( "Observation" ) ;
+		assertThat( compartmentParamNames, hasItems( "subject", "performer" ) ) ;
+
+		/* in the patient compartment only as its performer */
+		String observationId = storeObservationPerformedBy( patientAppClient, authorizedPatientId ) ;
+
+		probe.record() ;
+		Bundle bundle = patientAppClient.search().forResource(Observation.class).returnBundle(Bundle.class).execute() ;
+
+		assertThat( idParts( bundle ), contains( observationId ) ) ;
+		for ( String compartmentParamName : compartmentParamNames )
+			assertThat( compartmentParamName, searchedValues( compartmentParamName ), empty() ) ;
+	}
+
+	@Test
+	void searchForPatientsIsNarrowedBeforeTheDao() {
+		probe.record() ;
+		patientAppClient.search().forResource(Patient.class).returnBundle(Bundle.class).execute() ;
+
+		List<String> values = searchedValues( "_id" ) ;
+		assertThat( values, hasItem( authorizedPatientId.getIdPart() ) ) ;
+		assertThat( values, everyItem( not( containsString( otherPatientId.getIdPart() ) ) ) ) ;
+	}
+
+	@Test
+	void searchWithoutPatientFindsOnlyAuthorizedPatientResources() {
+		String conditionId1 = storeCondition( patientAppClient, authorizedPatientId ) ;
+		String conditionId2 = storeCondition( patientAppClient, authorizedPatientId ) ;
+		storeCondition( otherPatientAppClient, otherPatientId ) ;
+
+		Bundle bundle = patientAppClient.search().forResource(Condition.class).returnBundle(Bundle.class).execute() ;
+
+		assertThat( idParts( bundle ), containsInAnyOrder( conditionId1, conditionId2 ) ) ;
+	}
+
+	@Test
+	void searchForPatientsFindsOnlyAuthorizedPatient() {
+		Bundle bundle = patientAppClient.search().forResource(Patient.class).returnBundle(Bundle.class).execute() ;
+
+		assertThat( idParts( bundle ), containsInAnyOrder( authorizedPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void searchNamingOtherPatientIsStillForbidden() {
+		storeCondition( otherPatientAppClient, otherPatientId ) ;
+
+		assertThrows( ForbiddenOperationException.class, () -> {
+			patientAppClient.search().forResource(Condition.class).where( Condition.SUBJECT.hasId( "Patient/" + otherPatientId.getIdPart() ) ).returnBundle(Bundle.class).execute() ;
+		});
+	}
+}
@@ -0,0 +1,52 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+@ActiveProfiles( "auth-aware-test")
+public class PermissionsIdentityTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: the linkage lookups that identify the permitted patient run on the request thread,
+	 * so they are part of the statements counted for the request
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SdsRequestProbe probe ;
+
+	private IGenericClient patientAppClient ;
+
+	@BeforeEach
+	public void setupAuthorizedPatient() {
+		IIdType authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		patientAppClient = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+	}
+
+	@Test
+	void countsIdentityLookupsAgainstRequest() {
+		probe.record() ;
+
+		patientAppClient.search().forResource(Condition.class).returnBundle(Bundle.class).execute() ;
+
+		SdsStatementCount count = probe.lastStatementCount() ;
+		assertThat( count.statementsBy( "linkage:localUserFor" ), greaterThan( 0 ) ) ;
+	}
+}
@@ -0,0 +1,85 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+@ActiveProfiles( "auth-aware-test")
+public class QueryBudgetTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: the statements of a request are attributed to the SDS component that issued them,
+	 * and a request over its query budget fails when the budget is enforced
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SdsRequestProbe probe ;
+
+	@Autowired
+	SdsQueryBudgetEnforcer budgetEnforcer ;
+
+	@AfterEach
+	public void clearCount() {
+		SdsStatementCount.clear() ;
+	}
+
+	@Test
+	void attributesStatementsToLinkageCall() {
+		IIdType nonLocalPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+
+		SdsStatementCount count = SdsStatementCount.start() ;
+		linkage.lookupLocalUserFor( nonLocalPatientId ) ;
+
+		assertThat( count.statementsBy( "linkage:localUserFor" ), greaterThan( 0 ) ) ;
+		assertThat( count.statementsBy( SdsStatementCount.COMPONENT_HAPI ), equalTo( 0 ) ) ;
+		assertThat( count.statements(), equalTo( count.statementsBy( "linkage:localUserFor" ) ) ) ;
+	}
+
+	/*
+	 * the baseline is the statement count of the same request, measured once the caches it fills are warm;
+	 * the budget is then enforced just below and at the baseline
+	 */
+	@Test
+	void failsRequestOverBudget() {
+		IIdType authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		IGenericClient patientAppClient = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+		Supplier<Bundle> search = () -> patientAppClient.search().forResource( Condition.class ).returnBundle( Bundle.class ).execute() ;
+
+		search.get() ;
+		probe.record() ;
+		search.get() ;
+		int baseline = probe.lastStatementCount().statements() ;
+		assertThat( baseline, greaterThan( 0 ) ) ;
+
+		InternalErrorException ex = assertThrows( InternalErrorException.class, () -> budgetEnforcer.enforcing( baseline - 1, search ) ) ;
+		assertThat( ex.getMessage(), containsString( "query budget exceeded" ) ) ;
+
+		budgetEnforcer.enforcing( baseline, search ) ;
+	}
+}
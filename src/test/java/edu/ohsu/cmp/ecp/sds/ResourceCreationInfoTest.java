@@ -0,0 +1,174 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.Enumerations.SearchParamType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.SearchParameter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+
+public class ResourceCreationInfoTest extends BaseSuppplementalDataStoreTest {
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4" ;
+
+	@Autowired
+	FhirContext fhirContext ;
+
+	@Autowired
+	SupplementalDataStoreResourceCreation resourceCreation ;
+
+	@Autowired
+	SupplementalDataStoreProperties sdsProperties ;
+
+	@Autowired
+	IFhirResourceDao<SearchParameter> daoSearchParameter ;
+
+	private IIdType patientId ;
+	private IIdType otherPatientId ;
+	private Condition condition ;
+	private SystemRequestDetails request ;
+
+	@BeforeEach
+	public void setupRequest() {
+		patientId = new IdType( "Patient", createTestSpecificId() ) ;
+		otherPatientId = new IdType( "Patient", createTestSpecificId() ) ;
+
+		condition = new Condition() ;
+		condition.setSubject( new Reference( patientId ) ) ;
+
+		request = new SystemRequestDetails() ;
+		request.setFhirContext( fhirContext ) ;
+		request.setRestOperationType( RestOperationTypeEnum.CREATE ) ;
+		request.addHeader( sdsProperties.getPartition().getHttpHeader(), FOREIGN_PARTITION_NAME ) ;
+		request.setResource( condition ) ;
+	}
+
+	private SystemRequestDetails defaultPartitionRequest() {
+		SystemRequestDetails defaultPartitionRequest = new SystemRequestDetails() ;
+		defaultPartitionRequest.setRequestPartitionId( RequestPartitionId.defaultPartition() ) ;
+		return defaultPartitionRequest ;
+	}
+
+	/*
+	 * a stored SearchParameter overriding the built-in "asserter" param of Condition, one of the params
+	 * that place a Condition in the Patient compartment; the registry holds it without its compartments
+	 */
+	private IIdType createAsserterSearchParameter() {
+		SearchParameter searchParameter = new SearchParameter() ;
+		searchParameter.setUrl( "urn:sds:search-parameter:test-asserter-" + createTestSpecificId() ) ;
+		searchParameter.setName( "asserter" ) ;
+		searchParameter.setCode( "asserter" ) ;
+		searchParameter.setStatus( PublicationStatus.ACTIVE ) ;
+		searchParameter.setType( SearchParamType.REFERENCE ) ;
+		searchParameter.addBase( "Condition" ) ;
+		searchParameter.addTarget( "Patient" ) ;
+		searchParameter.addTarget( "Practitioner" ) ;
+		searchParameter.setExpression( "Condition.asserter" ) ;
+		searchParameter.setDescription( "the person who asserts the condition" ) ;
+		return daoSearchParameter.create( searchParameter, defaultPartitionRequest() ).getId().toUnqualifiedVersionless() ;
+	}
+
+	private List<String> compartmentIdParts() {
+		Set<IIdType> compartments = resourceCreation.resourceCreationInfo( request ).map( SupplementalDataStoreResourceCreation.Details::compartments ).orElse( Set.of() ) ;
+		return compartments.stream().map( IIdType::getIdPart ).collect( toList() ) ;
+	}
+
+	@Test
+	void recomputesCompartmentsForSubjectChangedInPlace() {
+		assertThat( compartmentIdParts(), contains( patientId.getIdPart() ) ) ;
+
+		/* changed in place, without invalidating */
+		condition.setSubject( new Reference( otherPatientId ) ) ;
+
+		assertThat( compartmentIdParts(), contains( otherPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void recomputesCompartmentsForResolvedPlaceholderReference() {
+		condition.setSubject( new Reference( "urn:uuid:" + createTestSpecificId() ) ) ;
+		assertThat( compartmentIdParts(), empty() ) ;
+
+		/* resolved in place, the way a transaction rewrites its placeholder references */
+		condition.getSubject().setReference( otherPatientId.getValue() ) ;
+
+		assertThat( compartmentIdParts(), contains( otherPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void recomputesCompartmentsAfterInvalidation() {
+		assertThat( compartmentIdParts(), contains( patientId.getIdPart() ) ) ;
+
+		condition.setSubject( new Reference( otherPatientId ) ) ;
+		resourceCreation.invalidateResourceCreationInfo( request ) ;
+
+		assertThat( compartmentIdParts(), contains( otherPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void recomputesCompartmentsForReplacedResource() {
+		assertThat( compartmentIdParts(), contains( patientId.getIdPart() ) ) ;
+
+		Condition replacement = condition.copy() ;
+		replacement.setSubject( new Reference( otherPatientId ) ) ;
+		request.setResource( replacement ) ;
+
+		assertThat( compartmentIdParts(), contains( otherPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	void keepsBuiltInCompartmentParamWhenOverriddenAfterRefresh() {
+		condition.setAsserter( new Reference( otherPatientId ) ) ;
+		assertThat( compartmentIdParts(), containsInAnyOrder( patientId.getIdPart(), otherPatientId.getIdPart() ) ) ;
+
+		IIdType searchParameterId = createAsserterSearchParameter() ;
+		try {
+			resourceCreation.refreshPatientCompartmentSearchParamNames() ;
+			resourceCreation.invalidateResourceCreationInfo( request ) ;
+
+			assertThat( compartmentIdParts(), containsInAnyOrder( patientId.getIdPart(), otherPatientId.getIdPart() ) ) ;
+		} finally {
+			daoSearchParameter.delete( searchParameterId, defaultPartitionRequest() ) ;
+			resourceCreation.refreshPatientCompartmentSearchParamNames() ;
+		}
+	}
+
+	@Test
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	void keepsBuiltInCompartmentParamWhenOverrideIsRemovedAfterRefresh() {
+		condition.setAsserter( new Reference( otherPatientId ) ) ;
+
+		IIdType searchParameterId = createAsserterSearchParameter() ;
+		try {
+			resourceCreation.refreshPatientCompartmentSearchParamNames() ;
+		} finally {
+			daoSearchParameter.delete( searchParameterId, defaultPartitionRequest() ) ;
+		}
+
+		resourceCreation.refreshPatientCompartmentSearchParamNames() ;
+		resourceCreation.invalidateResourceCreationInfo( request ) ;
+
+		assertThat( compartmentIdParts(), containsInAnyOrder( patientId.getIdPart(), otherPatientId.getIdPart() ) ) ;
+	}
+}
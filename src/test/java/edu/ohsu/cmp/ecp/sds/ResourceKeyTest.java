@@ -0,0 +1,65 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+import edu.ohsu.cmp.ecp.sds.base.SdsResourceKey;
+
+/*
+ * the hash-keyed resource ids must match exactly as the id comparator does
+ */
+public class ResourceKeyTest {
+
+	private static List<IIdType> ids() {
+		List<IIdType> ids = new ArrayList<>() ;
+		for ( String baseUrl : new String[] { null, "http://my.ehr.org/fhir/R4", "http://other.ehr.org/fhir/R4" } ) {
+			for ( String resourceType : new String[] { null, "Patient", "Practitioner" } ) {
+				for ( String idPart : new String[] { null, "123", "abc" } ) {
+					for ( String versionIdPart : new String[] { null, "1", "2" } )
+						ids.add( new IdType( baseUrl, resourceType, idPart, versionIdPart ) ) ;
+				}
+			}
+		}
+		return ids ;
+	}
+
+	@Test
+	void matchesAsComparatorDoes() {
+		List<IIdType> ids = ids() ;
+		for ( IIdType id1 : ids ) {
+			for ( IIdType id2 : ids ) {
+				boolean expected = 0 == FhirResourceComparison.idTypes().comparator().compare( id1, id2 ) ;
+				SdsResourceKey key1 = SdsResourceKey.of( id1 ) ;
+				SdsResourceKey key2 = SdsResourceKey.of( id2 ) ;
+				assertThat( id1 + " vs " + id2, key1.equals( key2 ), equalTo( expected ) ) ;
+				if ( expected )
+					assertThat( id1 + " vs " + id2, key1.hashCode(), equalTo( key2.hashCode() ) ) ;
+			}
+		}
+	}
+
+	@Test
+	void setIgnoresMissingBaseUrl() {
+		Set<IIdType> set = FhirResourceComparison.idTypes().createSet() ;
+		set.add( new IdType( "http://my.ehr.org/fhir/R4", "Patient", "123", null ) ) ;
+
+		assertThat( set.add( new IdType( "Patient", "123" ) ), equalTo( false ) ) ;
+		assertThat( set.contains( new IdType( "Patient", "123" ) ), equalTo( true ) ) ;
+		assertThat( set.contains( new IdType( "http://other.ehr.org/fhir/R4", "Patient", "123", null ) ), equalTo( false ) ) ;
+
+		assertThat( set.add( new IdType( "http://other.ehr.org/fhir/R4", "Patient", "123", null ) ), equalTo( true ) ) ;
+		assertThat( set.size(), equalTo( 2 ) ) ;
+
+		assertThat( set.remove( new IdType( "http://my.ehr.org/fhir/R4", "Patient", "123", null ) ), equalTo( true ) ) ;
+		assertThat( set.size(), equalTo( 1 ) ) ;
+	}
+}
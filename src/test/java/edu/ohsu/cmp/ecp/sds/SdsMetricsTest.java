@@ -0,0 +1,111 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.interceptor.api.IAnonymousInterceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+@ActiveProfiles( "auth-aware-test")
+public class SdsMetricsTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: the time spent linking a new resource, and the stub created for its patient, are visible as metrics
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	private static final String STUBS_CREATED = SupplementalDataStoreMetrics.METRIC_PREFIX + ".stubs.created" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	RestfulServer server ;
+
+	@Autowired
+	MeterRegistry meterRegistry ;
+
+	private IIdType authorizedPatientId ;
+	private IGenericClient patientAppClient ;
+
+	@BeforeEach
+	public void setupAuthorizedPatient() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null ) ;
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		patientAppClient = authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME ) ;
+	}
+
+	private double count( String counterName ) {
+		return meterRegistry.get( counterName ).counter().count() ;
+	}
+
+	private long linkingCount() {
+		Timer timer =
+			meterRegistry.find( SupplementalDataStoreMetrics.METRIC_PREFIX + ".hook" )
+				.tag( "hook", "linkNewResourceToAuthorizedUser" )
+				.tag( "operation", RestOperationTypeEnum.CREATE.getCode() )
+				.tag( "permission", "read-write" )
+				.timer()
+				;
+		return null == timer ? 0 : timer.count() ;
+	}
+
+	private Condition conditionForAuthorizedPatient() {
+		Condition condition = new Condition() ;
+		condition.setSubject( new Reference( new IdType( "Patient", authorizedPatientId.getIdPart() ) ) ) ;
+		return condition ;
+	}
+
+	@Test
+	void timesLinkingAndCountsStub() {
+		long linkingBefore = linkingCount() ;
+		double stubsBefore = count( STUBS_CREATED ) ;
+
+		patientAppClient.create().resource( conditionForAuthorizedPatient() ).execute() ;
+
+		assertThat( linkingCount(), equalTo( linkingBefore + 1 ) ) ;
+		assertThat( count( STUBS_CREATED ), greaterThan( stubsBefore ) ) ;
+	}
+
+	/*
+	 * the stub is written by the request's transaction; when that rolls back, the stub was never created
+	 */
+	@Test
+	void doesNotCountStubRolledBack() {
+		IAnonymousInterceptor failAfterLinking = ( pointcut, params ) -> {
+			if ( "Condition".equals( params.get( IBaseResource.class ).fhirType() ) )
+				throw new InternalErrorException( "failing the request after linking" ) ;
+		};
+
+		double stubsBefore = count( STUBS_CREATED ) ;
+		server.getInterceptorService().registerAnonymousInterceptor( Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED, Integer.MAX_VALUE, failAfterLinking ) ;
+		try {
+			assertThrows( BaseServerResponseException.class, () -> patientAppClient.create().resource( conditionForAuthorizedPatient() ).execute() ) ;
+		} finally {
+			server.getInterceptorService().unregisterInterceptor( failAfterLinking ) ;
+		}
+
+		assertThat( count( STUBS_CREATED ), equalTo( stubsBefore ) ) ;
+	}
+}
@@ -0,0 +1,56 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/*
+ * fails the HTTP requests a test makes while a statement budget is enforced, once they are over it,
+ * so that a test can catch a regression in the statements issued for a request
+ *
+ * the request is failed before its response is written, but after any write it made has committed,
+ * which is why the server itself only logs a request over budget ( see SupplementalDataStoreQueryBudgetInterceptor )
+ */
+@Interceptor
+@Component
+public class SdsQueryBudgetEnforcer {
+
+	@Inject
+	RestfulServer server;
+
+	private volatile Integer maximumStatements = null ;
+
+	@PostConstruct
+	public void registerEnforcer() {
+		server.registerInterceptor( this ) ;
+	}
+
+	/* runs the requests with the statement budget enforced at the given maximum */
+	public <T> T enforcing( int maximumStatements, Supplier<T> requests ) {
+		this.maximumStatements = maximumStatements ;
+		try {
+			return requests.get() ;
+		} finally {
+			this.maximumStatements = null ;
+		}
+	}
+
+	@Hook(value = Pointcut.SERVER_OUTGOING_RESPONSE, order = Integer.MIN_VALUE)
+	public void enforceBudget() {
+		Integer maximum = maximumStatements ;
+		SdsStatementCount count = SdsStatementCount.current() ;
+		if ( null == maximum || null == count )
+			return ;
+		if ( count.statements() > maximum )
+			throw new InternalErrorException( "query budget exceeded: statements " + count.statements() + " > " + maximum + "; " + count.logFields() ) ;
+	}
+}
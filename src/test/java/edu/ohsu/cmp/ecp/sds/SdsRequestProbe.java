@@ -0,0 +1,80 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.RestfulServer;
+
+/*
+ * observes the HTTP requests made by a test as the server handles them:
+ * the statements each request issued, as counted against the query budget,
+ * and the search parameters each search handed to the DAO
+ *
+ * nothing is kept until a test calls record()
+ */
+@Interceptor
+@Component
+public class SdsRequestProbe {
+
+	@Inject
+	RestfulServer server;
+
+	private volatile boolean recording = false ;
+	private final List<SdsStatementCount> statementCounts = new CopyOnWriteArrayList<>() ;
+	private final List<SearchParameterMap> searches = new CopyOnWriteArrayList<>() ;
+
+	@PostConstruct
+	public void registerProbe() {
+		server.registerInterceptor( this ) ;
+	}
+
+	public void record() {
+		statementCounts.clear() ;
+		searches.clear() ;
+		recording = true ;
+	}
+
+	/*
+	 * the count is captured before the response is written, so that it is in hand by the time the client has the response;
+	 * statements issued while the response is written still add to the same count
+	 */
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public void captureStatementCount() {
+		SdsStatementCount count = SdsStatementCount.current() ;
+		if ( recording && null != count )
+			statementCounts.add( count ) ;
+	}
+
+	@Hook(Pointcut.STORAGE_PRESEARCH_REGISTERED)
+	public void captureSearch(SearchParameterMap theParams) {
+		if ( recording )
+			searches.add( theParams ) ;
+	}
+
+	/* the statement counts of the requests completed since record(), in the order they completed */
+	public List<SdsStatementCount> statementCounts() {
+		return new ArrayList<>( statementCounts ) ;
+	}
+
+	public SdsStatementCount lastStatementCount() {
+		List<SdsStatementCount> counts = statementCounts() ;
+		if ( counts.isEmpty() )
+			throw new AssertionError( "no request completed while the probe was recording" ) ;
+		return counts.get( counts.size() - 1 ) ;
+	}
+
+	/* the search parameters of the searches registered since record() */
+	public List<SearchParameterMap> searches() {
+		return new ArrayList<>( searches ) ;
+	}
+}
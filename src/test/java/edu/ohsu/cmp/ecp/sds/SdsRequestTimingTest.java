@@ -0,0 +1,61 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ohsu.cmp.ecp.sds.SdsRequestTiming.Phase;
+
+/*
+ * the phases of a sampled request are timed once, however deeply their spans nest,
+ * and nothing is timed for a request that was not sampled
+ */
+public class SdsRequestTimingTest {
+
+	@AfterEach
+	public void clearTiming() {
+		SdsRequestTiming.clear() ;
+	}
+
+	@Test
+	void countsOnlyOutermostSpanOfPhase() {
+		SdsRequestTiming timing = SdsRequestTiming.start() ;
+		timing.record( Phase.PERMISSIONS, TimeUnit.MILLISECONDS.toNanos( 5 ) ) ;
+
+		SdsRequestTiming.enter( Phase.LINKAGE ) ;
+		SdsRequestTiming.enter( Phase.LINKAGE ) ;
+		SdsRequestTiming.exit( Phase.LINKAGE ) ;
+		double nestedOnly = timing.elapsedMillis( Phase.LINKAGE ) ;
+		SdsRequestTiming.exit( Phase.LINKAGE ) ;
+
+		/* an unbalanced exit is ignored */
+		SdsRequestTiming.exit( Phase.LINKAGE ) ;
+
+		assertThat( nestedOnly, equalTo( 0.0 ) ) ;
+		assertThat( timing.elapsedMillis( Phase.PERMISSIONS ), equalTo( 5.0 ) ) ;
+
+		String header = timing.serverTimingHeader() ;
+		assertThat( header, containsString( "permissions;dur=5.0;desc=\"permission resolution\"" ) ) ;
+		assertThat( header, not( containsString( "dao" ) ) ) ;
+
+		assertThat( timing.logFields(), containsString( "permissions=5.0" ) ) ;
+		assertThat( timing.logFields(), containsString( "dao=0.0" ) ) ;
+	}
+
+	@Test
+	void ignoresUnsampledRequest() {
+		SdsRequestTiming.clear() ;
+
+		SdsRequestTiming.enter( Phase.AUTHORIZATION ) ;
+		SdsRequestTiming.exit( Phase.AUTHORIZATION ) ;
+
+		assertThat( SdsRequestTiming.current(), nullValue() ) ;
+	}
+}
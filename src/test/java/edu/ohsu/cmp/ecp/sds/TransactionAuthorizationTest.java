@@ -0,0 +1,121 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.BundleBuilder;
+
+@ActiveProfiles( "auth-aware-test")
+public class TransactionAuthorizationTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: a patient app writes several of the patient's records in one transaction,
+	 * but cannot use a transaction (or a batch) to write records it could not write one at a time
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	private IIdType authorizedPatientId;
+	private IGenericClient patientAppClient ;
+
+	private IIdType otherPatientId;
+
+	@BeforeEach
+	public void setupAuthorizedPatients() {
+		authorizedPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null );
+		patientAppClient = authenticatingClientTargetingPartition( tokenFor( authorizedPatientId ), FOREIGN_PARTITION_NAME ) ;
+		storePatient( patientAppClient, authorizedPatientId ) ;
+
+		otherPatientId = new IdType( FOREIGN_PARTITION_NAME, "Patient", createTestSpecificId(), null );
+		IGenericClient otherPatientAppClient = authenticatingClientTargetingPartition( tokenFor( otherPatientId ), FOREIGN_PARTITION_NAME ) ;
+		storePatient( otherPatientAppClient, otherPatientId ) ;
+	}
+
+	private String tokenFor( IIdType patientId ) {
+		return mockPrincipalRegistry.register().principal( "MyPatient", patientId.toString() ).token() ;
+	}
+
+	private void storePatient( IGenericClient client, IIdType patientId ) {
+		Patient patient = new Patient() ;
+		patient.setId( new IdType( "Patient", patientId.getIdPart() ) ) ;
+		client.update().resource(patient).execute() ;
+	}
+
+	private Condition conditionFor( IIdType patientId ) {
+		Condition condition = new Condition() ;
+		condition.setId( new IdType( "Condition", createTestSpecificId() ) ) ;
+		condition.setSubject( new Reference( new IdType( "Patient", patientId.getIdPart() ) ) ) ;
+		return condition ;
+	}
+
+	private IBaseBundle bundleOf( String bundleType, Condition... conditions ) {
+		BundleBuilder builder = bundleBuilder() ;
+		for ( Condition condition : conditions )
+			builder.addTransactionUpdateEntry( condition ) ;
+		builder.setType( bundleType ) ;
+		return builder.getBundle() ;
+	}
+
+	private void assertNotStored( Condition condition ) {
+		assertThrows( ResourceNotFoundException.class, () -> {
+			patientAppClient.read().resource(Condition.class).withId( condition.getIdElement().getIdPart() ).execute() ;
+		});
+	}
+
+	@Test
+	void allowsTransactionOfPermittedEntries() {
+		Condition condition1 = conditionFor( authorizedPatientId ) ;
+		Condition condition2 = conditionFor( authorizedPatientId ) ;
+
+		Bundle response = (Bundle)patientAppClient.transaction().withBundle( bundleOf( "transaction", condition1, condition2 ) ).execute() ;
+
+		assertThat( response.getEntry().size(), equalTo( 2 ) ) ;
+		Condition stored = patientAppClient.read().resource(Condition.class).withId( condition1.getIdElement().getIdPart() ).execute() ;
+		assertThat( stored.getSubject().getReferenceElement().getIdPart(), equalTo( authorizedPatientId.getIdPart() ) ) ;
+	}
+
+	@Test
+	void refusesTransactionWithEntryOutsideCompartment() {
+		Condition permitted = conditionFor( authorizedPatientId ) ;
+		Condition forbidden = conditionFor( otherPatientId ) ;
+
+		assertThrows( ForbiddenOperationException.class, () -> {
+			patientAppClient.transaction().withBundle( bundleOf( "transaction", permitted, forbidden ) ).execute() ;
+		});
+
+		/* the transaction is refused as a whole */
+		assertNotStored( permitted ) ;
+		assertNotStored( forbidden ) ;
+	}
+
+	@Test
+	void refusesBatchEvenOfPermittedEntries() {
+		Condition permitted = conditionFor( authorizedPatientId ) ;
+
+		assertThrows( ForbiddenOperationException.class, () -> {
+			patientAppClient.transaction().withBundle( bundleOf( "batch", permitted ) ).execute() ;
+		});
+
+		assertNotStored( permitted ) ;
+	}
+}
@@ -0,0 +1,123 @@
+package edu.ohsu.cmp.ecp.sds;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+
+import ca.uhn.fhir.jpa.starter.AppTestMockPrincipalRegistry;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.BundleBuilder;
+
+@ActiveProfiles( "auth-aware-test")
+public class TransactionLinkingTest extends BaseSuppplementalDataStoreTest {
+
+	/*
+	 * Use Case: every entry of a transaction is linked to the authorized patient through one plan
+	 */
+
+	private static final String FOREIGN_PARTITION_NAME = "http://my.ehr.org/fhir/R4/" ;
+	private static final String FOREIGN_PARTITION_NAME_OTHER = "http://other.ehr.org/fhir/R4/" ;
+
+	private static final List<String> LINKAGE_LOOKUPS =
+		List.of(
+			"linkage:localUserFor",
+			"linkage:patientsLinkedTo",
+			"linkage:patientCompartmentIsClaimed"
+			);
+
+	private static final List<String> LINKAGE_WRITES =
+		List.of(
+			"linkage:createNonLocalStubUser",
+			"linkage:createLocalUserLinkedTo",
+			"linkage:createLinkage"
+			);
+
+	@Autowired
+	AppTestMockPrincipalRegistry mockPrincipalRegistry ;
+
+	@Autowired
+	SupplementalDataStoreLinkage linkage ;
+
+	@Autowired
+	SdsRequestProbe probe ;
+
+	private IIdType newPatientId( String partitionName ) {
+		return new IdType( partitionName, "Patient", createTestSpecificId(), null ) ;
+	}
+
+	/* a client for the authorized patient, storing another institution's records */
+	private IGenericClient clientFor( IIdType authorizedPatientId ) {
+		String token = mockPrincipalRegistry.register().principal( "MyPatient", authorizedPatientId.toString() ).token() ;
+		return authenticatingClientTargetingPartition( token, FOREIGN_PARTITION_NAME_OTHER ) ;
+	}
+
+	private Condition conditionFor( IIdType patientId ) {
+		Condition condition = new Condition() ;
+		condition.setId( new IdType( "Condition", createTestSpecificId() ) ) ;
+		condition.setSubject( new Reference( patientId ) ) ;
+		return condition ;
+	}
+
+	private SdsStatementCount postTransaction( IGenericClient client, IIdType patientId, int entries ) {
+		BundleBuilder builder = bundleBuilder() ;
+		for ( int e = 0 ; e < entries ; ++e )
+			builder.addTransactionUpdateEntry( conditionFor( patientId ) ) ;
+
+		probe.record() ;
+		client.transaction().withBundle( builder.getBundle() ).execute() ;
+		return probe.lastStatementCount() ;
+	}
+
+	private List<String> linkedIdParts( IIdType localPatientId ) {
+		return linkage.patientsLinkedTo( localPatientId ).stream()
+			.map( IBaseReference::getReferenceElement )
+			.map( IIdType::getIdPart )
+			.collect( toList() )
+			;
+	}
+
+	@Test
+	void linksEveryEntryToSameLocalPatient() {
+		IIdType authorizedPatientId = newPatientId( FOREIGN_PARTITION_NAME ) ;
+		IIdType otherPatientId = newPatientId( FOREIGN_PARTITION_NAME_OTHER ) ;
+
+		postTransaction( clientFor( authorizedPatientId ), otherPatientId, 4 ) ;
+
+		Optional<IIdType> localPatientId = linkage.lookupLocalUserFor( authorizedPatientId ) ;
+		assertTrue( localPatientId.isPresent() ) ;
+
+		assertThat( linkedIdParts( localPatientId.get() ), containsInAnyOrder( authorizedPatientId.getIdPart(), otherPatientId.getIdPart() ) ) ;
+	}
+
+	/*
+	 * the entries after the first find their compartments in the plan, so the linkage calls and their statements do not grow with the entries
+	 *
+	 * only the statements of the lookups are compared; a write may or may not fetch the next block of ids from a sequence
+	 */
+	@Test
+	void linkageWorkDoesNotGrowWithEntries() {
+		SdsStatementCount oneEntry = postTransaction( clientFor( newPatientId( FOREIGN_PARTITION_NAME ) ), newPatientId( FOREIGN_PARTITION_NAME_OTHER ), 1 ) ;
+		SdsStatementCount manyEntries = postTransaction( clientFor( newPatientId( FOREIGN_PARTITION_NAME ) ), newPatientId( FOREIGN_PARTITION_NAME_OTHER ), 8 ) ;
+
+		for ( String component : LINKAGE_LOOKUPS ) {
+			assertThat( component + " calls", manyEntries.callsTo( component ), equalTo( oneEntry.callsTo( component ) ) ) ;
+			assertThat( component + " statements", manyEntries.statementsBy( component ), equalTo( oneEntry.statementsBy( component ) ) ) ;
+		}
+		for ( String component : LINKAGE_WRITES )
+			assertThat( component + " calls", manyEntries.callsTo( component ), equalTo( oneEntry.callsTo( component ) ) ) ;
+	}
+}
@@ -0,0 +1,141 @@
+package edu.ohsu.cmp.ecp.sds.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationFlagsEnum;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor.Verdict;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreCompartmentRule;
+import edu.ohsu.cmp.ecp.sds.SupplementalDataStoreCompartmentRule.CompartmentOperation;
+
+/*
+ * compares the per-patient RuleBuilder compartment rules with the single hash-based compartment rule
+ * as the number of partitions the patient is linked to grows
+ *
+ * run with:
+ *   mvn test-compile exec:java -Dexec.mainClass=edu.ohsu.cmp.ecp.sds.benchmark.CompartmentRuleBenchmark -Dexec.classpathScope=test
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompartmentRuleBenchmark {
+
+	@Param({ "1", "4", "16", "64" })
+	int linkedPartitions ;
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached() ;
+	private final AuthorizationInterceptor ruleApplier = new AuthorizationInterceptor() ;
+	private final Set<AuthorizationFlagsEnum> flags = Collections.emptySet() ;
+
+	private SystemRequestDetails request ;
+	private List<IAuthRule> ruleBuilderRules ;
+	private List<IAuthRule> compartmentRules ;
+	private Observation linkedObservation ;
+	private Observation unrelatedObservation ;
+
+	@Setup
+	public void setup() {
+		request = new SystemRequestDetails() ;
+		request.setFhirContext( fhirContext ) ;
+
+		List<IIdType> owners = new ArrayList<>() ;
+		owners.add( new IdType( "Patient/local-1" ) ) ;
+		IIdType lastNonLocalPatient = null ;
+		for ( int i = 0 ; i < linkedPartitions ; ++i ) {
+			lastNonLocalPatient = new IdType( "http://ehr-" + i + ".org/fhir/R4", "Patient", "foreign-" + i, null ) ;
+			owners.add( lastNonLocalPatient ) ;
+			owners.add( lastNonLocalPatient.toUnqualifiedVersionless() ) ;
+		}
+
+		ruleBuilderRules = new ArrayList<>() ;
+		for ( IIdType owner : owners ) {
+			ruleBuilderRules.addAll(
+				new RuleBuilder()
+					.allow().read().allResources().inCompartment( "Patient", owner )
+					.andThen()
+					.allow().write().allResources().inCompartment( "Patient", owner )
+					.andThen()
+					.allow().delete().allResources().inCompartment( "Patient", owner )
+					.build()
+				);
+			ruleBuilderRules.addAll( new RuleBuilder().allow().delete().onCascade().allResources().inCompartment( "Patient", owner ).build() ) ;
+			ruleBuilderRules.addAll( new RuleBuilder().allow().delete().onExpunge().allResources().inCompartment( "Patient", owner ).build() ) ;
+		}
+
+		compartmentRules = List.of( new SupplementalDataStoreCompartmentRule( "compartment", EnumSet.allOf( CompartmentOperation.class ), owners ) ) ;
+
+		linkedObservation = new Observation() ;
+		linkedObservation.setId( "Observation/obs-1" ) ;
+		linkedObservation.setSubject( new Reference( lastNonLocalPatient.toUnqualifiedVersionless() ) ) ;
+
+		unrelatedObservation = new Observation() ;
+		unrelatedObservation.setId( "Observation/obs-2" ) ;
+		unrelatedObservation.setSubject( new Reference( "Patient/unrelated-1" ) ) ;
+	}
+
+	private Verdict decide( List<IAuthRule> rules, Observation observation ) {
+		for ( IAuthRule rule : rules ) {
+			Verdict verdict = rule.applyRule( RestOperationTypeEnum.READ, request, null, null, observation, ruleApplier, flags, Pointcut.STORAGE_PREACCESS_RESOURCES ) ;
+			if ( null != verdict )
+				return verdict ;
+		}
+		return null ;
+	}
+
+	@Benchmark
+	public Verdict ruleBuilderRulesAllowLinkedResource() {
+		return decide( ruleBuilderRules, linkedObservation ) ;
+	}
+
+	@Benchmark
+	public Verdict compartmentRuleAllowsLinkedResource() {
+		return decide( compartmentRules, linkedObservation ) ;
+	}
+
+	@Benchmark
+	public Verdict ruleBuilderRulesRejectUnrelatedResource() {
+		return decide( ruleBuilderRules, unrelatedObservation ) ;
+	}
+
+	@Benchmark
+	public Verdict compartmentRuleRejectsUnrelatedResource() {
+		return decide( compartmentRules, unrelatedObservation ) ;
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder().include( CompartmentRuleBenchmark.class.getSimpleName() ).build() ).run() ;
+	}
+}
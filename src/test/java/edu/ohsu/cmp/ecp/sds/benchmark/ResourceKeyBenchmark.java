@@ -0,0 +1,94 @@
+package edu.ohsu.cmp.ecp.sds.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.ohsu.cmp.ecp.sds.base.FhirResourceComparison;
+
+/*
+ * compares a TreeSet on the id comparator with the hash-keyed set now returned by FhirResourceComparison.idTypes(),
+ * as the number of ids a user is linked to grows
+ *
+ * run with:
+ *   mvn test-compile exec:java -Dexec.mainClass=edu.ohsu.cmp.ecp.sds.benchmark.ResourceKeyBenchmark -Dexec.classpathScope=test
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceKeyBenchmark {
+
+	@Param({ "4", "16", "64" })
+	int linkedIds ;
+
+	private List<IIdType> ids ;
+	private Set<IIdType> treeSet ;
+	private Set<IIdType> keyedSet ;
+	private IIdType presentWithoutBaseUrl ;
+	private IIdType absent ;
+
+	@Setup
+	public void setup() {
+		ids = new ArrayList<>() ;
+		for ( int i = 0 ; i < linkedIds ; ++i )
+			ids.add( new IdType( "http://ehr-" + ( i % 4 ) + ".org/fhir/R4", "Patient", "foreign-" + i, null ) ) ;
+
+		treeSet = new TreeSet<>( FhirResourceComparison.idTypes().comparator() ) ;
+		treeSet.addAll( ids ) ;
+		keyedSet = FhirResourceComparison.idTypes().createSet( ids ) ;
+
+		presentWithoutBaseUrl = new IdType( "Patient", "foreign-" + ( linkedIds - 1 ) ) ;
+		absent = new IdType( "http://ehr-0.org/fhir/R4", "Patient", "unrelated-1", null ) ;
+	}
+
+	@Benchmark
+	public Set<IIdType> treeSetBuild() {
+		Set<IIdType> set = new TreeSet<>( FhirResourceComparison.idTypes().comparator() ) ;
+		set.addAll( ids ) ;
+		return set ;
+	}
+
+	@Benchmark
+	public Set<IIdType> keyedSetBuild() {
+		return FhirResourceComparison.idTypes().createSet( ids ) ;
+	}
+
+	@Benchmark
+	public void treeSetProbe( Blackhole bh ) {
+		bh.consume( treeSet.contains( presentWithoutBaseUrl ) ) ;
+		bh.consume( treeSet.contains( absent ) ) ;
+	}
+
+	@Benchmark
+	public void keyedSetProbe( Blackhole bh ) {
+		bh.consume( keyedSet.contains( presentWithoutBaseUrl ) ) ;
+		bh.consume( keyedSet.contains( absent ) ) ;
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder().include( ResourceKeyBenchmark.class.getSimpleName() ).build() ).run() ;
+	}
+}
@@ -0,0 +1,147 @@
+package edu.ohsu.cmp.ecp.security;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.core.DefaultOAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.server.resource.introspection.OAuth2IntrospectionException;
+import org.springframework.security.oauth2.server.resource.introspection.OpaqueTokenIntrospector;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class ApplicationOpaqueTokenIntrospectorTest {
+
+	private static final Duration TIMEOUT = Duration.ofMillis( 100 ) ;
+
+	private MeterRegistry meterRegistry ;
+	private IntrospectionProperties introspectionProperties ;
+	private ApplicationOpaqueTokenIntrospector introspector ;
+
+	/* stands in for the authorization server: counts its calls, and answers once released */
+	private final AtomicInteger endpointCalls = new AtomicInteger() ;
+	private volatile CountDownLatch endpointReleased = new CountDownLatch( 0 ) ;
+
+	private final OpaqueTokenIntrospector endpoint = token -> {
+		endpointCalls.incrementAndGet() ;
+		try {
+			endpointReleased.await( 10, TimeUnit.SECONDS ) ;
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread().interrupt() ;
+			throw new OAuth2IntrospectionException( "interrupted", ex ) ;
+		}
+		return new DefaultOAuth2AuthenticatedPrincipal( Map.of( "sub", token, "exp", Instant.now().plus( Duration.ofHours( 1 ) ) ), List.of() ) ;
+	};
+
+	@BeforeEach
+	public void setupProperties() {
+		meterRegistry = new SimpleMeterRegistry() ;
+		introspectionProperties = new IntrospectionProperties() ;
+		introspectionProperties.getResilience().setTimeout( TIMEOUT ) ;
+	}
+
+	@AfterEach
+	public void closeIntrospector() throws IOException {
+		endpointReleased.countDown() ;
+		if ( null != introspector )
+			introspector.close() ;
+	}
+
+	private ApplicationOpaqueTokenIntrospector introspector() {
+		introspector = new ApplicationOpaqueTokenIntrospector( HttpClients.createMinimal(), endpoint, introspectionProperties, meterRegistry ) ;
+		return introspector ;
+	}
+
+	private void holdEndpoint() {
+		endpointReleased = new CountDownLatch( 1 ) ;
+	}
+
+	private void releaseEndpoint() {
+		endpointReleased.countDown() ;
+	}
+
+	private double counted( String name ) {
+		return meterRegistry.get( ApplicationOpaqueTokenIntrospector.METRIC_PREFIX + "." + name ).counter().count() ;
+	}
+
+	private void awaitEndpointCalls( int calls ) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( 5 ) ;
+		while ( endpointCalls.get() < calls && System.nanoTime() < deadline )
+			Thread.sleep( 10 ) ;
+		assertThat( endpointCalls.get(), equalTo( calls ) ) ;
+	}
+
+	@Test
+	public void stopsWaitingOnSlowEndpointAfterTimeout() {
+		ApplicationOpaqueTokenIntrospector introspector = introspector() ;
+		holdEndpoint() ;
+
+		long started = System.nanoTime() ;
+		OAuth2IntrospectionException ex = assertThrows( OAuth2IntrospectionException.class, () -> introspector.introspect( "slow-token" ) ) ;
+		long waitedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - started ) ;
+
+		assertThat( ex.getMessage(), containsString( "Timed out" ) ) ;
+		assertThat( waitedMillis, lessThan( TIMEOUT.toMillis() * 10 ) ) ;
+		assertThat( counted( "timeouts" ), equalTo( 1.0 ) ) ;
+	}
+
+	@Test
+	public void servesStaleResultWithinGracePeriodWhileRefreshing() throws InterruptedException {
+		introspectionProperties.getCache().setMaximumTtl( Duration.ofMillis( 200 ) ) ;
+		introspectionProperties.getResilience().setGracePeriod( Duration.ofMinutes( 1 ) ) ;
+		ApplicationOpaqueTokenIntrospector introspector = introspector() ;
+
+		OAuth2AuthenticatedPrincipal fresh = introspector.introspect( "stale-token" ) ;
+		assertThat( endpointCalls.get(), equalTo( 1 ) ) ;
+
+		Thread.sleep( 300 ) ;
+
+		/* the endpoint does not answer the refresh, yet the request is served at once */
+		holdEndpoint() ;
+		OAuth2AuthenticatedPrincipal stale = introspector.introspect( "stale-token" ) ;
+
+		assertThat( stale, sameInstance( fresh ) ) ;
+		assertThat( counted( "stale" ), equalTo( 1.0 ) ) ;
+		assertThat( counted( "timeouts" ), equalTo( 0.0 ) ) ;
+
+		/* and the token is introspected again in the background */
+		awaitEndpointCalls( 2 ) ;
+		releaseEndpoint() ;
+	}
+
+	@Test
+	public void failsFastWhenExecutorIsSaturated() {
+		introspectionProperties.getResilience().setMaxConcurrent( 1 ) ;
+		introspectionProperties.getResilience().setQueueCapacity( 1 ) ;
+		ApplicationOpaqueTokenIntrospector introspector = introspector() ;
+		holdEndpoint() ;
+
+		/* one introspection runs and one is queued, both still waiting on the endpoint once the requests give up */
+		assertThrows( OAuth2IntrospectionException.class, () -> introspector.introspect( "running-token" ) ) ;
+		assertThrows( OAuth2IntrospectionException.class, () -> introspector.introspect( "queued-token" ) ) ;
+
+		OAuth2IntrospectionException ex = assertThrows( OAuth2IntrospectionException.class, () -> introspector.introspect( "refused-token" ) ) ;
+
+		assertThat( ex.getMessage(), containsString( "saturated" ) ) ;
+		assertThat( endpointCalls.get(), equalTo( 1 ) ) ;
+		assertThat( counted( "timeouts" ), equalTo( 2.0 ) ) ;
+	}
+}
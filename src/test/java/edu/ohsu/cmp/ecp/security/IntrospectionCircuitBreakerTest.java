@@ -0,0 +1,88 @@
+package edu.ohsu.cmp.ecp.security;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ohsu.cmp.ecp.security.IntrospectionCircuitBreaker.State;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class IntrospectionCircuitBreakerTest {
+
+	private static final int FAILURE_THRESHOLD = 3 ;
+	private static final Duration OPEN_DURATION = Duration.ofMillis( 200 ) ;
+
+	private MeterRegistry meterRegistry ;
+	private IntrospectionCircuitBreaker circuitBreaker ;
+
+	@BeforeEach
+	public void setupCircuitBreaker() {
+		meterRegistry = new SimpleMeterRegistry() ;
+		circuitBreaker = new IntrospectionCircuitBreaker( FAILURE_THRESHOLD, OPEN_DURATION, meterRegistry ) ;
+	}
+
+	private void failRepeatedly( int times ) {
+		for ( int i = 0 ; i < times ; ++i ) {
+			assertThat( circuitBreaker.allowRequest(), equalTo( true ) ) ;
+			circuitBreaker.recordFailure() ;
+		}
+	}
+
+	private double transitionsInto( State state ) {
+		return meterRegistry.get( IntrospectionCircuitBreaker.METRIC_PREFIX + ".transitions" ).tag( "state", state.name().toLowerCase() ).counter().count() ;
+	}
+
+	@Test
+	public void staysClosedBelowFailureThreshold() {
+		failRepeatedly( FAILURE_THRESHOLD - 1 ) ;
+		circuitBreaker.recordSuccess() ;
+		failRepeatedly( FAILURE_THRESHOLD - 1 ) ;
+
+		assertThat( circuitBreaker.getState(), equalTo( State.CLOSED ) ) ;
+		assertThat( circuitBreaker.allowRequest(), equalTo( true ) ) ;
+	}
+
+	@Test
+	public void failsFastOnceFailureThresholdIsReached() {
+		failRepeatedly( FAILURE_THRESHOLD ) ;
+
+		assertThat( circuitBreaker.getState(), equalTo( State.OPEN ) ) ;
+		assertThat( circuitBreaker.allowRequest(), equalTo( false ) ) ;
+		assertThat( transitionsInto( State.OPEN ), equalTo( 1.0 ) ) ;
+	}
+
+	@Test
+	public void allowsSingleTrialAfterOpenDuration() throws InterruptedException {
+		failRepeatedly( FAILURE_THRESHOLD ) ;
+		Thread.sleep( OPEN_DURATION.toMillis() + 50 ) ;
+
+		assertThat( circuitBreaker.allowRequest(), equalTo( true ) ) ;
+		assertThat( circuitBreaker.getState(), equalTo( State.HALF_OPEN ) ) ;
+		assertThat( circuitBreaker.allowRequest(), equalTo( false ) ) ;
+
+		circuitBreaker.recordSuccess() ;
+
+		assertThat( circuitBreaker.getState(), equalTo( State.CLOSED ) ) ;
+		assertThat( circuitBreaker.allowRequest(), equalTo( true ) ) ;
+		assertThat( transitionsInto( State.HALF_OPEN ), equalTo( 1.0 ) ) ;
+		assertThat( transitionsInto( State.CLOSED ), equalTo( 1.0 ) ) ;
+	}
+
+	@Test
+	public void reopensWhenTrialFails() throws InterruptedException {
+		failRepeatedly( FAILURE_THRESHOLD ) ;
+		Thread.sleep( OPEN_DURATION.toMillis() + 50 ) ;
+
+		assertThat( circuitBreaker.allowRequest(), equalTo( true ) ) ;
+		circuitBreaker.recordFailure() ;
+
+		assertThat( circuitBreaker.getState(), equalTo( State.OPEN ) ) ;
+		assertThat( circuitBreaker.allowRequest(), equalTo( false ) ) ;
+		assertThat( transitionsInto( State.OPEN ), equalTo( 2.0 ) ) ;
+	}
+}
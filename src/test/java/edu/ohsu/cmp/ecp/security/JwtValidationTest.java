@@ -0,0 +1,150 @@
+package edu.ohsu.cmp.ecp.security;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.core.OAuth2AuthenticatedPrincipal;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.security.oauth2.server.resource.authentication.BearerTokenAuthentication;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+public class JwtValidationTest {
+
+	private static final String ISSUER = "https://my.ehr.org" ;
+	private static final String SUBJECT = "https://my.ehr.org/FHIR/R4/Patient/123" ;
+
+	@TempDir
+	Path tempDir ;
+
+	private Path jwksFile ;
+	private RSAKey signingKey ;
+	private JwkSetResourceSource jwkSource ;
+	private JwtDecoder jwtDecoder ;
+
+	@BeforeEach
+	public void setupKeySet() throws Exception {
+		signingKey = generateKey() ;
+		jwksFile = tempDir.resolve( "jwks.json" ) ;
+		publish( signingKey ) ;
+
+		jwkSource = new JwkSetResourceSource( new FileSystemResource( jwksFile ), Duration.ofHours(1), Duration.ZERO ) ;
+		jwtDecoder = JwtValidationConfig.jwtDecoderFor( jwkSource, ISSUER, Collections.emptyList() ) ;
+	}
+
+	@AfterEach
+	public void closeKeySet() {
+		jwkSource.close() ;
+	}
+
+	private static RSAKey generateKey() throws JOSEException {
+		return new RSAKeyGenerator( 2048 ).keyID( UUID.randomUUID().toString() ).generate() ;
+	}
+
+	private void publish( RSAKey ... keys ) throws IOException {
+		List<JWK> publicKeys = Arrays.stream( keys ).map( RSAKey::toPublicJWK ).collect( Collectors.toList() ) ;
+		Files.write( jwksFile, new JWKSet( publicKeys ).toString().getBytes( StandardCharsets.UTF_8 ) ) ;
+	}
+
+	private static JWTClaimsSet.Builder validClaims() {
+		Instant now = Instant.now() ;
+		return new JWTClaimsSet.Builder()
+			.issuer( ISSUER )
+			.subject( SUBJECT )
+			.issueTime( Date.from( now ) )
+			.expirationTime( Date.from( now.plusSeconds( 300 ) ) )
+			.claim( "scope", "patient/*.read launch/patient" )
+			;
+	}
+
+	private static String sign( RSAKey key, JWTClaimsSet claims ) throws JOSEException {
+		SignedJWT jwt = new SignedJWT( new JWSHeader.Builder( JWSAlgorithm.RS256 ).keyID( key.getKeyID() ).build(), claims ) ;
+		jwt.sign( new RSASSASigner( key ) ) ;
+		return jwt.serialize() ;
+	}
+
+	@Test
+	public void canConvertValidTokenToAuthenticatedPrincipal() throws Exception {
+		String token = sign( signingKey, validClaims().claim( "fhirUser", SUBJECT ).claim( "patient", "123" ).build() ) ;
+
+		Jwt jwt = jwtDecoder.decode( token ) ;
+		AbstractAuthenticationToken authentication = new JwtAuthenticatedPrincipalConverter().convert( jwt ) ;
+
+		assertThat( authentication, instanceOf( BearerTokenAuthentication.class ) ) ;
+		assertThat( authentication.getPrincipal(), instanceOf( OAuth2AuthenticatedPrincipal.class ) ) ;
+		OAuth2AuthenticatedPrincipal principal = (OAuth2AuthenticatedPrincipal)authentication.getPrincipal() ;
+		assertThat( principal.getAttribute( "sub" ), equalTo( SUBJECT ) ) ;
+		assertThat( principal.getAttribute( "fhirUser" ), equalTo( SUBJECT ) ) ;
+		assertThat( principal.getAttribute( "patient" ), equalTo( "123" ) ) ;
+
+		List<String> authorities = principal.getAuthorities().stream().map( GrantedAuthority::getAuthority ).collect( Collectors.toList() ) ;
+		assertThat( authorities, hasItem( "ROLE_USER" ) ) ;
+		assertThat( authorities, hasItem( "SCOPE_patient/*.read" ) ) ;
+	}
+
+	@Test
+	public void cannotValidateTokenSignedWithUnknownKey() throws Exception {
+		String token = sign( generateKey(), validClaims().build() ) ;
+
+		assertThrows( JwtException.class, () -> jwtDecoder.decode( token ) ) ;
+	}
+
+	@Test
+	public void cannotValidateExpiredToken() throws Exception {
+		Instant past = Instant.now().minus( Duration.ofHours(1) ) ;
+		String token = sign( signingKey, validClaims().issueTime( Date.from( past ) ).expirationTime( Date.from( past.plusSeconds(60) ) ).build() ) ;
+
+		assertThrows( JwtException.class, () -> jwtDecoder.decode( token ) ) ;
+	}
+
+	@Test
+	public void cannotValidateTokenFromOtherIssuer() throws Exception {
+		String token = sign( signingKey, validClaims().issuer( "https://other.ehr.org" ).build() ) ;
+
+		assertThrows( JwtException.class, () -> jwtDecoder.decode( token ) ) ;
+	}
+
+	@Test
+	public void canValidateTokenSignedWithRotatedKey() throws Exception {
+		RSAKey rotatedKey = generateKey() ;
+		publish( signingKey, rotatedKey ) ;
+
+		String token = sign( rotatedKey, validClaims().build() ) ;
+
+		assertThat( jwtDecoder.decode( token ).getSubject(), equalTo( SUBJECT ) ) ;
+	}
+}